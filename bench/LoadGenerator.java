@@ -0,0 +1,386 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Closed-loop load generator: every client thread sends a request, waits for the whole
+ * response and sends the next one, for a fixed time. Reports throughput and latency
+ * percentiles. Runs against a server over loopback, optionally started in the same process.
+ *
+ *   javac -d out src/*.java bench/*.java
+ *   java -cp out LoadGenerator [--server] [--mode get|keepalive|upload|mix] [--threads 16]
+ *        [--seconds 10] [--path /index.html] [--host localhost] [--port 8888]
+ *
+ * get opens a connection per request, keepalive reuses one connection per thread, upload
+ * posts a png with multipart/form-data and mix does 80% keep-alive GETs, 15% new-connection
+ * GETs and 5% uploads. With --server the client limits are turned off unless set.
+ * The port defaults to the server's http.port property.
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+public class LoadGenerator
+{
+    private enum Mode { GET, KEEPALIVE, UPLOAD, MIX }
+
+    private final String host;
+    private final int port;
+    private final String path;
+    private final Mode mode;
+    private final byte[] upload;
+
+    private LoadGenerator(String host, int port, String path, Mode mode, byte[] upload)
+    {
+        this.host = host;
+        this.port = port;
+        this.path = path;
+        this.mode = mode;
+        this.upload = upload;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        String host = "localhost", path = "/index.html";
+        int port = Integer.getInteger("http.port", 8888), threads = 16, seconds = 10;
+        Mode mode = Mode.KEEPALIVE;
+        boolean server = false;
+
+        for (int i = 0; i < args.length; i++)
+        {
+            switch (args[i])
+            {
+                case "--server": server = true; break;
+                case "--mode": mode = Mode.valueOf(args[++i].toUpperCase()); break;
+                case "--threads": threads = Integer.parseInt(args[++i]); break;
+                case "--seconds": seconds = Integer.parseInt(args[++i]); break;
+                case "--path": path = args[++i]; break;
+                case "--host": host = args[++i]; break;
+                case "--port": port = Integer.parseInt(args[++i]); break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    return;
+            }
+        }
+
+        if (server)
+        {
+            startServer(port);
+        }
+
+        LoadGenerator generator = new LoadGenerator(host, port, path, mode,
+                uploadBody(Files.readAllBytes(Paths.get("http/resources/dir2/kappa.png"))));
+
+        Client[] clients = new Client[threads];
+        CountDownLatch done = new CountDownLatch(threads);
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+
+        for (int i = 0; i < threads; i++)
+        {
+            clients[i] = generator.new Client(end, done);
+            Thread t = new Thread(clients[i], "load-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        long start = System.nanoTime();
+        done.await();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        report(mode, threads, elapsed, clients);
+        System.exit(0);
+    }
+
+    /**
+     * Starts HTTPServer in this process. The limits meant for real clients would throttle
+     * a load test from one address, so they are off unless set on the command line.
+     * @param port - port the server listens on
+     */
+    private static void startServer(int port) throws InterruptedException
+    {
+        // Read by ServerConfig when the server starts, so it listens where the clients connect
+        System.setProperty("http.port", String.valueOf(port));
+
+        for (String limit : new String[] {"http.rateLimit", "http.maxConnectionsPerClient"})
+        {
+            if (System.getProperty(limit) == null)
+            {
+                System.setProperty(limit, "0");
+            }
+        }
+
+        Thread t = new Thread(() -> HTTPServer.main(new String[0]), "server");
+        t.setDaemon(true);
+        t.start();
+
+        // Give it time to bind and index the resources
+        Thread.sleep(1000);
+    }
+
+    /**
+     * Builds a multipart/form-data body holding one png file
+     */
+    private static byte[] uploadBody(byte[] png) throws IOException
+    {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(png.length + 256);
+        body.write(("--" + BOUNDARY + "\r\n" +
+                "Content-Disposition: form-data; name=\"file\"; filename=\"loadtest.png\"\r\n" +
+                "Content-Type: image/png\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        body.write(png);
+        body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        return body.toByteArray();
+    }
+
+    private static final String BOUNDARY = "----LoadGeneratorBoundary7MA4YWxk";
+
+    /**
+     * One client thread and what it measured
+     */
+    private class Client implements Runnable
+    {
+        private final long end;
+        private final CountDownLatch done;
+        private long[] latencies = new long[1 << 16];
+        private int count;
+        private long errors;
+        private long bytes;
+
+        private Socket socket;
+        private boolean serverClosed;
+        private InputStream in;
+        private OutputStream out;
+
+        Client(long end, CountDownLatch done)
+        {
+            this.end = end;
+            this.done = done;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (System.nanoTime() < end)
+                {
+                    long start = System.nanoTime();
+
+                    try
+                    {
+                        if (!send(pick()))
+                        {
+                            errors++;
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        errors++;
+                        disconnect();
+                        continue;
+                    }
+
+                    record(System.nanoTime() - start);
+                }
+            }
+            finally
+            {
+                disconnect();
+                done.countDown();
+            }
+        }
+
+        private Mode pick()
+        {
+            if (mode != Mode.MIX)
+            {
+                return mode;
+            }
+
+            int roll = ThreadLocalRandom.current().nextInt(100);
+            return roll < 80 ? Mode.KEEPALIVE : roll < 95 ? Mode.GET : Mode.UPLOAD;
+        }
+
+        /**
+         * Sends one request and reads the whole response
+         * @return true for a 2xx or 3xx response
+         */
+        private boolean send(Mode request) throws IOException
+        {
+            boolean close = request == Mode.GET;
+
+            if (close)
+            {
+                disconnect();
+            }
+            if (socket == null)
+            {
+                socket = new Socket(host, port);
+                socket.setTcpNoDelay(true);
+                in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+                out = socket.getOutputStream();
+            }
+
+            if (request == Mode.UPLOAD)
+            {
+                out.write(("POST /upload HTTP/1.1\r\nHost: " + host + "\r\n" +
+                        "Content-Type: multipart/form-data; boundary=" + BOUNDARY + "\r\n" +
+                        "Content-Length: " + upload.length + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                out.write(upload);
+            }
+            else
+            {
+                out.write(("GET " + path + " HTTP/1.1\r\nHost: " + host + "\r\n" +
+                        (close ? "Connection: close\r\n" : "") + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            }
+            out.flush();
+
+            int status = readResponse();
+
+            if (close || serverClosed)
+            {
+                disconnect();
+            }
+
+            return status >= 200 && status < 400;
+        }
+
+        /**
+         * Reads a response with a Content-Length body, and whether the server closes the connection after it
+         * @return the status code
+         */
+        private int readResponse() throws IOException
+        {
+            StringBuilder head = new StringBuilder(256);
+            int c, newlines = 0;
+
+            while (newlines < 2)
+            {
+                if ((c = in.read()) < 0)
+                {
+                    throw new IOException("Connection closed in the response header");
+                }
+
+                head.append((char) c);
+
+                if (c == '\n')
+                    newlines++;
+                else if (c != '\r')
+                    newlines = 0;
+            }
+
+            String header = head.toString();
+            int status = Integer.parseInt(header.substring(9, 12));
+            long length = 0;
+            boolean keepAlive = true;
+
+            for (String line : header.split("\r\n"))
+            {
+                int colon = line.indexOf(':');
+
+                if (colon < 0)
+                    continue;
+
+                String name = line.substring(0, colon).trim();
+
+                if (name.equalsIgnoreCase("Content-Length"))
+                    length = Long.parseLong(line.substring(colon + 1).trim());
+                else if (name.equalsIgnoreCase("Connection"))
+                    keepAlive = !line.substring(colon + 1).trim().equalsIgnoreCase("close");
+            }
+
+            long skipped = 0;
+
+            while (skipped < length)
+            {
+                long n = in.skip(length - skipped);
+
+                if (n <= 0)
+                {
+                    if (in.read() < 0)
+                        throw new IOException("Connection closed in the response body");
+                    n = 1;
+                }
+                skipped += n;
+            }
+
+            bytes += header.length() + length;
+            serverClosed = !keepAlive;
+            return status;
+        }
+
+        private void record(long nanos)
+        {
+            if (count == latencies.length)
+            {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+        }
+
+        private void disconnect()
+        {
+            if (socket == null)
+            {
+                return;
+            }
+
+            try
+            {
+                socket.close();
+            }
+            catch (IOException e)
+            {
+                // Closing anyway
+            }
+            socket = null;
+        }
+    }
+
+    private static void report(Mode mode, int threads, double seconds, Client[] clients)
+    {
+        int total = 0;
+        long errors = 0, bytes = 0;
+
+        for (Client c : clients)
+        {
+            total += c.count;
+            errors += c.errors;
+            bytes += c.bytes;
+        }
+
+        long[] all = new long[total];
+        int pos = 0;
+
+        for (Client c : clients)
+        {
+            System.arraycopy(c.latencies, 0, all, pos, c.count);
+            pos += c.count;
+        }
+
+        Arrays.sort(all);
+
+        System.out.printf("mode=%s threads=%d duration=%.1fs\n", mode.name().toLowerCase(), threads, seconds);
+        System.out.printf("requests=%d errors=%d throughput=%.0f req/s %.1f MB/s\n",
+                total, errors, total / seconds, bytes / seconds / 1e6);
+        System.out.printf("latency p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms\n",
+                percentile(all, 0.50), percentile(all, 0.99), percentile(all, 0.999),
+                all.length == 0 ? 0 : all[all.length - 1] / 1e6);
+    }
+
+    private static double percentile(long[] sorted, double p)
+    {
+        if (sorted.length == 0)
+        {
+            return 0;
+        }
+
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+
+/**
+ * The steps of serving a request in-process, without sockets, measured by
+ * benchmarks.PipelineBenchmark: whole requests through RequestHandler, status resolution
+ * and header building in HTTPResponseConstructor, the upload boundary search, and file
+ * cache lookups. The boundary search is compared with the byte-by-byte search
+ * (findByteSequenceIndex) the server used before ByteSearch.
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+public final class PipelineOperations implements Function<String, IntSupplier>
+{
+    private final RequestHandler handler = new RequestHandler(InetAddress.getLoopbackAddress());
+    private final FileCache.Entry index = FileCache.SHARED.get("http/resources/index.html");
+
+    private final HTTPRequestReader.Request get = request("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+    private final HTTPRequestReader.Request conditional = request("GET /index.html HTTP/1.1\r\nHost: localhost\r\n"
+            + "If-None-Match: " + index.getETag() + "\r\n\r\n");
+    private final HTTPRequestReader.Request directory = request("GET /dir1 HTTP/1.1\r\nHost: localhost\r\n\r\n");
+    private final HTTPRequestReader.Request missing = request("GET /nothing/here.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+
+    private final ByteBuffer headerBuffer = ByteBuffer.allocateDirect(512);
+    private final HTTPResponseConstructor rc = new HTTPResponseConstructor("index.html");
+
+    // A 64 KB chunk of binary upload data with the closing boundary at the very end
+    private final byte[] boundary = "\r\n------WebKitFormBoundary7MA4YWxkTrZu0gW".getBytes(StandardCharsets.ISO_8859_1);
+    private final byte[] chunk = new byte[64 * 1024];
+    private final ByteSearch search = new ByteSearch(boundary);
+
+    public PipelineOperations()
+    {
+        rc.setPath();
+        rc.setExtension();
+        rc.setStatusCode();
+        rc.setFile(index);
+        rc.setContentLength(index.length);
+        rc.setKeepAlive(true);
+
+        new Random(42).nextBytes(chunk);
+        System.arraycopy(boundary, 0, chunk, chunk.length - boundary.length, boundary.length);
+    }
+
+    /**
+     * Gets one of the measured operations
+     * @param name - name of the operation, as used by the benchmark
+     * @return the operation, its result has to be consumed
+     */
+    @Override
+    public IntSupplier apply(String name)
+    {
+        switch (name)
+        {
+            case "processRequest200": return () -> serve(get);
+            case "processRequest304": return () -> serve(conditional);
+            case "processRequestDir": return () -> serve(directory);
+            case "processRequest404": return () -> serve(missing);
+            case "setStatusCode": return PipelineOperations::setStatusCode;
+            case "writeHeader": return () -> rc.writeHeader(headerBuffer).remaining();
+            case "setHeader": return () -> {
+                rc.setHeader();
+                return rc.getHeader().length();
+            };
+            case "findByteSequenceIndex": return () -> findByteSequenceIndex(chunk, boundary);
+            case "byteSearchIndexOf": return () -> search.indexOf(chunk, 0, chunk.length);
+            case "loadFileCached": return () -> FileCache.SHARED.get("http/resources/index.html").data.length;
+            default: throw new IllegalArgumentException("Unknown operation: " + name);
+        }
+    }
+
+    private static HTTPRequestReader.Request request(String text)
+    {
+        return new HTTPRequestReader.Request(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private int serve(HTTPRequestReader.Request request)
+    {
+        try
+        {
+            HTTPResponse response = handler.processRequest(request, null, true);
+            response.close();
+            return response.getStatus();
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int setStatusCode()
+    {
+        HTTPResponseConstructor rc = new HTTPResponseConstructor("dir1");
+        rc.setPath();
+        rc.setExtension();
+        rc.setStatusCode();
+        return rc.getStatusCode().length();
+    }
+
+    /**
+     * The byte-by-byte search the server used to find the multipart boundary before ByteSearch
+     */
+    private static int findByteSequenceIndex(byte[] buf, byte[] seq)
+    {
+        boolean found = false;
+        int i = 0;
+
+        // Main loop, go through whole buffer if needed
+        while (!found && i <= buf.length - seq.length)
+        {
+            int j = 0;
+
+            // Check the actual location and elements in front, if they corresponds to the sequence
+            while (j < seq.length && buf[i + j] == seq[j])
+            {
+                j++;
+            }
+            if (j == seq.length)
+            {
+                found = true;
+            }
+            else
+            {
+                i++;
+            }
+        }
+
+        return found ? i : -1;
+    }
+}
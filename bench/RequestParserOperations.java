@@ -0,0 +1,77 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+
+/**
+ * The old Scanner based request-line parsing and HTTPRequestParser, compared by
+ * benchmarks.RequestParserBenchmark
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+public final class RequestParserOperations implements Function<String, IntSupplier>
+{
+    private static final byte[] REQUEST = ("GET /dir2/kappa.png HTTP/1.1\r\n" +
+            "Host: localhost:8888\r\n" +
+            "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n" +
+            "Accept: image/avif,image/webp,*/*\r\n" +
+            "Accept-Language: en-US,en;q=0.5\r\n" +
+            "Accept-Encoding: gzip, deflate, br\r\n" +
+            "Connection: keep-alive\r\n" +
+            "Referer: http://localhost:8888/\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private final HTTPRequestParser parser = new HTTPRequestParser();
+
+    /**
+     * Gets one of the measured operations
+     * @param name - name of the operation, as used by the benchmark
+     * @return the operation, its result has to be consumed
+     */
+    @Override
+    public IntSupplier apply(String name)
+    {
+        switch (name)
+        {
+            case "scanner": return () -> scanner(REQUEST);
+            case "parser": return () -> parser(parser, REQUEST);
+            default: throw new IllegalArgumentException("Unknown operation: " + name);
+        }
+    }
+
+    /**
+     * The request-line and Connection header handling as it was done before HTTPRequestParser
+     */
+    private static int scanner(byte[] req)
+    {
+        String request = new String(req, StandardCharsets.UTF_8);
+        Scanner requestScanner = new Scanner(request);
+
+        String reqMeth = requestScanner.next();
+        String fileToGet = requestScanner.next().substring(1);
+        String http = requestScanner.next();
+
+        boolean close = false;
+        String headers = request.substring(0, request.indexOf("\r\n\r\n"));
+
+        for (String line : headers.split("\r\n"))
+        {
+            int colon = line.indexOf(':');
+
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Connection"))
+            {
+                close = line.substring(colon + 1).trim().equalsIgnoreCase("close");
+            }
+        }
+
+        return reqMeth.length() + fileToGet.length() + http.length() + (close ? 1 : 0);
+    }
+
+    private static int parser(HTTPRequestParser parser, byte[] req)
+    {
+        parser.parse(req, req.length);
+
+        boolean close = parser.headerEquals("Connection", "close");
+
+        return parser.getMethod().length() + parser.getTarget().substring(1).length()
+                + parser.getVersion().length() + (close ? 1 : 0);
+    }
+}
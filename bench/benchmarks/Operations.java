@@ -0,0 +1,30 @@
+package benchmarks;
+
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+
+/**
+ * Looks up the operations a benchmark measures. JMH does not accept benchmarks in the
+ * default package, and code in a named package can not refer to the server classes there.
+ * The operations are therefore set up by a public class in the default package, which is
+ * loaded by name once per trial. The measured calls are plain interface calls.
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+final class Operations
+{
+    private Operations()
+    {
+    }
+
+    /**
+     * Creates the operations of a benchmark
+     * @param className - default package class implementing Function&lt;String, IntSupplier&gt;
+     * @return operations by name
+     * @throws ReflectiveOperationException if the class can not be instantiated
+     */
+    @SuppressWarnings("unchecked")
+    static Function<String, IntSupplier> of(String className) throws ReflectiveOperationException
+    {
+        return (Function<String, IntSupplier>) Class.forName(className).getConstructor().newInstance();
+    }
+}
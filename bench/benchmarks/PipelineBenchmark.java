@@ -0,0 +1,110 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the steps of serving a request in-process, as set up by PipelineOperations.
+ * The access log is turned off, it would measure the disk. From the project root:
+ *   mvn -B -Pjmh verify -Djmh.args=PipelineBenchmark
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dhttp.accessLog=")
+public class PipelineBenchmark
+{
+    private IntSupplier processGet, processConditional, processDirectory, processMissing,
+            setStatusCode, writeHeader, setHeader, findByteSequenceIndex, byteSearch, loadFile;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException
+    {
+        Function<String, IntSupplier> ops = Operations.of("PipelineOperations");
+
+        processGet = ops.apply("processRequest200");
+        processConditional = ops.apply("processRequest304");
+        processDirectory = ops.apply("processRequestDir");
+        processMissing = ops.apply("processRequest404");
+        setStatusCode = ops.apply("setStatusCode");
+        writeHeader = ops.apply("writeHeader");
+        setHeader = ops.apply("setHeader");
+        findByteSequenceIndex = ops.apply("findByteSequenceIndex");
+        byteSearch = ops.apply("byteSearchIndexOf");
+        loadFile = ops.apply("loadFileCached");
+    }
+
+    @Benchmark
+    public int processRequest200()
+    {
+        return processGet.getAsInt();
+    }
+
+    @Benchmark
+    public int processRequest304()
+    {
+        return processConditional.getAsInt();
+    }
+
+    @Benchmark
+    public int processRequestDir()
+    {
+        return processDirectory.getAsInt();
+    }
+
+    @Benchmark
+    public int processRequest404()
+    {
+        return processMissing.getAsInt();
+    }
+
+    @Benchmark
+    public int setStatusCode()
+    {
+        return setStatusCode.getAsInt();
+    }
+
+    @Benchmark
+    public int writeHeader()
+    {
+        return writeHeader.getAsInt();
+    }
+
+    @Benchmark
+    public int setHeader()
+    {
+        return setHeader.getAsInt();
+    }
+
+    @Benchmark
+    public int findByteSequenceIndex()
+    {
+        return findByteSequenceIndex.getAsInt();
+    }
+
+    @Benchmark
+    public int byteSearchIndexOf()
+    {
+        return byteSearch.getAsInt();
+    }
+
+    @Benchmark
+    public int loadFileCached()
+    {
+        return loadFile.getAsInt();
+    }
+}
@@ -0,0 +1,53 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the old Scanner based request-line parsing with HTTPRequestParser, as set up
+ * by RequestParserOperations. From the project root:
+ *   mvn -B -Pjmh verify -Djmh.args=RequestParserBenchmark
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RequestParserBenchmark
+{
+    private IntSupplier scanner, parser;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException
+    {
+        Function<String, IntSupplier> ops = Operations.of("RequestParserOperations");
+
+        scanner = ops.apply("scanner");
+        parser = ops.apply("parser");
+    }
+
+    @Benchmark
+    public int scanner()
+    {
+        return scanner.getAsInt();
+    }
+
+    @Benchmark
+    public int parser()
+    {
+        return parser.getAsInt();
+    }
+}
@@ -0,0 +1,420 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log that keeps file I/O out of the request path. Request threads put records into
+ * a bounded ring buffer with compare-and-set, and one background thread formats them and
+ * writes them to the log file in batches, rotating the file when it gets too large.
+ * When the buffer is full a record is either dropped or the request thread waits for room.
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+class AccessLog
+{
+    static final AccessLog SHARED = new AccessLog(ServerConfig.ACCESS_LOG, ServerConfig.ACCESS_LOG_FORMAT.equalsIgnoreCase("json"),
+            ServerConfig.ACCESS_LOG_BUFFER, ServerConfig.ACCESS_LOG_OVERFLOW.equalsIgnoreCase("block"),
+            ServerConfig.ACCESS_LOG_MAX_BYTES, ServerConfig.ACCESS_LOG_FILES);
+
+    // Time format of the Common Log Format, e.g. 10/Oct/2000:13:55:36 +0200
+    private static final DateTimeFormatter CLF_TIME =
+            DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.ENGLISH).withZone(ZoneId.systemDefault());
+
+    private final Path path;
+    private final boolean json;
+    private final boolean block;
+    private final long maxBytes;
+    private final int maxFiles;
+
+    // Ring buffer, producers claim slots by advancing head, the writer frees them by advancing tail
+    private final AtomicReferenceArray<Record> slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private volatile long tail;
+
+    private final LongAdder dropped = new LongAdder();
+
+    private FileChannel file;
+    private long fileSize;
+    private final StringBuilder text = new StringBuilder(16 * 1024);
+    private long formattedSecond = -1;
+    private String formattedTime;
+
+    /**
+     * One request as it goes into the log
+     */
+    private static final class Record
+    {
+        final InetAddress client;
+        final long time;
+        final String method;
+        final String target;
+        final String version;
+        final int status;
+        final long bytes;
+        final long micros;
+        final String referer;
+        final String userAgent;
+
+        Record(InetAddress client, long time, String method, String target, String version, int status,
+               long bytes, long micros, String referer, String userAgent)
+        {
+            this.client = client;
+            this.time = time;
+            this.method = method;
+            this.target = target;
+            this.version = version;
+            this.status = status;
+            this.bytes = bytes;
+            this.micros = micros;
+            this.referer = referer;
+            this.userAgent = userAgent;
+        }
+    }
+
+    /**
+     * @param pathName - log file, empty to turn logging off
+     * @param json - true for one JSON object per line, false for the Combined Log Format
+     * @param capacity - number of records that can wait for the writer
+     * @param block - true to make request threads wait when the buffer is full, false to drop records
+     * @param maxBytes - size at which the file is rotated
+     * @param maxFiles - number of rotated files kept
+     */
+    AccessLog(String pathName, boolean json, int capacity, boolean block, long maxBytes, int maxFiles)
+    {
+        this.path = pathName.isEmpty() ? null : Paths.get(pathName);
+        this.json = json;
+        this.block = block;
+        this.maxBytes = maxBytes;
+        this.maxFiles = Math.max(1, maxFiles);
+
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+
+        if (path == null)
+        {
+            return;
+        }
+
+        Thread writer = new Thread(this::writeLoop, "access-log");
+        writer.setDaemon(true);
+        writer.start();
+
+        // Write out what is still buffered when the server is stopped
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "access-log-flush"));
+    }
+
+    /**
+     * Checks if records are written at all
+     * @return true if there is a log file
+     */
+    boolean isEnabled()
+    {
+        return path != null;
+    }
+
+    /**
+     * Logs a request. Only hands the record over, formatting and writing happen on the writer thread.
+     * @param client - client address
+     * @param method - request method, null if the request could not be parsed
+     * @param target - request target
+     * @param version - HTTP version
+     * @param status - status code of the response
+     * @param bytes - body bytes of the response
+     * @param startNanos - System.nanoTime() when handling of the request started
+     * @param referer - Referer header, may be null
+     * @param userAgent - User-Agent header, may be null
+     */
+    void log(InetAddress client, String method, String target, String version, int status, long bytes,
+             long startNanos, String referer, String userAgent)
+    {
+        if (path == null)
+        {
+            return;
+        }
+
+        Record record = new Record(client, System.currentTimeMillis(), method, target, version, status, bytes,
+                (System.nanoTime() - startNanos) / 1000, referer, userAgent);
+
+        while (true)
+        {
+            long slot = head.get();
+
+            if (slot - tail >= slots.length())
+            {
+                if (!block)
+                {
+                    dropped.increment();
+                    return;
+                }
+
+                // Full, wait for the writer to catch up
+                LockSupport.parkNanos(100_000);
+                continue;
+            }
+
+            if (head.compareAndSet(slot, slot + 1))
+            {
+                slots.lazySet((int) (slot & mask), record);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gets the number of records dropped because the buffer was full
+     * @return dropped records
+     */
+    long getDroppedCount()
+    {
+        return dropped.sum();
+    }
+
+    private void writeLoop()
+    {
+        while (true)
+        {
+            if (!drain())
+            {
+                // Nothing buffered, records of a busy server are picked up within a few milliseconds
+                LockSupport.parkNanos(5_000_000);
+            }
+        }
+    }
+
+    /**
+     * Formats all buffered records and writes them in one batch
+     * @return true if there was anything to write
+     */
+    private synchronized boolean drain()
+    {
+        long position = tail;
+
+        while (position < head.get())
+        {
+            int index = (int) (position & mask);
+            Record record = slots.get(index);
+
+            // Claimed, but the producer has not stored it yet
+            if (record == null)
+            {
+                break;
+            }
+
+            slots.set(index, null);
+            format(record);
+            position++;
+            tail = position;
+
+            // Keep batches bounded while a flood of records comes in
+            if (text.length() > 64 * 1024)
+            {
+                write();
+            }
+        }
+
+        boolean wrote = text.length() > 0;
+        write();
+        return wrote;
+    }
+
+    private void format(Record r)
+    {
+        String client = r.client == null ? "-" : r.client.getHostAddress();
+
+        if (json)
+        {
+            text.append("{\"time\":\"").append(Instant.ofEpochMilli(r.time))
+                    .append("\",\"client\":\"").append(client)
+                    .append("\",\"method\":");
+            appendJson(r.method);
+            text.append(",\"target\":");
+            appendJson(r.target);
+            text.append(",\"version\":");
+            appendJson(r.version);
+            text.append(",\"status\":").append(r.status)
+                    .append(",\"bytes\":").append(r.bytes)
+                    .append(",\"duration_us\":").append(r.micros)
+                    .append(",\"referer\":");
+            appendJson(r.referer);
+            text.append(",\"user_agent\":");
+            appendJson(r.userAgent);
+            text.append("}\n");
+            return;
+        }
+
+        // %h %l %u %t "%r" %>s %b "%{Referer}i" "%{User-Agent}i"
+        text.append(client).append(" - - [").append(clfTime(r.time)).append("] \"");
+
+        if (r.method == null)
+            text.append('-');
+        else
+            appendQuoted(r.method + " " + r.target + " " + r.version);
+
+        text.append("\" ").append(r.status).append(' ');
+
+        if (r.bytes > 0)
+            text.append(r.bytes);
+        else
+            text.append('-');
+
+        text.append(" \"");
+        appendQuoted(r.referer == null ? "-" : r.referer);
+        text.append("\" \"");
+        appendQuoted(r.userAgent == null ? "-" : r.userAgent);
+        text.append("\"\n");
+    }
+
+    /**
+     * Formats the log time, once per second
+     */
+    private String clfTime(long millis)
+    {
+        long second = millis / 1000;
+
+        if (second != formattedSecond)
+        {
+            formattedSecond = second;
+            formattedTime = CLF_TIME.format(Instant.ofEpochMilli(millis));
+        }
+
+        return formattedTime;
+    }
+
+    private void appendQuoted(String value)
+    {
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+
+            if (c == '"' || c == '\\')
+                text.append('\\').append(c);
+            else if (c < 0x20 || c == 0x7f)
+                text.append(String.format("\\x%02x", (int) c));
+            else
+                text.append(c);
+        }
+    }
+
+    private void appendJson(String value)
+    {
+        if (value == null)
+        {
+            text.append("null");
+            return;
+        }
+
+        text.append('"');
+
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+
+            if (c == '"' || c == '\\')
+                text.append('\\').append(c);
+            else if (c < 0x20)
+                text.append(String.format("\\u%04x", (int) c));
+            else
+                text.append(c);
+        }
+
+        text.append('"');
+    }
+
+    /**
+     * Writes the formatted text to the file, rotating it first if it would get too large
+     */
+    private void write()
+    {
+        if (text.length() == 0)
+        {
+            return;
+        }
+
+        ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(text));
+        text.setLength(0);
+
+        try
+        {
+            if (file == null || fileSize + bytes.remaining() > maxBytes)
+            {
+                open(file != null);
+            }
+
+            while (bytes.hasRemaining())
+            {
+                fileSize += file.write(bytes);
+            }
+        }
+        catch (IOException e)
+        {
+            // Losing log lines must not take the server down, try a fresh file next time
+            e.printStackTrace();
+            closeFile();
+        }
+    }
+
+    /**
+     * Opens the log file for appending, after moving the current one aside if asked to
+     */
+    private void open(boolean rotate) throws IOException
+    {
+        closeFile();
+
+        if (path.getParent() != null)
+        {
+            Files.createDirectories(path.getParent());
+        }
+
+        if (rotate)
+        {
+            // access.log.4 -> access.log.5, ..., access.log -> access.log.1
+            for (int i = maxFiles - 1; i >= 0; i--)
+            {
+                Path from = i == 0 ? path : Paths.get(path + "." + i);
+
+                if (Files.exists(from))
+                {
+                    Files.move(from, Paths.get(path + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+
+        file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileSize = file.size();
+    }
+
+    private void closeFile()
+    {
+        if (file == null)
+        {
+            return;
+        }
+
+        try
+        {
+            file.close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+        file = null;
+    }
+}
@@ -0,0 +1,116 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-wide limit for the memory request bodies take while they are received: bodies kept
+ * in memory and the buffers of bodies streamed to disk. A reader reserves the bytes before it
+ * takes in the body and gives them back once the request has been handled. While the budget
+ * is used up, readers stop reading, so TCP flow control holds the senders back, and a request
+ * that has waited too long is refused.
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+final class BodyBudget
+{
+    static final BodyBudget SHARED = new BodyBudget(ServerConfig.BODY_BUDGET_BYTES);
+
+    private final long limit;
+
+    // Guarded by this
+    private long used;
+    private long peak;
+
+    private final LongAdder refused = new LongAdder();
+
+    /**
+     * @param limit - bytes that may be reserved at once
+     */
+    BodyBudget(long limit)
+    {
+        this.limit = limit;
+    }
+
+    /**
+     * Reserves bytes if they are available, without waiting. A body larger than the whole
+     * budget is let through when nothing else is reserved, it could never fit otherwise.
+     * @param bytes - number of bytes
+     * @return true if the bytes are reserved and have to be released later
+     */
+    synchronized boolean tryAcquire(long bytes)
+    {
+        if (used > 0 && used + bytes > limit)
+        {
+            return false;
+        }
+
+        used += bytes;
+        peak = Math.max(peak, used);
+        return true;
+    }
+
+    /**
+     * Waits until the bytes could be reserved or the time is up, without reserving them
+     * @param bytes - number of bytes
+     * @param millis - longest time to wait
+     */
+    synchronized void await(long bytes, long millis) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + millis;
+        long left = millis;
+
+        while (used > 0 && used + bytes > limit && left > 0)
+        {
+            wait(left);
+            left = deadline - System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Gives back reserved bytes
+     * @param bytes - number of bytes, as reserved
+     */
+    synchronized void release(long bytes)
+    {
+        used -= bytes;
+        notifyAll();
+    }
+
+    /**
+     * Counts a request that was answered 503 because no memory became available in time
+     */
+    void refused()
+    {
+        refused.increment();
+    }
+
+    long getLimit()
+    {
+        return limit;
+    }
+
+    synchronized long getUsed()
+    {
+        return used;
+    }
+
+    /**
+     * Gets the largest number of bytes that were reserved at once
+     * @return peak usage
+     */
+    synchronized long getPeak()
+    {
+        return peak;
+    }
+
+    long getRefused()
+    {
+        return refused.sum();
+    }
+
+    /**
+     * Short summary of the budget state, used for the periodic statistics print
+     * @return summary string
+     */
+    String stats()
+    {
+        return String.format("bodies used=%d peak=%d limit=%d refused=%d", getUsed(), getPeak(), limit, getRefused());
+    }
+}
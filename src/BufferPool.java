@@ -0,0 +1,279 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of reusable I/O buffers, so reading requests and writing responses does not allocate
+ * in steady state. Buffers come in power-of-two size classes from 512 bytes to 1 MB, either
+ * as heap arrays or as direct ByteBuffers. A released buffer goes to a small cache of the
+ * releasing thread first and to a bounded free list shared by all threads after that.
+ * Larger buffers are simply allocated and never kept.
+ *
+ * Hits, misses and the buffers handed out but not yet returned are counted. On an idle server
+ * the outstanding count should drop back to zero, a count that keeps growing means a leak.
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+final class BufferPool
+{
+    static final BufferPool SHARED = new BufferPool(ServerConfig.BUFFER_POOL_BYTES, ServerConfig.BUFFER_POOL_THREAD_CACHE);
+
+    private static final int MIN_SHIFT = 9, MAX_SHIFT = 20;
+    private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+    // Buffers per size class a thread keeps for itself, only for classes up to 64 KB
+    private static final int THREAD_CACHE_SIZE = 4;
+    private static final int THREAD_CACHE_MAX_SHIFT = 16;
+
+    private final Shelf[] heap = new Shelf[CLASSES];
+    private final Shelf[] direct = new Shelf[CLASSES];
+    private final ThreadLocal<ThreadCache> threadCache;
+
+    private final LongAdder hits = new LongAdder(),
+            misses = new LongAdder(),
+            unpooled = new LongAdder(),
+            dropped = new LongAdder(),
+            outstanding = new LongAdder();
+
+    /**
+     * Free buffers of one size class and kind
+     */
+    private static final class Shelf
+    {
+        final ConcurrentLinkedQueue<Object> free = new ConcurrentLinkedQueue<>();
+        final AtomicInteger count = new AtomicInteger();
+        final int limit;
+
+        Shelf(int limit)
+        {
+            this.limit = limit;
+        }
+    }
+
+    /**
+     * Per-thread stacks of free buffers, heap classes first, then direct classes
+     */
+    private static final class ThreadCache
+    {
+        final Object[][] stacks = new Object[CLASSES * 2][THREAD_CACHE_SIZE];
+        final int[] sizes = new int[CLASSES * 2];
+    }
+
+    /**
+     * @param maxBytes - upper bound for the bytes kept on the shared free lists, split evenly over the classes
+     * @param perThread - true to give every thread a small cache of its own in front of the shared lists
+     */
+    BufferPool(long maxBytes, boolean perThread)
+    {
+        long perClass = maxBytes / (CLASSES * 2);
+
+        for (int c = 0; c < CLASSES; c++)
+        {
+            int limit = (int) Math.min(Integer.MAX_VALUE, perClass >> (c + MIN_SHIFT));
+            heap[c] = new Shelf(limit);
+            direct[c] = new Shelf(limit);
+        }
+
+        this.threadCache = perThread ? ThreadLocal.withInitial(ThreadCache::new) : null;
+    }
+
+    /**
+     * Gets a heap array of at least the requested size
+     * @param minSize - number of bytes needed
+     * @return an array, possibly larger than asked for and with old contents
+     */
+    byte[] acquireArray(int minSize)
+    {
+        int c = classOf(minSize);
+
+        if (c < 0)
+        {
+            unpooled.increment();
+            return new byte[minSize];
+        }
+
+        outstanding.increment();
+        Object buffer = take(c, false);
+
+        if (buffer != null)
+        {
+            hits.increment();
+            return (byte[]) buffer;
+        }
+
+        misses.increment();
+        return new byte[1 << (c + MIN_SHIFT)];
+    }
+
+    /**
+     * Gets a cleared direct buffer of at least the requested capacity
+     * @param minSize - number of bytes needed
+     * @return a buffer, possibly with a larger capacity than asked for
+     */
+    ByteBuffer acquireDirect(int minSize)
+    {
+        int c = classOf(minSize);
+
+        if (c < 0)
+        {
+            unpooled.increment();
+            return ByteBuffer.allocateDirect(minSize);
+        }
+
+        outstanding.increment();
+        Object buffer = take(c, true);
+
+        if (buffer != null)
+        {
+            hits.increment();
+            return ((ByteBuffer) buffer).clear();
+        }
+
+        misses.increment();
+        return ByteBuffer.allocateDirect(1 << (c + MIN_SHIFT));
+    }
+
+    /**
+     * Returns an array to the pool, it must not be used afterwards
+     * @param array - an array from acquireArray()
+     */
+    void release(byte[] array)
+    {
+        int c = exactClassOf(array.length);
+
+        if (c >= 0)
+        {
+            outstanding.decrement();
+            put(c, false, array);
+        }
+    }
+
+    /**
+     * Returns a direct buffer to the pool, it must not be used afterwards
+     * @param buffer - a buffer from acquireDirect()
+     */
+    void release(ByteBuffer buffer)
+    {
+        int c = buffer.isDirect() ? exactClassOf(buffer.capacity()) : -1;
+
+        if (c >= 0)
+        {
+            outstanding.decrement();
+            put(c, true, buffer);
+        }
+    }
+
+    private Object take(int c, boolean isDirect)
+    {
+        if (threadCache != null && c + MIN_SHIFT <= THREAD_CACHE_MAX_SHIFT)
+        {
+            ThreadCache cache = threadCache.get();
+            int slot = isDirect ? CLASSES + c : c;
+
+            if (cache.sizes[slot] > 0)
+            {
+                int top = --cache.sizes[slot];
+                Object buffer = cache.stacks[slot][top];
+                cache.stacks[slot][top] = null;
+                return buffer;
+            }
+        }
+
+        Shelf shelf = isDirect ? direct[c] : heap[c];
+        Object buffer = shelf.free.poll();
+
+        if (buffer != null)
+        {
+            shelf.count.decrementAndGet();
+        }
+
+        return buffer;
+    }
+
+    private void put(int c, boolean isDirect, Object buffer)
+    {
+        if (threadCache != null && c + MIN_SHIFT <= THREAD_CACHE_MAX_SHIFT)
+        {
+            ThreadCache cache = threadCache.get();
+            int slot = isDirect ? CLASSES + c : c;
+
+            if (cache.sizes[slot] < THREAD_CACHE_SIZE)
+            {
+                cache.stacks[slot][cache.sizes[slot]++] = buffer;
+                return;
+            }
+        }
+
+        Shelf shelf = isDirect ? direct[c] : heap[c];
+
+        // Past the limit the buffer is left to the garbage collector
+        if (shelf.count.incrementAndGet() > shelf.limit)
+        {
+            shelf.count.decrementAndGet();
+            dropped.increment();
+            return;
+        }
+
+        shelf.free.offer(buffer);
+    }
+
+    /**
+     * Finds the smallest class that holds a size
+     * @return class index, -1 if the size is larger than the largest class
+     */
+    private static int classOf(int size)
+    {
+        if (size > 1 << MAX_SHIFT)
+        {
+            return -1;
+        }
+
+        int shift = size <= 1 << MIN_SHIFT ? MIN_SHIFT : 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift - MIN_SHIFT;
+    }
+
+    /**
+     * Finds the class of exactly this capacity
+     * @return class index, -1 if buffers of this capacity are not pooled
+     */
+    private static int exactClassOf(int capacity)
+    {
+        if (Integer.bitCount(capacity) != 1 || capacity < 1 << MIN_SHIFT || capacity > 1 << MAX_SHIFT)
+        {
+            return -1;
+        }
+
+        return Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT;
+    }
+
+    long getHits()
+    {
+        return hits.sum();
+    }
+
+    long getMisses()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * Gets the number of pooled buffers that have been handed out and not returned
+     * @return outstanding buffers
+     */
+    long getOutstanding()
+    {
+        return outstanding.sum();
+    }
+
+    /**
+     * Short summary of the pool state, used for the periodic statistics print
+     * @return summary string
+     */
+    String stats()
+    {
+        long h = getHits(), m = getMisses();
+
+        return String.format("buffers hits=%d misses=%d hitRate=%.1f%% outstanding=%d unpooled=%d dropped=%d",
+                h, m, h + m == 0 ? 0.0 : 100.0 * h / (h + m), getOutstanding(), unpooled.sum(), dropped.sum());
+    }
+}
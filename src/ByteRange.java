@@ -0,0 +1,156 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * One satisfiable byte range of a file, as asked for with a Range header
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+final class ByteRange
+{
+    // More ranges than this in one request are not worth serving piecewise
+    private static final int MAX_RANGES = 16;
+
+    final long start;
+    final long end;
+
+    private ByteRange(long start, long end)
+    {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Gets the number of bytes in the range
+     * @return range length
+     */
+    long length()
+    {
+        return end - start + 1;
+    }
+
+    /**
+     * Gets the Content-Range value for this range
+     * @param total - length of the whole file
+     * @return e.g. "bytes 0-499/1234"
+     */
+    String contentRange(long total)
+    {
+        return "bytes " + start + "-" + end + "/" + total;
+    }
+
+    /**
+     * Parses a Range header, e.g. "bytes=0-499, 1000-, -500"
+     * @param header - the header value
+     * @param length - length of the file
+     * @return the satisfiable ranges, overlapping ones merged, an empty list if none is
+     *         satisfiable (416), or null if the header is invalid and should be ignored
+     *         (200 with the whole file)
+     */
+    static List<ByteRange> parse(String header, long length)
+    {
+        String value = header.trim();
+
+        if (!value.regionMatches(true, 0, "bytes=", 0, 6))
+        {
+            return null;
+        }
+
+        String[] specs = value.substring(6).split(",");
+
+        if (specs.length > MAX_RANGES)
+        {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<>(specs.length);
+
+        for (String spec : specs)
+        {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+
+            if (dash < 0)
+            {
+                return null;
+            }
+
+            try
+            {
+                String first = spec.substring(0, dash).trim(), last = spec.substring(dash + 1).trim();
+
+                if (first.isEmpty())
+                {
+                    // Suffix range: the last n bytes
+                    long n = Long.parseLong(last);
+
+                    if (n < 0)
+                    {
+                        return null;
+                    }
+                    if (n > 0 && length > 0)
+                    {
+                        ranges.add(new ByteRange(Math.max(0, length - n), length - 1));
+                    }
+                    continue;
+                }
+
+                long start = Long.parseLong(first);
+                long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+
+                if (start < 0 || end < start)
+                {
+                    return null;
+                }
+
+                // Ranges starting past the end are unsatisfiable, others are cut to the file
+                if (start < length)
+                {
+                    ranges.add(new ByteRange(start, Math.min(end, length - 1)));
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                return null;
+            }
+        }
+
+        return coalesce(ranges);
+    }
+
+    /**
+     * Merges ranges that overlap or touch, so "bytes=0-,0-,0-" can not make the file be sent
+     * several times over. Ranges that are apart keep the order they were asked for in.
+     */
+    private static List<ByteRange> coalesce(List<ByteRange> ranges)
+    {
+        if (ranges.size() < 2)
+        {
+            return ranges;
+        }
+
+        List<ByteRange> sorted = new ArrayList<>(ranges);
+        sorted.sort(Comparator.comparingLong(r -> r.start));
+
+        List<ByteRange> merged = new ArrayList<>(sorted.size());
+        ByteRange current = sorted.get(0);
+
+        for (int i = 1; i < sorted.size(); i++)
+        {
+            ByteRange next = sorted.get(i);
+
+            if (next.start <= current.end + 1)
+            {
+                current = new ByteRange(current.start, Math.max(current.end, next.end));
+            }
+            else
+            {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+
+        return merged.size() == ranges.size() ? ranges : merged;
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Boyer-Moore-Horspool search for a fixed byte pattern. The skip table is built once,
+ * so searching the same pattern many times (e.g. a multipart boundary) is cheap and
+ * usually looks at only a fraction of the bytes.
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+class ByteSearch
+{
+    private final byte[] pattern;
+    private final int[] skip = new int[256];
+
+    /**
+     * @param pattern - the bytes to look for, must not be empty
+     */
+    ByteSearch(byte[] pattern)
+    {
+        this.pattern = pattern.clone();
+
+        int last = pattern.length - 1;
+
+        for (int i = 0; i < skip.length; i++)
+        {
+            skip[i] = pattern.length;
+        }
+
+        for (int i = 0; i < last; i++)
+        {
+            skip[pattern[i] & 0xff] = last - i;
+        }
+    }
+
+    /**
+     * Gets the length of the pattern
+     * @return pattern length in bytes
+     */
+    int length()
+    {
+        return pattern.length;
+    }
+
+    /**
+     * Finds the first occurrence of the pattern in buf[from..to)
+     * @param buf - buffer to search
+     * @param from - first index to look at
+     * @param to - end of the searched region
+     * @return index of the first occurrence, -1 if not found
+     */
+    int indexOf(byte[] buf, int from, int to)
+    {
+        int last = pattern.length - 1;
+        int i = from;
+
+        while (i <= to - pattern.length)
+        {
+            int j = last;
+
+            // Compare from the end of the pattern, a mismatch there allows the longest skip
+            while (j >= 0 && buf[i + j] == pattern[j])
+            {
+                j--;
+            }
+
+            if (j < 0)
+            {
+                return i;
+            }
+
+            i += skip[buf[i + last] & 0xff];
+        }
+
+        return -1;
+    }
+}
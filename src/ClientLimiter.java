@@ -0,0 +1,265 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides at accept time whether a connection is served, before any handler is created.
+ * Every client address has a token bucket for new connections and a cap on open connections,
+ * and there is a cap on open connections in total. The per-client state is updated with
+ * compare-and-set only, and is dropped again once a client has been idle for a while.
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+class ClientLimiter
+{
+    static final ClientLimiter SHARED = new ClientLimiter(ServerConfig.RATE_LIMIT, ServerConfig.RATE_BURST,
+            ServerConfig.MAX_CONNECTIONS_PER_CLIENT, ServerConfig.MAX_CONNECTIONS,
+            ServerConfig.LIMIT_ACTION.equalsIgnoreCase("reset"), ServerConfig.CLIENT_EXPIRY);
+
+    enum Verdict { ACCEPT, RATE_LIMITED, TOO_MANY_CONNECTIONS, OVERLOADED }
+
+    private final long interval;
+    private final long tolerance;
+    private final int maxPerClient;
+    private final int maxTotal;
+    private final boolean reset;
+    private final long expiryNanos;
+
+    private final ConcurrentHashMap<InetAddress, Client> clients = new ConcurrentHashMap<>();
+    private final AtomicInteger open = new AtomicInteger();
+    private final LongAdder refused = new LongAdder();
+
+    /**
+     * @param rate - new connections per second per client, 0 for no limit
+     * @param burst - connections a client may open at once above the rate
+     * @param maxPerClient - open connections per client, 0 for no limit
+     * @param maxTotal - open connections in total, 0 for no limit
+     * @param reset - true to reset refused connections instead of answering them
+     * @param expiry - milliseconds after which an idle client's state is dropped
+     */
+    ClientLimiter(int rate, int burst, int maxPerClient, int maxTotal, boolean reset, long expiry)
+    {
+        this.interval = rate > 0 ? 1_000_000_000L / rate : 0;
+        this.tolerance = interval * Math.max(burst, 1);
+        this.maxPerClient = maxPerClient > 0 ? maxPerClient : Integer.MAX_VALUE;
+        this.maxTotal = maxTotal > 0 ? maxTotal : Integer.MAX_VALUE;
+        this.reset = reset;
+        this.expiryNanos = expiry * 1_000_000L;
+
+        Thread sweeper = new Thread(this::sweep, "client-limiter");
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+
+    /**
+     * State of one client address
+     */
+    private static final class Client
+    {
+        // Theoretical arrival time of the next connection, the token bucket in a single number
+        final AtomicLong nextArrival = new AtomicLong(Long.MIN_VALUE);
+        // Open connections, -1 once the state has been expired
+        final AtomicInteger connections = new AtomicInteger();
+    }
+
+    /**
+     * Checks the limits for a new connection and counts it if it is accepted.
+     * An accepted connection must be released when it is closed.
+     * @param address - the client's address
+     * @return ACCEPT, or the limit that refused the connection
+     */
+    Verdict acquire(InetAddress address)
+    {
+        long now = System.nanoTime();
+        Client client;
+
+        while (true)
+        {
+            client = clients.computeIfAbsent(address, a -> new Client());
+            int count = client.connections.get();
+
+            // Being expired by the sweeper, start over with a fresh state
+            if (count < 0)
+            {
+                clients.remove(address, client);
+                continue;
+            }
+
+            if (count >= maxPerClient)
+            {
+                refused.increment();
+                return Verdict.TOO_MANY_CONNECTIONS;
+            }
+
+            if (client.connections.compareAndSet(count, count + 1))
+            {
+                break;
+            }
+        }
+
+        if (!takeToken(client, now))
+        {
+            client.connections.decrementAndGet();
+            refused.increment();
+            return Verdict.RATE_LIMITED;
+        }
+
+        if (open.incrementAndGet() > maxTotal)
+        {
+            open.decrementAndGet();
+            client.connections.decrementAndGet();
+            refused.increment();
+            return Verdict.OVERLOADED;
+        }
+
+        return Verdict.ACCEPT;
+    }
+
+    /**
+     * Generic cell rate algorithm: a connection is allowed if the next arrival time does not
+     * run more than the burst ahead of now
+     */
+    private boolean takeToken(Client client, long now)
+    {
+        if (interval == 0)
+        {
+            return true;
+        }
+
+        while (true)
+        {
+            long arrival = client.nextArrival.get();
+            long next = Math.max(arrival, now) + interval;
+
+            if (next - now > tolerance)
+            {
+                return false;
+            }
+
+            if (client.nextArrival.compareAndSet(arrival, next))
+            {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases an accepted connection once it is closed
+     * @param address - the client's address
+     */
+    void release(InetAddress address)
+    {
+        open.decrementAndGet();
+        Client client = clients.get(address);
+
+        if (client != null)
+        {
+            client.connections.decrementAndGet();
+        }
+    }
+
+    /**
+     * Turns away a refused connection, with a short 429 or 503 response or a reset
+     * @param channel - the refused connection
+     * @param verdict - why it was refused
+     */
+    void refuse(SocketChannel channel, Verdict verdict)
+    {
+        try
+        {
+            if (reset)
+            {
+                channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+            }
+            else
+            {
+                // Small enough for the socket buffer, one write does not block
+                channel.write(refusal(verdict));
+            }
+        }
+        catch (IOException e)
+        {
+            // The client is gone already, nothing more to do
+        }
+        finally
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static ByteBuffer refusal(Verdict verdict)
+    {
+        return HTTPResponseConstructor.refusal(verdict == Verdict.OVERLOADED ? "503 Service Unavailable" : "429 Too Many Requests");
+    }
+
+    /**
+     * Drops the state of clients without open connections whose bucket has been full for a while
+     */
+    private void sweep()
+    {
+        while (true)
+        {
+            try
+            {
+                Thread.sleep(Math.max(expiryNanos / 1_000_000L, 1000));
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+
+            long now = System.nanoTime();
+
+            clients.forEach((address, client) ->
+            {
+                long arrival = client.nextArrival.get();
+                boolean idle = arrival == Long.MIN_VALUE || now - arrival > expiryNanos;
+
+                // Marked first, so a connection that is just being counted starts a new state
+                if (idle && client.connections.compareAndSet(0, -1))
+                {
+                    clients.remove(address, client);
+                }
+            });
+        }
+    }
+
+    /**
+     * Gets the number of client addresses with state
+     * @return number of tracked clients
+     */
+    int getClientCount()
+    {
+        return clients.size();
+    }
+
+    /**
+     * Gets the number of connections refused since startup
+     * @return refused connections
+     */
+    long getRefusedCount()
+    {
+        return refused.sum();
+    }
+
+    /**
+     * Short summary of the limiter state, used for the periodic statistics print
+     * @return summary string
+     */
+    String stats()
+    {
+        return String.format("limiter clients=%d open=%d refused=%d", getClientCount(), open.get(), refused.sum());
+    }
+}
@@ -0,0 +1,445 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Shared cache of gzip-encoded variants of text files. A precompressed sibling on disk
+ * (index.html.gz next to index.html) is used when it is at least as new as the file,
+ * otherwise small files are compressed once and the result is kept in memory, bounded
+ * by the total number of bytes. Lookups take no lock, eviction is the same sampled LRU
+ * as in the file cache, and concurrent misses on a file share one compression. Files that do not get smaller, and large files without a sibling,
+ * are remembered as not worth compressing.
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+class CompressedCache
+{
+    static final CompressedCache SHARED = new CompressedCache(ServerConfig.GZIP_CACHE_BYTES, ServerConfig.GZIP_LEVEL);
+
+    // A variant has to save at least this share of the original to be used
+    private static final double MIN_SAVING = 0.1;
+
+    private static final long NONE_WEIGHT = 64;
+
+    // Entries looked at for each eviction
+    private static final int EVICTION_SAMPLE = 8;
+
+    // Member header without file name, time or extra fields, and the size of the CRC32 and length trailer
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int GZIP_TRAILER = 8;
+
+    private final long maxBytes;
+    private final int level;
+
+    private final ConcurrentHashMap<String, Variant> variants = new ConcurrentHashMap<>(64);
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    // Compressions in progress, by path to the original
+    private final ConcurrentHashMap<String, CompletableFuture<Variant>> loading = new ConcurrentHashMap<>();
+
+    // Where the next eviction sample starts, guarded by evictionLock
+    private final Object evictionLock = new Object();
+    private Iterator<Variant> evictionCursor;
+
+    private final LongAdder compressions = new LongAdder(),
+            precompressed = new LongAdder();
+
+    /**
+     * @param maxBytes - upper bound for the sum of all variants held in memory
+     * @param level - deflate level for on-the-fly compression
+     */
+    CompressedCache(long maxBytes, int level)
+    {
+        this.maxBytes = maxBytes;
+        this.level = level;
+    }
+
+    /**
+     * The gzip-encoded variant of one version of a file, either in memory or in a sibling file
+     */
+    static final class Variant
+    {
+        final String original;
+        final long lastModified;
+
+        // Sibling file the variant is streamed from when it is too large to hold, else null
+        final String path;
+        final byte[] data;
+        final long length;
+
+        // Encoded header lines, filled in by HTTPResponseConstructor
+        volatile byte[] fileHeaders;
+        volatile byte[] validatorHeaders;
+
+        private final String eTag;
+        private volatile long usedAt = System.currentTimeMillis();
+
+        private Variant(FileCache.Entry file, String path, byte[] data, long length)
+        {
+            this.original = file.path;
+            this.lastModified = file.lastModified;
+            this.path = path;
+            this.data = data;
+            this.length = length;
+
+            // Each encoding of a file is a representation of its own and needs a tag of its own
+            String tag = file.getETag();
+            this.eTag = tag.substring(0, tag.length() - 1) + "-gzip\"";
+        }
+
+        /**
+         * Gets the entity tag of the variant, the file's tag marked as gzip
+         * @return the quoted entity tag
+         */
+        String getETag()
+        {
+            return eTag;
+        }
+
+        /**
+         * Records a use for eviction, written only once per millisecond
+         */
+        private void touch(long now)
+        {
+            if (usedAt != now)
+            {
+                usedAt = now;
+            }
+        }
+
+        private boolean isNone()
+        {
+            return data == null && path == null;
+        }
+
+        private long weight()
+        {
+            return data != null ? data.length : NONE_WEIGHT;
+        }
+    }
+
+    /**
+     * Checks if a media type is worth compressing, images and fonts already are compressed
+     * @param contentType - the Content-Type value
+     * @return true for textual types
+     */
+    static boolean isCompressible(String contentType)
+    {
+        return contentType != null && MimeTypes.isText(contentType);
+    }
+
+    /**
+     * Checks if a client accepts gzip, i.e. lists gzip or * in Accept-Encoding without q=0
+     * @param acceptEncoding - the Accept-Encoding value, may be null
+     * @return true if a gzip body may be sent
+     */
+    static boolean acceptsGzip(String acceptEncoding)
+    {
+        if (acceptEncoding == null)
+        {
+            return false;
+        }
+
+        for (String coding : acceptEncoding.split(","))
+        {
+            String[] params = coding.split(";");
+            String name = params[0].trim();
+
+            if (!name.equalsIgnoreCase("gzip") && !name.equalsIgnoreCase("x-gzip") && !name.equals("*"))
+            {
+                continue;
+            }
+
+            boolean refused = false;
+
+            for (int i = 1; i < params.length; i++)
+            {
+                String param = params[i].trim();
+
+                if (param.startsWith("q=") || param.startsWith("Q="))
+                {
+                    try
+                    {
+                        refused = Double.parseDouble(param.substring(2)) <= 0;
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        refused = true;
+                    }
+                }
+            }
+
+            if (!refused)
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Gets the gzip variant of a file, compressing it if needed
+     * @param file - cache entry of the file
+     * @return the variant, or null if the file is sent uncompressed
+     */
+    Variant get(FileCache.Entry file)
+    {
+        Variant variant = variants.get(file.path);
+
+        if (variant == null || variant.lastModified != file.lastModified)
+        {
+            variant = load(file);
+        }
+        else
+        {
+            variant.touch(System.currentTimeMillis());
+        }
+
+        return variant.isNone() ? null : variant;
+    }
+
+    /**
+     * Finds or builds the variant of one file version and stores it, or waits for the
+     * compression another request has started
+     */
+    private Variant load(FileCache.Entry file)
+    {
+        CompletableFuture<Variant> mine = new CompletableFuture<>();
+        CompletableFuture<Variant> running = loading.putIfAbsent(file.path, mine);
+
+        // Another request is compressing the file already, its result is shared if it is of the same version
+        if (running != null)
+        {
+            Variant shared = running.join();
+            return shared != null && shared.lastModified == file.lastModified ? shared : build(file);
+        }
+
+        Variant variant = null;
+
+        try
+        {
+            Variant built = build(file);
+            variant = built;
+
+            // Stored and marked done in one step, so no request finds neither the variant nor the compression
+            loading.computeIfPresent(file.path, (path, current) -> {
+                if (current == mine)
+                {
+                    store(built);
+                }
+                return current == mine ? null : current;
+            });
+        }
+        finally
+        {
+            loading.remove(file.path, mine);
+            mine.complete(variant);
+        }
+
+        return variant;
+    }
+
+    private Variant build(FileCache.Entry file)
+    {
+        Variant variant = fromSibling(file);
+        return variant != null ? variant : compress(file);
+    }
+
+    private void store(Variant variant)
+    {
+        Variant old = variants.put(variant.original, variant);
+
+        if (old != null)
+        {
+            totalBytes.addAndGet(-old.weight());
+        }
+
+        if (totalBytes.addAndGet(variant.weight()) > maxBytes)
+        {
+            evict();
+        }
+    }
+
+    /**
+     * Uses a precompressed .gz sibling if there is one and it is not older than the file
+     * @return the variant, or null if there is no usable sibling
+     */
+    private Variant fromSibling(FileCache.Entry file)
+    {
+        File sibling = new File(file.path + ".gz");
+        long length = sibling.length();
+
+        if (!sibling.isFile() || sibling.lastModified() < file.lastModified)
+        {
+            return null;
+        }
+
+        precompressed.increment();
+
+        if (length > ServerConfig.CACHE_MAX_FILE || length > maxBytes)
+        {
+            return new Variant(file, sibling.getPath(), null, length);
+        }
+
+        try
+        {
+            byte[] data = Files.readAllBytes(sibling.toPath());
+            return new Variant(file, null, data, data.length);
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Compresses a file held in the file cache
+     * @return the variant, or a none-variant if the file is not in memory or does not get smaller
+     */
+    private Variant compress(FileCache.Entry file)
+    {
+        if (file.data == null || maxBytes <= 0)
+        {
+            return new Variant(file, null, null, 0);
+        }
+
+        byte[] data = gzip(file.data, (int) Math.min(file.data.length * (1 - MIN_SAVING), maxBytes));
+        compressions.increment();
+
+        return data == null ? new Variant(file, null, null, 0) : new Variant(file, null, data, data.length);
+    }
+
+    /**
+     * Encodes data as a gzip member with a Deflater of its own, which is ended right away
+     * instead of waiting for the garbage collector to free its native memory. The output
+     * goes straight into an array of the largest acceptable size, compression stops as soon
+     * as the result would not fit.
+     * @param data - the bytes to compress
+     * @param limit - largest acceptable size of the result
+     * @return the gzip encoded bytes, or null if they would be larger than limit
+     */
+    private byte[] gzip(byte[] data, int limit)
+    {
+        int end = limit - GZIP_TRAILER;
+
+        if (end <= GZIP_HEADER.length)
+        {
+            return null;
+        }
+
+        byte[] out = new byte[limit];
+        System.arraycopy(GZIP_HEADER, 0, out, 0, GZIP_HEADER.length);
+        int pos = GZIP_HEADER.length;
+
+        Deflater deflater = new Deflater(level, true);
+
+        try
+        {
+            deflater.setInput(data);
+            deflater.finish();
+
+            while (!deflater.finished() && pos < end)
+            {
+                pos += deflater.deflate(out, pos, end - pos);
+            }
+
+            if (!deflater.finished())
+            {
+                return null;
+            }
+        }
+        finally
+        {
+            deflater.end();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        putIntLE(out, pos, (int) crc.getValue());
+        putIntLE(out, pos + 4, data.length);
+
+        return Arrays.copyOf(out, pos + GZIP_TRAILER);
+    }
+
+    private static void putIntLE(byte[] b, int off, int value)
+    {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >>> 8);
+        b[off + 2] = (byte) (value >>> 16);
+        b[off + 3] = (byte) (value >>> 24);
+    }
+
+    /**
+     * Drops sampled least recently used variants until the cache is within its byte bound
+     */
+    private void evict()
+    {
+        synchronized (evictionLock)
+        {
+            while (totalBytes.get() > maxBytes)
+            {
+                Variant victim = null;
+
+                for (int i = 0; i < EVICTION_SAMPLE; i++)
+                {
+                    if (evictionCursor == null || !evictionCursor.hasNext())
+                    {
+                        evictionCursor = variants.values().iterator();
+
+                        if (!evictionCursor.hasNext())
+                        {
+                            return;
+                        }
+                    }
+
+                    Variant candidate = evictionCursor.next();
+
+                    if (victim == null || candidate.usedAt < victim.usedAt)
+                    {
+                        victim = candidate;
+                    }
+                }
+
+                if (variants.remove(victim.original, victim))
+                {
+                    totalBytes.addAndGet(-victim.weight());
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the variant of a file, e.g. after it has been overwritten. A compression of the
+     * file that is still in progress is not stored.
+     * @param pathName - path to the original file
+     */
+    void invalidate(String pathName)
+    {
+        loading.remove(pathName);
+        Variant old = variants.remove(pathName);
+
+        if (old != null)
+        {
+            totalBytes.addAndGet(-old.weight());
+        }
+    }
+
+    /**
+     * Short summary of the cache state, used for the periodic statistics print
+     * @return summary string
+     */
+    String stats()
+    {
+        return String.format("gzip compressions=%d precompressed=%d bytes=%d",
+                compressions.sum(), precompressed.sum(), totalBytes.get());
+    }
+}
@@ -0,0 +1,285 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs client connection handlers, either on a bounded worker pool or on one
+ * virtual thread per connection, and keeps track of queued and rejected connections
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+class ConnectionExecutor
+{
+    enum Mode { POOL, VIRTUAL }
+
+    enum OverloadPolicy { QUEUE, REJECT, SHED }
+
+    private final Mode mode;
+    private final OverloadPolicy policy;
+    private final ExecutorService executor;
+    private final BlockingQueue<Runnable> queue;
+    private final LongAdder rejected = new LongAdder();
+    private final AtomicInteger active = new AtomicInteger();
+
+    /**
+     * Creates an executor from the settings in ServerConfig
+     */
+    ConnectionExecutor()
+    {
+        this(ServerConfig.EXECUTOR, ServerConfig.WORKERS, ServerConfig.QUEUE_SIZE, ServerConfig.OVERLOAD_POLICY);
+    }
+
+    /**
+     * @param mode - "pool" or "virtual"
+     * @param workers - number of worker threads in pool mode
+     * @param queueSize - number of connections that may wait for a worker in pool mode
+     * @param policy - "queue", "reject" or "shed", used when the queue is full
+     */
+    ConnectionExecutor(String mode, int workers, int queueSize, String policy)
+    {
+        this.policy = OverloadPolicy.valueOf(policy.toUpperCase());
+
+        ExecutorService virtual = mode.equalsIgnoreCase("virtual") ? newVirtualThreadExecutor() : null;
+
+        if (virtual != null)
+        {
+            this.mode = Mode.VIRTUAL;
+            this.executor = virtual;
+            this.queue = null;
+        }
+        else
+        {
+            if (mode.equalsIgnoreCase("virtual"))
+            {
+                System.err.println("Virtual threads are not supported by this JVM, using worker pool");
+            }
+
+            this.mode = Mode.POOL;
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+            this.executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS, queue,
+                    new WorkerThreadFactory(),
+                    this.policy == OverloadPolicy.QUEUE ? new WaitForRoomPolicy() : new ThreadPoolExecutor.AbortPolicy());
+        }
+    }
+
+    /**
+     * Hands a connection over to a handler. If the pool is saturated the overload policy decides
+     * whether the caller waits, the client gets a 503 or the connection is reset.
+     * @param clientSocket - the accepted connection
+     * @param handler - the handler that serves the connection
+     * @return true if the handler runs, false if the connection was turned away
+     */
+    boolean execute(Socket clientSocket, Runnable handler)
+    {
+        long queued = System.nanoTime();
+
+        Runnable task = () -> {
+            Metrics.SHARED.queue.recordSince(queued);
+            active.incrementAndGet();
+            try
+            {
+                handler.run();
+            }
+            finally
+            {
+                active.decrementAndGet();
+            }
+        };
+
+        try
+        {
+            // With the "queue" policy a full pool makes this call wait for room instead of throwing
+            executor.execute(task);
+            return true;
+        }
+        catch (RejectedExecutionException e)
+        {
+            rejected.increment();
+
+            if (policy == OverloadPolicy.REJECT)
+            {
+                reject(clientSocket);
+            }
+            else
+            {
+                shed(clientSocket);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Answers an overloaded connection with 503 Service Unavailable and closes it
+     * @param clientSocket - the rejected connection
+     */
+    private void reject(Socket clientSocket)
+    {
+        try
+        {
+            // The status page comes from the file cache, the acceptor never waits for the disk
+            ByteBuffer response = HTTPResponseConstructor.refusal("503 Service Unavailable");
+
+            if (clientSocket.getChannel() != null)
+            {
+                // Small enough for the socket buffer, one write does not block
+                clientSocket.getChannel().write(response);
+            }
+            else
+            {
+                OutputStream out = clientSocket.getOutputStream();
+                out.write(response.array(), 0, response.limit());
+                out.flush();
+            }
+        }
+        catch (IOException e)
+        {
+            // The client is gone already, nothing more to do
+        }
+        finally
+        {
+            close(clientSocket);
+        }
+    }
+
+    /**
+     * Drops an overloaded connection with a TCP reset, without answering
+     * @param clientSocket - the shed connection
+     */
+    private void shed(Socket clientSocket)
+    {
+        try
+        {
+            clientSocket.setSoLinger(true, 0);
+        }
+        catch (IOException e)
+        {
+            // Fall back to a normal close
+        }
+
+        close(clientSocket);
+    }
+
+    private void close(Socket clientSocket)
+    {
+        try
+        {
+            clientSocket.close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Gets the execution mode that is actually used
+     * @return the mode
+     */
+    Mode getMode()
+    {
+        return mode;
+    }
+
+    /**
+     * Gets the number of connections waiting for a worker, always 0 for virtual threads
+     * @return queue depth
+     */
+    int getQueueDepth()
+    {
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * Gets the number of connections turned away because of overload
+     * @return number of rejected connections
+     */
+    long getRejectedCount()
+    {
+        return rejected.sum();
+    }
+
+    /**
+     * Gets the number of connections currently being served
+     * @return number of active connections
+     */
+    int getActiveCount()
+    {
+        return active.get();
+    }
+
+    /**
+     * Short summary of the executor state, used for the periodic statistics print
+     * @return summary string
+     */
+    String stats()
+    {
+        return String.format("executor=%s active=%d queued=%d rejected=%d",
+                mode.name().toLowerCase(), getActiveCount(), getQueueDepth(), getRejectedCount());
+    }
+
+    /**
+     * Creates a virtual-thread-per-task executor if the running JVM supports it (Java 21+).
+     * Reflection is used so the server still compiles and runs on older JVMs.
+     * @return the executor, or null if virtual threads are not available
+     */
+    private static ExecutorService newVirtualThreadExecutor()
+    {
+        try
+        {
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        }
+        catch (ReflectiveOperationException | UnsupportedOperationException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Names the worker threads so they are easy to spot in a thread dump
+     */
+    private static class WorkerThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, "http-worker-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /**
+     * Used for the "queue" policy: the accepting thread waits until there is room in the queue,
+     * so new clients are held back in the listen backlog instead of getting new threads
+     */
+    private static class WaitForRoomPolicy implements RejectedExecutionHandler
+    {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor)
+        {
+            try
+            {
+                executor.getQueue().put(r);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,410 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Shared in-memory cache of static file contents, bounded by the total number of bytes.
+ * Lookups take no lock. Eviction is an approximate LRU: a few entries are sampled from a
+ * cursor that goes round the whole cache and the least recently used of them is dropped.
+ * A file that is not cached is read by one request, others asking for it meanwhile wait
+ * for that read instead of reading the file again. A cached file is checked against
+ * the disk at most once per stat interval and reloaded if it has been modified.
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+class FileCache
+{
+    static final FileCache SHARED = new FileCache(ServerConfig.CACHE_BYTES, ServerConfig.CACHE_MAX_FILE,
+            ServerConfig.CACHE_STAT_INTERVAL);
+
+    private static final long METADATA_WEIGHT = 256;
+
+    // Entries looked at for each eviction
+    private static final int EVICTION_SAMPLE = 8;
+
+    private final long maxBytes;
+    private final long maxFileBytes;
+    private final long statInterval;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>(64);
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    // Reads in progress, one per file. A file invalidated meanwhile loses its read,
+    // whose result is then handed to the waiting requests but not stored.
+    private final ConcurrentHashMap<String, CompletableFuture<Entry>> loading = new ConcurrentHashMap<>();
+
+    // Where the next eviction sample starts, guarded by evictionLock
+    private final Object evictionLock = new Object();
+    private Iterator<Entry> evictionCursor;
+
+    private final LongAdder hits = new LongAdder(),
+            misses = new LongAdder(),
+            evictions = new LongAdder();
+
+    /**
+     * @param maxBytes - upper bound for the sum of all cached file sizes
+     * @param maxFileBytes - files larger than this are streamed, only their metadata is cached
+     * @param statInterval - milliseconds between checks of a cached file's modification time
+     */
+    FileCache(long maxBytes, long maxFileBytes, long statInterval)
+    {
+        this.maxBytes = maxBytes;
+        this.maxFileBytes = maxFileBytes;
+        this.statInterval = statInterval;
+    }
+
+    /**
+     * A cached file: its bytes, the metadata they were read with, and the per-file
+     * response header lines once they have been built. Files too large for the cache
+     * get an entry without data and are streamed from disk.
+     */
+    static final class Entry
+    {
+        final String path;
+        final byte[] data;
+        final long length;
+        final long lastModified;
+
+        // Encoded Content-Type, Content-Length, ETag and Last-Modified lines, filled in by HTTPResponseConstructor
+        volatile byte[] fileHeaders;
+
+        // Encoded ETag and Last-Modified lines, used for 304 Not Modified
+        volatile byte[] validatorHeaders;
+
+        private volatile String lastModifiedText;
+        private volatile String eTag;
+
+        private volatile long checkedAt;
+        private volatile long usedAt;
+
+        private Entry(String path, byte[] data, long length, long lastModified, long now)
+        {
+            this.path = path;
+            this.data = data;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.checkedAt = now;
+            this.usedAt = now;
+        }
+
+        /**
+         * Records a use for eviction, written only once per millisecond
+         */
+        private void touch(long now)
+        {
+            if (usedAt != now)
+            {
+                usedAt = now;
+            }
+        }
+
+        /**
+         * Gets the modification time formatted as an HTTP date, formatted once per file version
+         * @return the Last-Modified value
+         */
+        String getLastModifiedText()
+        {
+            String text = lastModifiedText;
+
+            if (text == null)
+            {
+                text = HTTPDateClock.format(lastModified);
+                lastModifiedText = text;
+            }
+
+            return text;
+        }
+
+        /**
+         * Gets the entity tag of this file version, built from its size and modification time,
+         * plus a CRC32 of the content when content hashing is on and the content is in memory.
+         * Computed once per file version.
+         * @return the quoted entity tag
+         */
+        String getETag()
+        {
+            String tag = eTag;
+
+            if (tag == null)
+            {
+                tag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified);
+
+                if (ServerConfig.ETAG_CONTENT_HASH && data != null)
+                {
+                    CRC32 crc = new CRC32();
+                    crc.update(data);
+                    tag += "-" + Long.toHexString(crc.getValue());
+                }
+
+                tag += "\"";
+                eTag = tag;
+            }
+
+            return tag;
+        }
+
+        /**
+         * Gets what the entry counts against the cache bound. Entries of large files only hold
+         * metadata but still count a little, so there can not be an unbounded number of them.
+         * @return weight in bytes
+         */
+        private long weight()
+        {
+            return data != null ? data.length : METADATA_WEIGHT;
+        }
+    }
+
+    /**
+     * Gets a file, from the cache if possible
+     * @param pathName - path to the file
+     * @return the file entry, or null if it could not be read
+     */
+    Entry get(String pathName)
+    {
+        Entry entry = entries.get(pathName);
+        long now = System.currentTimeMillis();
+
+        if (entry != null)
+        {
+            if (now - entry.checkedAt < statInterval)
+            {
+                entry.touch(now);
+                hits.increment();
+                return entry;
+            }
+
+            // Time to look at the disk again, reuse the entry if the file is unchanged
+            File file = new File(pathName);
+
+            if (file.lastModified() == entry.lastModified && file.length() == entry.length)
+            {
+                entry.checkedAt = now;
+                entry.touch(now);
+                hits.increment();
+                return entry;
+            }
+
+            remove(pathName, entry);
+        }
+
+        misses.increment();
+        return load(pathName, now);
+    }
+
+    /**
+     * Reads a file and stores it, or waits for the read another request has started
+     * @param pathName - path to the file
+     * @param now - current time
+     * @return the new entry, or null if the file could not be read
+     */
+    private Entry load(String pathName, long now)
+    {
+        CompletableFuture<Entry> mine = new CompletableFuture<>();
+        CompletableFuture<Entry> running = loading.putIfAbsent(pathName, mine);
+
+        // Another request is reading the file already, its result is shared
+        if (running != null)
+        {
+            return running.join();
+        }
+
+        Entry entry = null;
+
+        try
+        {
+            Entry loaded = read(pathName, now);
+            entry = loaded;
+
+            // Stored and marked done in one step, so no request finds neither the entry nor the read
+            if (loaded != null)
+            {
+                loading.computeIfPresent(pathName, (path, current) -> {
+                    if (current == mine)
+                    {
+                        store(loaded);
+                    }
+                    return current == mine ? null : current;
+                });
+            }
+        }
+        finally
+        {
+            loading.remove(pathName, mine);
+            mine.complete(entry);
+        }
+
+        return entry;
+    }
+
+    /**
+     * Reads a file from disk. Large files are not read, only their metadata is kept.
+     * @return the entry, or null if the file could not be read
+     */
+    private Entry read(String pathName, long now)
+    {
+        File file = new File(pathName);
+
+        // Take the modification time first, so a change during the read is seen at the next check
+        long lastModified = file.lastModified();
+        long length = file.length();
+
+        if (length > maxFileBytes)
+        {
+            return lastModified == 0 ? null : new Entry(pathName, null, length, lastModified, now);
+        }
+
+        try
+        {
+            byte[] data = Files.readAllBytes(file.toPath());
+            return new Entry(pathName, data, data.length, lastModified, now);
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void store(Entry entry)
+    {
+        Entry old = entries.put(entry.path, entry);
+
+        if (old != null)
+        {
+            totalBytes.addAndGet(-old.weight());
+        }
+
+        if (totalBytes.addAndGet(entry.weight()) > maxBytes)
+        {
+            evict();
+        }
+    }
+
+    /**
+     * Drops sampled least recently used entries until the cache is within its byte bound
+     */
+    private void evict()
+    {
+        synchronized (evictionLock)
+        {
+            while (totalBytes.get() > maxBytes)
+            {
+                Entry victim = null;
+
+                for (int i = 0; i < EVICTION_SAMPLE; i++)
+                {
+                    if (evictionCursor == null || !evictionCursor.hasNext())
+                    {
+                        evictionCursor = entries.values().iterator();
+
+                        if (!evictionCursor.hasNext())
+                        {
+                            return;
+                        }
+                    }
+
+                    Entry candidate = evictionCursor.next();
+
+                    if (victim == null || candidate.usedAt < victim.usedAt)
+                    {
+                        victim = candidate;
+                    }
+                }
+
+                if (remove(victim.path, victim))
+                {
+                    evictions.increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes an entry if it is still the cached version of its file
+     * @return true if it was removed
+     */
+    private boolean remove(String pathName, Entry entry)
+    {
+        if (entries.remove(pathName, entry))
+        {
+            totalBytes.addAndGet(-entry.weight());
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Drops a file from the cache, e.g. after it has been overwritten. A read of the
+     * file that is still in progress is not stored.
+     * @param pathName - path to the file
+     */
+    void invalidate(String pathName)
+    {
+        loading.remove(pathName);
+        Entry old = entries.remove(pathName);
+
+        if (old != null)
+        {
+            totalBytes.addAndGet(-old.weight());
+        }
+    }
+
+    /**
+     * Loads all files of a directory into the cache, used for the status pages at startup
+     * @param dirName - path to the directory
+     */
+    void preload(String dirName)
+    {
+        File[] files = new File(dirName).listFiles(File::isFile);
+
+        if (files == null)
+        {
+            return;
+        }
+
+        for (File f : files)
+        {
+            load(f.getPath(), System.currentTimeMillis());
+        }
+    }
+
+    long getHits()
+    {
+        return hits.sum();
+    }
+
+    long getMisses()
+    {
+        return misses.sum();
+    }
+
+    long getEvictions()
+    {
+        return evictions.sum();
+    }
+
+    /**
+     * Gets the sum of all cached file sizes
+     * @return cached bytes
+     */
+    long getSize()
+    {
+        return totalBytes.get();
+    }
+
+    /**
+     * Short summary of the cache state, used for the periodic statistics print
+     * @return summary string
+     */
+    String stats()
+    {
+        return String.format("cache hits=%d misses=%d evictions=%d bytes=%d",
+                getHits(), getMisses(), getEvictions(), getSize());
+    }
+}
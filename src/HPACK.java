@@ -0,0 +1,470 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression for HTTP/2 (RFC 7541). The static table and the Huffman code
+ * are shared by all connections. A Decoder holds the dynamic table of one connection.
+ * Encoding is stateless: response headers are sent as literals that refer to the static
+ * table by name, so the encoder needs no dynamic table and can be used from any thread.
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+final class HPACK
+{
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+            {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+            {":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"},
+            {":status", "404"}, {":status", "500"}, {"accept-charset", ""}, {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""}, {"access-control-allow-origin", ""},
+            {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+            {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+            {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""},
+            {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""},
+            {"from", ""}, {"host", ""}, {"if-match", ""}, {"if-modified-since", ""},
+            {"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""}, {"last-modified", ""},
+            {"link", ""}, {"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""},
+            {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+            {"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+            {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""},
+            {"www-authenticate", ""}};
+
+    // Huffman code of every byte value and of end-of-string (256), right-aligned, and the code lengths
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7, 0xfffffe8,
+            0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec, 0xfffffed,
+            0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3, 0xffffff4,
+            0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb, 0x14, 0x3f8, 0x3f9,
+            0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa, 0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18, 0x0, 0x1,
+            0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d, 0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc, 0x1ffa,
+            0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x6b,
+            0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72, 0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc,
+            0x22, 0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26, 0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a,
+            0x7, 0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78, 0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd,
+            0x1ffd, 0xffffffc, 0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf, 0xffffec,
+            0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3, 0x7fffe4, 0x1fffdc,
+            0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef, 0x3fffda, 0x1fffdd, 0xfffe9,
+            0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde, 0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0,
+            0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec, 0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed,
+            0x3fffe1, 0x7fffee, 0x7fffef, 0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5,
+            0x3fffe6, 0x7ffff1, 0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8,
+            0x1ffffec, 0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2, 0x1fffe4,
+            0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5, 0xfffec, 0xfffff3,
+            0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3, 0x3fffea, 0x3fffeb, 0x1ffffee,
+            0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4, 0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed,
+            0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea, 0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed,
+            0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee, 0x3fffffff};
+
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30, 28,
+            28, 28, 28, 28, 28, 28, 28, 28, 6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5,
+            6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10, 13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6, 15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6,
+            7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28, 20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23,
+            23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24, 22, 21, 20, 22,
+            22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22,
+            23, 22, 22, 23, 26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27,
+            27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27, 20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25,
+            24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26, 30};
+
+    private static final int EOS = 256;
+
+    // Static table index of the first entry with a name, and of the entries with a name and value
+    private static final Map<String, Integer> NAME_INDEX = new HashMap<>();
+    private static final Map<String, Integer> FIELD_INDEX = new HashMap<>();
+
+    // Huffman decoding tree: children of each node, leaves hold the symbol
+    private static final int[][] TREE_CHILDREN = new int[2][513];
+    private static final int[] TREE_SYMBOL = new int[513];
+
+    static
+    {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--)
+        {
+            NAME_INDEX.put(STATIC_TABLE[i][0], i + 1);
+
+            if (!STATIC_TABLE[i][1].isEmpty())
+            {
+                FIELD_INDEX.put(STATIC_TABLE[i][0] + ":" + STATIC_TABLE[i][1], i + 1);
+            }
+        }
+
+        buildTree();
+    }
+
+    private HPACK()
+    {
+    }
+
+    /**
+     * Thrown when a header block can not be decoded, a connection error of type COMPRESSION_ERROR
+     */
+    static final class CompressionException extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+
+        CompressionException(String message)
+        {
+            super(message);
+        }
+    }
+
+    private static void buildTree()
+    {
+        int nodes = 1;
+        java.util.Arrays.fill(TREE_SYMBOL, -1);
+
+        for (int symbol = 0; symbol <= EOS; symbol++)
+        {
+            int code = HUFFMAN_CODES[symbol], length = HUFFMAN_LENGTHS[symbol];
+            int node = 0;
+
+            for (int bit = length - 1; bit >= 0; bit--)
+            {
+                int b = (code >>> bit) & 1;
+
+                if (TREE_CHILDREN[b][node] == 0)
+                {
+                    TREE_CHILDREN[b][node] = nodes++;
+                }
+                node = TREE_CHILDREN[b][node];
+            }
+
+            TREE_SYMBOL[node] = symbol;
+        }
+    }
+
+    /**
+     * Decodes the header blocks of one connection, keeping its dynamic table
+     */
+    static final class Decoder
+    {
+        private final List<String[]> dynamic = new ArrayList<>();
+        private int dynamicSize;
+        private int maxSize;
+        private final int maxAllowedSize;
+
+        /**
+         * @param maxAllowedSize - SETTINGS_HEADER_TABLE_SIZE we announced, 4096 by default
+         */
+        Decoder(int maxAllowedSize)
+        {
+            this.maxAllowedSize = maxAllowedSize;
+            this.maxSize = maxAllowedSize;
+        }
+
+        /**
+         * Decodes a complete header block
+         * @param block - the header block
+         * @param len - its length
+         * @param maxListSize - upper bound for the decoded header list, counted like SETTINGS_MAX_HEADER_LIST_SIZE
+         * @return names and values, alternating, or null if the list is larger than maxListSize
+         * @throws CompressionException if the block is malformed
+         */
+        List<String> decode(byte[] block, int len, int maxListSize) throws CompressionException
+        {
+            List<String> fields = new ArrayList<>();
+            int[] pos = {0};
+            int listSize = 0;
+            boolean headerSeen = false;
+
+            while (pos[0] < len)
+            {
+                int b = block[pos[0]] & 0xff;
+                String name, value;
+
+                if ((b & 0x80) != 0)
+                {
+                    // Indexed header field
+                    String[] field = entry(decodeInt(block, len, pos, 7));
+                    name = field[0];
+                    value = field[1];
+                }
+                else if ((b & 0xc0) == 0x40)
+                {
+                    // Literal with incremental indexing
+                    int index = decodeInt(block, len, pos, 6);
+                    name = index == 0 ? decodeString(block, len, pos) : entry(index)[0];
+                    value = decodeString(block, len, pos);
+                    add(name, value);
+                }
+                else if ((b & 0xe0) == 0x20)
+                {
+                    // Dynamic table size update, only allowed before the first field
+                    int size = decodeInt(block, len, pos, 5);
+
+                    if (headerSeen || size > maxAllowedSize)
+                    {
+                        throw new CompressionException("Invalid table size update");
+                    }
+                    maxSize = size;
+                    evict();
+                    continue;
+                }
+                else
+                {
+                    // Literal without indexing or never indexed
+                    int index = decodeInt(block, len, pos, 4);
+                    name = index == 0 ? decodeString(block, len, pos) : entry(index)[0];
+                    value = decodeString(block, len, pos);
+                }
+
+                headerSeen = true;
+                listSize += name.length() + value.length() + 32;
+
+                // Past the limit the block is still decoded to keep the dynamic table in sync
+                if (listSize <= maxListSize)
+                {
+                    fields.add(name);
+                    fields.add(value);
+                }
+            }
+
+            return listSize <= maxListSize ? fields : null;
+        }
+
+        private String[] entry(int index) throws CompressionException
+        {
+            if (index > 0 && index <= STATIC_TABLE.length)
+            {
+                return STATIC_TABLE[index - 1];
+            }
+
+            int dynamicIndex = index - STATIC_TABLE.length - 1;
+
+            if (index <= 0 || dynamicIndex >= dynamic.size())
+            {
+                throw new CompressionException("Invalid header index " + index);
+            }
+
+            return dynamic.get(dynamicIndex);
+        }
+
+        private void add(String name, String value)
+        {
+            // Newest entries come first
+            dynamic.add(0, new String[] {name, value});
+            dynamicSize += name.length() + value.length() + 32;
+            evict();
+        }
+
+        private void evict()
+        {
+            while (dynamicSize > maxSize && !dynamic.isEmpty())
+            {
+                String[] oldest = dynamic.remove(dynamic.size() - 1);
+                dynamicSize -= oldest[0].length() + oldest[1].length() + 32;
+            }
+        }
+    }
+
+    private static int decodeInt(byte[] block, int len, int[] pos, int prefixBits) throws CompressionException
+    {
+        int max = (1 << prefixBits) - 1;
+        int value = block[pos[0]++] & max;
+
+        if (value < max)
+        {
+            return value;
+        }
+
+        for (int shift = 0; ; shift += 7)
+        {
+            if (pos[0] >= len || shift > 21)
+            {
+                throw new CompressionException("Invalid integer");
+            }
+
+            int b = block[pos[0]++] & 0xff;
+            value += (b & 0x7f) << shift;
+
+            if ((b & 0x80) == 0)
+            {
+                return value;
+            }
+        }
+    }
+
+    private static String decodeString(byte[] block, int len, int[] pos) throws CompressionException
+    {
+        if (pos[0] >= len)
+        {
+            throw new CompressionException("Missing string");
+        }
+
+        boolean huffman = (block[pos[0]] & 0x80) != 0;
+        int length = decodeInt(block, len, pos, 7);
+
+        if (length > len - pos[0])
+        {
+            throw new CompressionException("String longer than the block");
+        }
+
+        int start = pos[0];
+        pos[0] += length;
+
+        return huffman ? huffmanDecode(block, start, length)
+                : new String(block, start, length, StandardCharsets.ISO_8859_1);
+    }
+
+    private static String huffmanDecode(byte[] data, int off, int len) throws CompressionException
+    {
+        StringBuilder out = new StringBuilder(len * 8 / 5);
+        int node = 0;
+        int pendingBits = 0;
+        boolean allOnes = true;
+
+        for (int i = off; i < off + len; i++)
+        {
+            int b = data[i] & 0xff;
+
+            for (int bit = 7; bit >= 0; bit--)
+            {
+                int one = (b >>> bit) & 1;
+                node = TREE_CHILDREN[one][node];
+                pendingBits++;
+                allOnes &= one == 1;
+
+                if (node == 0)
+                {
+                    throw new CompressionException("Invalid Huffman code");
+                }
+
+                int symbol = TREE_SYMBOL[node];
+
+                if (symbol >= 0)
+                {
+                    if (symbol == EOS)
+                    {
+                        throw new CompressionException("EOS in Huffman string");
+                    }
+
+                    out.append((char) symbol);
+                    node = 0;
+                    pendingBits = 0;
+                    allOnes = true;
+                }
+            }
+        }
+
+        // Padding is the start of EOS: fewer than 8 bits, all ones
+        if (pendingBits > 7 || !allOnes)
+        {
+            throw new CompressionException("Invalid Huffman padding");
+        }
+
+        return out.toString();
+    }
+
+    /**
+     * Encodes a header list. Fields that are in the static table with their value are indexed,
+     * everything else is a literal without indexing, referring to the static table by name if possible.
+     * @param fields - lowercase names and values, alternating
+     * @return the header block
+     */
+    static byte[] encode(List<String> fields)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+
+        for (int i = 0; i < fields.size(); i += 2)
+        {
+            String name = fields.get(i), value = fields.get(i + 1);
+            Integer full = FIELD_INDEX.get(name + ":" + value);
+
+            if (full != null)
+            {
+                encodeInt(out, 0x80, 7, full);
+                continue;
+            }
+
+            Integer nameIndex = NAME_INDEX.get(name);
+
+            if (nameIndex != null)
+            {
+                encodeInt(out, 0x00, 4, nameIndex);
+            }
+            else
+            {
+                out.write(0x00);
+                encodeString(out, name);
+            }
+
+            encodeString(out, value);
+        }
+
+        return out.toByteArray();
+    }
+
+    private static void encodeInt(ByteArrayOutputStream out, int flags, int prefixBits, int value)
+    {
+        int max = (1 << prefixBits) - 1;
+
+        if (value < max)
+        {
+            out.write(flags | value);
+            return;
+        }
+
+        out.write(flags | max);
+        value -= max;
+
+        while (value >= 0x80)
+        {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Writes a string literal, Huffman coded when that is shorter
+     */
+    private static void encodeString(ByteArrayOutputStream out, String value)
+    {
+        long bits = 0;
+
+        for (int i = 0; i < value.length(); i++)
+        {
+            bits += HUFFMAN_LENGTHS[value.charAt(i) & 0xff];
+        }
+
+        int huffmanLength = (int) ((bits + 7) / 8);
+
+        if (huffmanLength >= value.length())
+        {
+            encodeInt(out, 0x00, 7, value.length());
+            byte[] raw = value.getBytes(StandardCharsets.ISO_8859_1);
+            out.write(raw, 0, raw.length);
+            return;
+        }
+
+        encodeInt(out, 0x80, 7, huffmanLength);
+
+        long buffer = 0;
+        int buffered = 0;
+
+        for (int i = 0; i < value.length(); i++)
+        {
+            int symbol = value.charAt(i) & 0xff;
+            buffer = (buffer << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+            buffered += HUFFMAN_LENGTHS[symbol];
+
+            while (buffered >= 8)
+            {
+                buffered -= 8;
+                out.write((int) (buffer >>> buffered));
+            }
+        }
+
+        // Pad the last byte with the start of EOS, i.e. ones
+        if (buffered > 0)
+        {
+            out.write((int) ((buffer << (8 - buffered)) | (0xff >>> buffered)));
+        }
+    }
+}
@@ -0,0 +1,1842 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HTTP/2 over cleartext TCP (h2c, RFC 7540). A client switches to it with the connection
+ * preface (prior knowledge) or with an "Upgrade: h2c" request. One thread reads the frames
+ * of a connection and one writes them, its requests are multiplexed as streams and handled
+ * concurrently on a worker pool shared by all HTTP/2 connections. Frames are queued for the
+ * writer, so the reading thread never waits for the socket: it answers PING, SETTINGS and
+ * window updates at once, also while responses fill the connection. Response frames wait
+ * for room in the queue, that keeps a slow client from making the server buffer its responses.
+ *
+ * Every stream is translated into an HTTP/1.1 request and handled by a RequestHandler of
+ * its own, so resolution, caching, ranges and uploads work exactly as for HTTP/1.1. The
+ * HTTP/1.1 response header is turned back into an HPACK header block and the body is sent
+ * as DATA frames within the client's flow-control windows. Request bodies are flow controlled
+ * the same way: the client's windows are only given back once its bytes have been taken in,
+ * and a client that sends more than it was granted is stopped.
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+final class HTTP2Connection
+{
+    // What the HTTP/1.1 reader hands out for the start of the connection preface
+    private static final byte[] PREFACE_REQUEST = "PRI * HTTP/2.0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] PREFACE_END = "SM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final byte[] SWITCHING_PROTOCOLS =
+            "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    // Frame types
+    private static final int DATA = 0x0, HEADERS = 0x1, PRIORITY = 0x2, RST_STREAM = 0x3, SETTINGS = 0x4,
+            PUSH_PROMISE = 0x5, PING = 0x6, GOAWAY = 0x7, WINDOW_UPDATE = 0x8, CONTINUATION = 0x9;
+
+    // Frame flags
+    private static final int END_STREAM = 0x1, ACK = 0x1, END_HEADERS = 0x4, PADDED = 0x8, PRIORITY_FLAG = 0x20;
+
+    // Error codes
+    private static final int NO_ERROR = 0x0, PROTOCOL_ERROR = 0x1, INTERNAL_ERROR = 0x2, FLOW_CONTROL_ERROR = 0x3, STREAM_CLOSED = 0x5,
+            FRAME_SIZE_ERROR = 0x6, REFUSED_STREAM = 0x7, CANCEL = 0x8, COMPRESSION_ERROR = 0x9, ENHANCE_YOUR_CALM = 0xb;
+
+    // Settings
+    private static final int SETTINGS_ENABLE_PUSH = 0x2,
+            SETTINGS_MAX_CONCURRENT_STREAMS = 0x3, SETTINGS_INITIAL_WINDOW_SIZE = 0x4,
+            SETTINGS_MAX_FRAME_SIZE = 0x5, SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    // Frames are never larger than the default maximum in either direction
+    private static final int FRAME_SIZE = 16384;
+    private static final int DEFAULT_WINDOW = 65535;
+
+    // Milliseconds between retries of streams waiting for body memory
+    private static final int BUDGET_POLL = 10;
+    private static final int HEADER_TABLE_SIZE = 4096;
+
+    // Response headers that only mean something on an HTTP/1.1 connection
+    private static final Set<String> CONNECTION_HEADERS =
+            Set.of("connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+
+    private static final AtomicInteger workerCount = new AtomicInteger(), writerCount = new AtomicInteger();
+
+    // Response bytes the outbox may hold before senders wait, and the limit for the
+    // connection's own frames, which never wait: a client that sends PINGs without
+    // reading the answers is disconnected instead of being buffered for
+    private static final int OUTBOX_LIMIT = 4 * (9 + FRAME_SIZE);
+    private static final int CONTROL_LIMIT = 1024 * 1024;
+
+    private static final ExecutorService WORKERS = Executors.newFixedThreadPool(Math.max(1, ServerConfig.H2_WORKERS), r -> {
+        Thread t = new Thread(r, "h2-worker-" + workerCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final WritableByteChannel out;
+    private final InetAddress client;
+
+    private final HPACK.Decoder decoder = new HPACK.Decoder(HEADER_TABLE_SIZE);
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+
+    // Payload of the frame being read, from the buffer pool like the frame buffer
+    private final byte[] payload = BufferPool.SHARED.acquireArray(FRAME_SIZE);
+
+    // Highest stream opened by the client, only used by the reading thread
+    private int lastStreamId;
+
+    // Streams whose request waits for body memory, only used by the reading thread. Their
+    // windows are not given back meanwhile, which holds the client back.
+    private final List<Stream> parked = new ArrayList<>();
+
+    // Header block being collected from HEADERS and CONTINUATION frames
+    private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+    private int headerStreamId;
+    private int headerFlags;
+
+    // Send windows, guarded by flowLock. Window updates wake up streams waiting to send.
+    private final Object flowLock = new Object();
+    private int connectionWindow = DEFAULT_WINDOW;
+    private int initialWindow = DEFAULT_WINDOW;
+
+    // What the client may still send on the connection, only used by the reading thread
+    private int receiveWindow = Math.max(ServerConfig.H2_WINDOW, DEFAULT_WINDOW);
+
+    // Frames waiting for the writer thread, guarded by itself. The frames of a header block
+    // are one entry, so nothing gets between them.
+    private final ArrayDeque<Frame> outbox = new ArrayDeque<>();
+    private long outboxBytes;
+    private final Thread writer;
+
+    // Set once nothing more is queued, the writer sends what is left and stops
+    private volatile boolean closed;
+    private boolean goAwaySent;
+
+    // The last streams reset by this side, frames the client sent before it saw the reset
+    // are dropped instead of answered. A ring of stream ids, guarded by itself.
+    private final int[] recentResets = new int[32];
+    private int recentResetNext;
+
+    /**
+     * A connection error, answered with GOAWAY
+     */
+    private static final class ConnectionException extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+
+        ConnectionException(int code, String message)
+        {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    /**
+     * One or more encoded frames waiting to be written
+     */
+    private static final class Frame
+    {
+        final byte[] bytes;
+        final int length;
+        final boolean pooled;
+
+        // Stream of a response frame, null for the connection's own frames
+        final Stream stream;
+
+        // Flow-controlled bytes, given back to the connection window if the frame is dropped
+        final int window;
+
+        Frame(byte[] bytes, int length, boolean pooled, Stream stream, int window)
+        {
+            this.bytes = bytes;
+            this.length = length;
+            this.pooled = pooled;
+            this.stream = stream;
+            this.window = window;
+        }
+    }
+
+    /**
+     * One request and its response. The receiving side belongs to the reading thread until
+     * the request is complete, then the stream is handed to a worker that sends the response.
+     */
+    private final class Stream
+    {
+        final int id;
+        final RequestHandler handler = new RequestHandler(client);
+        final HTTPRequestReader reader =
+                new HTTPRequestReader(ServerConfig.MAX_HEADER_BYTES, ServerConfig.MAX_BODY_BYTES);
+
+        // DATA frames are passed to the reader as chunks when the client sent no Content-Length
+        boolean chunked;
+        boolean dispatched;
+        volatile boolean remoteClosed;
+        volatile boolean reset;
+
+        // Reset by the client, frames of the stream still in the outbox are dropped
+        volatile boolean resetByClient;
+
+        // Guarded by flowLock
+        int sendWindow = initialWindow;
+
+        // Only used by the reading thread: what the client may still send on the stream, and the
+        // bytes received that have not been given back yet. The client may send up to the default
+        // window before it has seen the server's settings.
+        int receiveWindow = Math.max(ServerConfig.H2_WINDOW, DEFAULT_WINDOW);
+        int credit;
+
+        // Waiting for body memory, only used by the reading thread
+        boolean parked;
+
+        Stream(int id)
+        {
+            this.id = id;
+
+            // Uploads are streamed to disk as they arrive, as on HTTP/1.1
+            reader.setBodyHandler(handler::openBody, ServerConfig.MAX_UPLOAD_BYTES);
+        }
+    }
+
+    private HTTP2Connection(Socket socket, InputStream in, WritableByteChannel out)
+    {
+        this.socket = socket;
+        this.in = new DataInputStream(new BufferedInputStream(in, FRAME_SIZE));
+        this.out = out;
+        this.client = socket.getInetAddress();
+        this.writer = new Thread(this::writeFrames, "h2-writer-" + writerCount.incrementAndGet());
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * Checks whether a request switches the connection to HTTP/2, either because it is
+     * the start of the connection preface or because it asks for an upgrade to h2c
+     * @param request - a request as returned by HTTPRequestReader
+     * @param upgrade - its Upgrade header, from HTTPRequestReader.getUpgrade()
+     * @return true if the connection should be handed to serve()
+     */
+    static boolean isSwitch(HTTPRequestReader.Request request, String upgrade)
+    {
+        if (!ServerConfig.HTTP2)
+        {
+            return false;
+        }
+
+        // Only an upgrade request is parsed a second time, for the rest of its headers
+        return request.is(PREFACE_REQUEST)
+                || upgrade != null && hasToken(upgrade, "h2c") && upgradeSettings(request) != null;
+    }
+
+    /**
+     * Serves a connection as HTTP/2 until it ends. The caller closes the socket afterwards.
+     * @param request - the request for which isSwitch() returned true
+     * @param reader - reader of the connection so far, its buffered bytes are the first HTTP/2 bytes
+     * @param socket - the connection, in blocking mode
+     * @param in - stream to read from
+     * @param out - channel to write to
+     * @throws IOException if the connection fails
+     */
+    static void serve(HTTPRequestReader.Request request, HTTPRequestReader reader, Socket socket, InputStream in,
+                      WritableByteChannel out) throws IOException
+    {
+        // The upgraded request is handled later by a worker, it must not depend on the reader's buffer
+        boolean preface = request.is(PREFACE_REQUEST);
+        HTTPRequestReader.Request upgraded = preface ? null : request.copy();
+        byte[] settings = preface ? null : upgradeSettings(request);
+
+        byte[] buffered = reader.takeBuffered();
+        InputStream input = buffered.length == 0 ? in : new SequenceInputStream(new ByteArrayInputStream(buffered), in);
+        HTTP2Connection connection = new HTTP2Connection(socket, input, out);
+
+        if (preface)
+        {
+            connection.run(null, null);
+        }
+        else
+        {
+            connection.writeRaw(SWITCHING_PROTOCOLS);
+            connection.run(upgraded, settings);
+        }
+    }
+
+    /**
+     * Reads an upgrade request. Only requests without a body are upgraded, others are
+     * simply answered over HTTP/1.1.
+     * @param request - the request
+     * @return the decoded HTTP2-Settings payload, or null if this is no acceptable upgrade
+     */
+    private static byte[] upgradeSettings(HTTPRequestReader.Request request)
+    {
+        HTTPRequestParser parser = new HTTPRequestParser();
+
+        if (!parser.parse(request.data, request.offset, request.length) || parser.getVersion() != HTTPRequestParser.HTTP_1_1)
+        {
+            return null;
+        }
+
+        String upgrade = parser.getHeader("Upgrade"), connection = parser.getHeader("Connection"),
+                settings = parser.getHeader("HTTP2-Settings");
+
+        if (upgrade == null || connection == null || settings == null
+                || !hasToken(upgrade, "h2c") || !hasToken(connection, "upgrade") || !hasToken(connection, "http2-settings")
+                || parser.getLongHeader("Content-Length") > 0 || parser.getHeader("Transfer-Encoding") != null)
+        {
+            return null;
+        }
+
+        try
+        {
+            byte[] payload = Base64.getUrlDecoder().decode(settings);
+            return payload.length % 6 == 0 ? payload : null;
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+
+    private static boolean hasToken(String list, String token)
+    {
+        for (String element : list.split(","))
+        {
+            if (element.trim().equalsIgnoreCase(token))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Runs the connection: exchanges settings, answers an upgraded request on stream 1
+     * and reads frames until the client goes away, an error occurs or the connection idles out
+     * @param upgradeRequest - the HTTP/1.1 request that asked for the upgrade, or null
+     * @param upgradeSettings - settings sent with the upgrade request, or null
+     */
+    private void run(HTTPRequestReader.Request upgradeRequest, byte[] upgradeSettings) throws IOException
+    {
+        writer.start();
+
+        try
+        {
+            if (upgradeSettings != null)
+            {
+                applySettings(upgradeSettings, upgradeSettings.length);
+            }
+
+            sendSettings();
+
+            // The upgraded request becomes stream 1, already half-closed by the client
+            if (upgradeRequest != null)
+            {
+                Stream stream = new Stream(1);
+                stream.remoteClosed = true;
+                stream.dispatched = true;
+                lastStreamId = 1;
+                streams.put(1, stream);
+                dispatch(stream, upgradeRequest, null, null);
+            }
+
+            socket.setSoTimeout(ServerConfig.READ_TIMEOUT);
+            readPreface(upgradeRequest == null);
+            socket.setSoTimeout(ServerConfig.H2_IDLE_TIMEOUT);
+
+            boolean first = true;
+
+            while (readFrame(first))
+            {
+                first = false;
+            }
+        }
+        catch (ConnectionException e)
+        {
+            goAway(e.code);
+        }
+        catch (EOFException | SocketTimeoutException e)
+        {
+            // The client went away or stalled in the middle of a frame
+        }
+        finally
+        {
+            // Nothing more is queued, the writer sends what is left, e.g. a GOAWAY, before the socket is closed
+            synchronized (outbox)
+            {
+                closed = true;
+                outbox.notifyAll();
+            }
+
+            try
+            {
+                writer.join(ServerConfig.H2_IDLE_TIMEOUT);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            BufferPool.SHARED.release(payload);
+
+            synchronized (flowLock)
+            {
+                flowLock.notifyAll();
+            }
+
+            // Uploads that were still coming in are abandoned
+            for (Stream stream : streams.values())
+            {
+                if (!stream.dispatched)
+                {
+                    stream.reader.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the client connection preface. With prior knowledge its first line has
+     * already been read as an HTTP/1.1 request.
+     * @param partial - true if only the rest of the preface is left
+     */
+    private void readPreface(boolean partial) throws IOException, ConnectionException
+    {
+        byte[] expected = partial ? PREFACE_END : concat(PREFACE_REQUEST, PREFACE_END);
+        byte[] received = new byte[expected.length];
+        in.readFully(received);
+
+        if (!Arrays.equals(received, expected))
+        {
+            throw new ConnectionException(PROTOCOL_ERROR, "Invalid connection preface");
+        }
+    }
+
+    private static byte[] concat(byte[] a, byte[] b)
+    {
+        byte[] joined = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, joined, a.length, b.length);
+        return joined;
+    }
+
+    /**
+     * Reads and handles one frame
+     * @param first - true for the first frame, which has to be SETTINGS
+     * @return false once the connection is done
+     */
+    private boolean readFrame(boolean first) throws IOException, ConnectionException
+    {
+        resumeParked();
+
+        int b0;
+        boolean polling = !parked.isEmpty();
+
+        try
+        {
+            // Streams waiting for body memory are retried every few milliseconds
+            if (polling)
+            {
+                socket.setSoTimeout(BUDGET_POLL);
+            }
+            b0 = in.read();
+        }
+        catch (SocketTimeoutException e)
+        {
+            // Idle between frames: keep waiting while responses are in progress, else say goodbye
+            if (!streams.isEmpty())
+            {
+                return true;
+            }
+
+            goAway(NO_ERROR);
+            return false;
+        }
+        finally
+        {
+            if (polling)
+            {
+                socket.setSoTimeout(ServerConfig.H2_IDLE_TIMEOUT);
+            }
+        }
+
+        if (b0 < 0)
+        {
+            return false;
+        }
+
+        // A frame that has started has to arrive in time, a timeout within it ends the connection
+        int length = (b0 << 16) | in.readUnsignedShort();
+        int type = in.readUnsignedByte();
+        int flags = in.readUnsignedByte();
+        int streamId = in.readInt() & 0x7fffffff;
+
+        if (length > FRAME_SIZE)
+        {
+            throw new ConnectionException(FRAME_SIZE_ERROR, "Frame larger than SETTINGS_MAX_FRAME_SIZE");
+        }
+
+        in.readFully(payload, 0, length);
+        Metrics.SHARED.bytesReceived(9 + length);
+
+        if (first && type != SETTINGS)
+        {
+            throw new ConnectionException(PROTOCOL_ERROR, "First frame is not SETTINGS");
+        }
+
+        // Nothing may come between the frames of a header block
+        if (headerStreamId != 0 && (type != CONTINUATION || streamId != headerStreamId))
+        {
+            throw new ConnectionException(PROTOCOL_ERROR, "Header block interrupted");
+        }
+
+        switch (type)
+        {
+            case DATA:
+                onData(flags, streamId, length);
+                break;
+            case HEADERS:
+                onHeaders(flags, streamId, length);
+                break;
+            case CONTINUATION:
+                onContinuation(flags, streamId, length);
+                break;
+            case PRIORITY:
+                // Streams are served as they come, priorities are only checked for form
+                if (streamId == 0)
+                {
+                    throw new ConnectionException(PROTOCOL_ERROR, "PRIORITY on stream 0");
+                }
+                if (length != 5)
+                {
+                    resetStream(streamId, FRAME_SIZE_ERROR);
+                }
+                break;
+            case RST_STREAM:
+                onResetStream(streamId, length);
+                break;
+            case SETTINGS:
+                onSettings(flags, streamId, length);
+                break;
+            case PUSH_PROMISE:
+                throw new ConnectionException(PROTOCOL_ERROR, "PUSH_PROMISE from client");
+            case PING:
+                onPing(flags, streamId, length);
+                break;
+            case GOAWAY:
+                if (streamId != 0)
+                {
+                    throw new ConnectionException(PROTOCOL_ERROR, "GOAWAY on a stream");
+                }
+                finishStreams();
+                return false;
+            case WINDOW_UPDATE:
+                onWindowUpdate(streamId, length);
+                break;
+            default:
+                // Unknown frame types are ignored
+                break;
+        }
+
+        return true;
+    }
+
+    private void onSettings(int flags, int streamId, int length) throws IOException, ConnectionException
+    {
+        if (streamId != 0)
+        {
+            throw new ConnectionException(PROTOCOL_ERROR, "SETTINGS on a stream");
+        }
+
+        if ((flags & ACK) != 0)
+        {
+            if (length != 0)
+            {
+                throw new ConnectionException(FRAME_SIZE_ERROR, "SETTINGS ACK with payload");
+            }
+            return;
+        }
+
+        if (length % 6 != 0)
+        {
+            throw new ConnectionException(FRAME_SIZE_ERROR, "Invalid SETTINGS length");
+        }
+
+        applySettings(payload, length);
+        writeFrame(SETTINGS, ACK, 0, payload, 0, 0);
+    }
+
+    /**
+     * Applies the client's settings. Only those that affect sending matter: the initial
+     * stream window, and the maximum frame size, which is checked but never needed as
+     * frames are kept at the default size.
+     */
+    private void applySettings(byte[] settings, int length) throws ConnectionException
+    {
+        for (int i = 0; i < length; i += 6)
+        {
+            int id = ((settings[i] & 0xff) << 8) | (settings[i + 1] & 0xff);
+            long value = readInt(settings, i + 2) & 0xffffffffL;
+
+            if (id == SETTINGS_ENABLE_PUSH && value > 1)
+            {
+                throw new ConnectionException(PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH");
+            }
+            else if (id == SETTINGS_MAX_FRAME_SIZE && (value < FRAME_SIZE || value > 0xffffff))
+            {
+                throw new ConnectionException(PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE");
+            }
+            else if (id == SETTINGS_INITIAL_WINDOW_SIZE)
+            {
+                if (value > Integer.MAX_VALUE)
+                {
+                    throw new ConnectionException(FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                }
+
+                // The change applies to the windows of all open streams
+                synchronized (flowLock)
+                {
+                    int delta = (int) value - initialWindow;
+                    initialWindow = (int) value;
+
+                    for (Stream stream : streams.values())
+                    {
+                        stream.sendWindow += delta;
+                    }
+                    flowLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void onPing(int flags, int streamId, int length) throws IOException, ConnectionException
+    {
+        if (streamId != 0)
+        {
+            throw new ConnectionException(PROTOCOL_ERROR, "PING on a stream");
+        }
+
+        if (length != 8)
+        {
+            throw new ConnectionException(FRAME_SIZE_ERROR, "Invalid PING length");
+        }
+
+        if ((flags & ACK) == 0)
+        {
+            writeFrame(PING, ACK, 0, payload, 0, 8);
+        }
+    }
+
+    private void onWindowUpdate(int streamId, int length) throws IOException, ConnectionException
+    {
+        if (length != 4)
+        {
+            throw new ConnectionException(FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE length");
+        }
+
+        int increment = readInt(payload, 0) & 0x7fffffff;
+
+        if (increment == 0)
+        {
+            if (streamId == 0)
+            {
+                throw new ConnectionException(PROTOCOL_ERROR, "Window increment of 0");
+            }
+
+            resetStream(streamId, PROTOCOL_ERROR);
+            return;
+        }
+
+        synchronized (flowLock)
+        {
+            if (streamId == 0)
+            {
+                if (connectionWindow + (long) increment > Integer.MAX_VALUE)
+                {
+                    throw new ConnectionException(FLOW_CONTROL_ERROR, "Connection window too large");
+                }
+                connectionWindow += increment;
+            }
+            else
+            {
+                Stream stream = streams.get(streamId);
+
+                // Updates for streams that are already done are allowed and ignored
+                if (stream == null)
+                {
+                    return;
+                }
+
+                if (stream.sendWindow + (long) increment > Integer.MAX_VALUE)
+                {
+                    resetStream(streamId, FLOW_CONTROL_ERROR);
+                    return;
+                }
+                stream.sendWindow += increment;
+            }
+
+            flowLock.notifyAll();
+        }
+    }
+
+    private void onResetStream(int streamId, int length) throws ConnectionException
+    {
+        if (streamId == 0 || streamId > lastStreamId)
+        {
+            throw new ConnectionException(PROTOCOL_ERROR, "RST_STREAM on an idle stream");
+        }
+
+        if (length != 4)
+        {
+            throw new ConnectionException(FRAME_SIZE_ERROR, "Invalid RST_STREAM length");
+        }
+
+        Stream stream = streams.remove(streamId);
+
+        if (stream != null)
+        {
+            stream.resetByClient = true;
+            cancel(stream);
+        }
+    }
+
+    private void onHeaders(int flags, int streamId, int length) throws IOException, ConnectionException
+    {
+        if (streamId == 0)
+        {
+            throw new ConnectionException(PROTOCOL_ERROR, "HEADERS on stream 0");
+        }
+
+        int start = 0, end = length;
+
+        if ((flags & PADDED) != 0)
+        {
+            end = unpad(length);
+            start = 1;
+        }
+
+        // Priority information is skipped
+        if ((flags & PRIORITY_FLAG) != 0)
+        {
+            start += 5;
+        }
+
+        if (start > end)
+        {
+            throw new ConnectionException(PROTOCOL_ERROR, "HEADERS too short");
+        }
+
+        headerBlock.reset();
+        headerFlags = flags;
+        appendHeaderBlock(start, end - start);
+
+        if ((flags & END_HEADERS) != 0)
+        {
+            onHeaderBlock(streamId);
+        }
+        else
+        {
+            headerStreamId = streamId;
+        }
+    }
+
+    private void onContinuation(int flags, int streamId, int length) throws IOException, ConnectionException
+    {
+        if (headerStreamId == 0 || streamId != headerStreamId)
+        {
+            throw new ConnectionException(PROTOCOL_ERROR, "Unexpected CONTINUATION");
+        }
+
+        appendHeaderBlock(0, length);
+
+        if ((flags & END_HEADERS) != 0)
+        {
+            headerStreamId = 0;
+            onHeaderBlock(streamId);
+        }
+    }
+
+    private void appendHeaderBlock(int off, int len) throws ConnectionException
+    {
+        // Compressed headers are never larger than the decoded ones we accept
+        if (headerBlock.size() + len > ServerConfig.MAX_HEADER_BYTES)
+        {
+            throw new ConnectionException(ENHANCE_YOUR_CALM, "Header block too large");
+        }
+
+        headerBlock.write(payload, off, len);
+    }
+
+    /**
+     * Handles a complete header block: opens a stream, or ends the body of one with trailers
+     */
+    private void onHeaderBlock(int streamId) throws IOException, ConnectionException
+    {
+        byte[] block = headerBlock.toByteArray();
+        boolean endStream = (headerFlags & END_STREAM) != 0;
+        List<String> fields;
+
+        // The block is always decoded, the dynamic table has to stay in sync with the client's
+        try
+        {
+            fields = decoder.decode(block, block.length, ServerConfig.MAX_HEADER_BYTES);
+        }
+        catch (HPACK.CompressionException e)
+        {
+            throw new ConnectionException(COMPRESSION_ERROR, e.getMessage());
+        }
+
+        Stream existing = streams.get(streamId);
+
+        if (existing != null || streamId <= lastStreamId)
+        {
+            // Trailers the client sent before it saw a reset are dropped like late DATA
+            if (existing == null && wasReset(streamId))
+            {
+                return;
+            }
+
+            // Trailers: they end the body and are otherwise ignored
+            if (existing == null || existing.remoteClosed)
+            {
+                throw new ConnectionException(STREAM_CLOSED, "HEADERS on a closed stream");
+            }
+
+            if (!endStream)
+            {
+                resetStream(streamId, PROTOCOL_ERROR);
+                return;
+            }
+
+            receive(existing, null, 0, 0, true);
+            return;
+        }
+
+        if (streamId % 2 == 0)
+        {
+            throw new ConnectionException(PROTOCOL_ERROR, "Even stream id from client");
+        }
+        lastStreamId = streamId;
+
+        if (goAwaySent)
+        {
+            return;
+        }
+
+        if (streams.size() >= ServerConfig.H2_MAX_STREAMS)
+        {
+            resetStream(streamId, REFUSED_STREAM);
+            return;
+        }
+
+        Stream stream = new Stream(streamId);
+        streams.put(streamId, stream);
+
+        if (fields == null)
+        {
+            stream.remoteClosed = endStream;
+            stream.dispatched = true;
+            dispatch(stream, null, null, "431 Request Header Fields Too Large");
+            return;
+        }
+
+        byte[] head = toHTTP1(stream, fields, endStream);
+
+        if (head == null)
+        {
+            streams.remove(streamId);
+            resetStream(streamId, PROTOCOL_ERROR);
+            return;
+        }
+
+        stream.reader.feed(head, 0, head.length);
+        receive(stream, null, 0, 0, endStream);
+    }
+
+    /**
+     * Writes the request line and headers an HTTP/1.1 client would have sent
+     * @return the request head, or null if the header list is malformed
+     */
+    private static byte[] toHTTP1(Stream stream, List<String> fields, boolean endStream)
+    {
+        String method = null, path = null, authority = null;
+        StringBuilder headers = new StringBuilder(256);
+        boolean hasLength = false, regularSeen = false;
+
+        for (int i = 0; i < fields.size(); i += 2)
+        {
+            String name = fields.get(i), value = fields.get(i + 1);
+
+            // Field values must not be able to add lines to the translated request
+            if (value.indexOf('\r') >= 0 || value.indexOf('\n') >= 0 || name.isEmpty())
+            {
+                return null;
+            }
+
+            if (name.charAt(0) == ':')
+            {
+                // Pseudo-headers come first and each only once
+                if (regularSeen)
+                {
+                    return null;
+                }
+
+                if (name.equals(":method") && method == null)
+                {
+                    method = value;
+                }
+                else if (name.equals(":path") && path == null)
+                {
+                    path = value;
+                }
+                else if (name.equals(":authority") && authority == null)
+                {
+                    authority = value;
+                }
+                else if (!name.equals(":scheme"))
+                {
+                    return null;
+                }
+                continue;
+            }
+
+            regularSeen = true;
+
+            if (!name.equals(name.toLowerCase(Locale.ROOT)) || CONNECTION_HEADERS.contains(name))
+            {
+                return null;
+            }
+
+            if (name.equals("host") && authority != null)
+            {
+                continue;
+            }
+
+            hasLength |= name.equals("content-length");
+            headers.append(name).append(": ").append(value).append("\r\n");
+        }
+
+        if (method == null || path == null || path.isEmpty() || path.indexOf(' ') >= 0)
+        {
+            return null;
+        }
+
+        StringBuilder head = new StringBuilder(headers.length() + 64);
+        head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+
+        if (authority != null)
+        {
+            head.append("host: ").append(authority).append("\r\n");
+        }
+
+        head.append(headers);
+
+        // A body without a length is framed as chunks, like HTTP/1.1 would
+        if (!endStream && !hasLength)
+        {
+            stream.chunked = true;
+            head.append("transfer-encoding: chunked\r\n");
+        }
+
+        head.append("\r\n");
+        return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private void onData(int flags, int streamId, int length) throws IOException, ConnectionException
+    {
+        if (streamId == 0)
+        {
+            throw new ConnectionException(PROTOCOL_ERROR, "DATA on stream 0");
+        }
+
+        int start = 0, end = length;
+
+        if ((flags & PADDED) != 0)
+        {
+            end = unpad(length);
+            start = 1;
+        }
+
+        // The whole frame, padding included, counts against the windows
+        if (length > receiveWindow)
+        {
+            throw new ConnectionException(FLOW_CONTROL_ERROR, "DATA beyond the connection window");
+        }
+        receiveWindow -= length;
+
+        Stream stream = streams.get(streamId);
+
+        if (stream == null || stream.remoteClosed)
+        {
+            // Dropped right away, so the connection window is given back
+            giveWindow(length);
+
+            if (streamId > lastStreamId)
+            {
+                throw new ConnectionException(PROTOCOL_ERROR, "DATA on an idle stream");
+            }
+
+            // Sent before the client learned of the reset, or of a stream ignored after GOAWAY
+            if (stream == null && (goAwaySent || wasReset(streamId)))
+            {
+                return;
+            }
+
+            // The client already ended the stream, DATA is only allowed on open streams (RFC 7540 6.1)
+            resetStream(streamId, STREAM_CLOSED);
+            return;
+        }
+
+        if (length > stream.receiveWindow)
+        {
+            giveWindow(length);
+            resetStream(streamId, FLOW_CONTROL_ERROR);
+            return;
+        }
+        stream.receiveWindow -= length;
+        stream.credit += length;
+
+        receive(stream, payload, start, end - start, (flags & END_STREAM) != 0);
+
+        // By now the reader has taken the bytes in, streamed to the upload's sink or copied
+        // into the request's body memory, or they were dropped. A parked stream keeps them.
+        if (!stream.parked)
+        {
+            giveCredit(stream);
+        }
+    }
+
+    /**
+     * Retries the streams waiting for body memory. Each takes in its bytes and gets its
+     * window back, is parked again, or is answered 503 once it has waited too long.
+     */
+    private void resumeParked() throws IOException
+    {
+        if (parked.isEmpty())
+        {
+            return;
+        }
+
+        List<Stream> waiting = new ArrayList<>(parked);
+        parked.clear();
+
+        for (Stream stream : waiting)
+        {
+            stream.parked = false;
+
+            // Reset in the meantime, its reader is closed and its bytes are dropped
+            if (stream.reset)
+            {
+                giveWindow(stream.credit);
+                stream.credit = 0;
+                continue;
+            }
+
+            takeIn(stream);
+
+            if (!stream.parked)
+            {
+                giveCredit(stream);
+            }
+        }
+    }
+
+    /**
+     * Gives the bytes received on a stream back to the client's windows
+     * @param stream - the stream
+     */
+    private void giveCredit(Stream stream) throws IOException
+    {
+        int bytes = stream.credit;
+        stream.credit = 0;
+        giveWindow(bytes);
+
+        // A stream the client has ended gets no more data, it needs no window
+        if (bytes > 0 && !stream.remoteClosed && !stream.reset)
+        {
+            stream.receiveWindow += bytes;
+            writeWindowUpdate(stream.id, bytes);
+        }
+    }
+
+    /**
+     * Gives received bytes back to the client's connection window
+     * @param bytes - number of bytes taken in or dropped
+     */
+    private void giveWindow(int bytes) throws IOException
+    {
+        if (bytes > 0)
+        {
+            receiveWindow += bytes;
+            writeWindowUpdate(0, bytes);
+        }
+    }
+
+    /**
+     * Passes request body bytes to the stream's reader and dispatches the request once it is complete
+     * @param stream - the stream
+     * @param data - body bytes, or null
+     * @param off - first body byte
+     * @param len - number of body bytes
+     * @param endStream - true if the client has finished the request
+     */
+    private void receive(Stream stream, byte[] data, int off, int len, boolean endStream) throws IOException
+    {
+        if (endStream)
+        {
+            stream.remoteClosed = true;
+        }
+
+        // Once a response is on its way, whatever else the client sends is dropped
+        if (stream.dispatched)
+        {
+            return;
+        }
+
+        if (len > 0)
+        {
+            if (stream.chunked)
+            {
+                byte[] size = (Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                stream.reader.feed(size, 0, size.length);
+                stream.reader.feed(data, off, len);
+                stream.reader.feed(new byte[] {'\r', '\n'}, 0, 2);
+            }
+            else
+            {
+                stream.reader.feed(data, off, len);
+            }
+        }
+
+        if (endStream && stream.chunked)
+        {
+            byte[] last = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+            stream.reader.feed(last, 0, last.length);
+        }
+
+        takeIn(stream);
+    }
+
+    /**
+     * Lets the stream's reader take in what it has been fed, and dispatches the request once
+     * it is complete. Without body memory the stream is parked until memory frees up.
+     * @param stream - a stream that has not been dispatched yet
+     */
+    private void takeIn(Stream stream) throws IOException
+    {
+        try
+        {
+            HTTPRequestReader.Request request = stream.reader.next();
+
+            if (request != null)
+            {
+                stream.dispatched = true;
+                dispatch(stream, request, stream.reader.getStreamedBody(), null);
+            }
+            else if (stream.reader.isWaitingForBudget())
+            {
+                if (!stream.parked)
+                {
+                    stream.parked = true;
+                    parked.add(stream);
+                }
+            }
+            else if (stream.remoteClosed)
+            {
+                // The body ended short of its Content-Length
+                stream.reader.close();
+                streams.remove(stream.id);
+                resetStream(stream.id, PROTOCOL_ERROR);
+            }
+        }
+        catch (HTTPRequestException e)
+        {
+            stream.dispatched = true;
+            dispatch(stream, null, null, e.getStatus());
+        }
+    }
+
+    /**
+     * Hands a stream to a worker that builds and sends the response
+     * @param request - the translated request, or null to answer with an error
+     * @param body - sink that received a streamed request body, or null
+     * @param errorStatus - status to answer with if there is no request
+     */
+    private void dispatch(Stream stream, HTTPRequestReader.Request request, HTTPRequestReader.BodySink body, String errorStatus)
+    {
+        WORKERS.execute(() -> {
+            HTTPResponse response = null;
+            StreamChannel channel = null;
+
+            try
+            {
+                response = request != null
+                        ? stream.handler.processRequest(request, body, true)
+                        : stream.handler.processError(errorStatus);
+
+                long start = System.nanoTime();
+                channel = new StreamChannel(stream, response);
+                response.writeFully(channel);
+                channel.finish();
+
+                Metrics.SHARED.send.recordSince(start);
+                Metrics.SHARED.responseSent(response.getStatus(), response.getLength());
+            }
+            catch (IOException e)
+            {
+                // The stream was reset or the connection is gone
+                if (!closed && !stream.reset)
+                {
+                    e.printStackTrace();
+                    resetQuietly(stream.id, CANCEL);
+                }
+            }
+            catch (RuntimeException e)
+            {
+                // A bug in handling one request must not take the worker or the connection with it
+                e.printStackTrace();
+                resetQuietly(stream.id, INTERNAL_ERROR);
+            }
+            finally
+            {
+                if (response != null)
+                {
+                    response.close();
+                }
+
+                if (channel != null)
+                {
+                    channel.release();
+                }
+                stream.handler.close();
+
+                // Gives the body memory of the request back, the reading side is done with the reader
+                stream.reader.close();
+
+                // The response is complete, the client can stop sending the rest of the request.
+                // The reset also removes the stream, so the rest is dropped when it arrives.
+                if (!stream.remoteClosed && !stream.reset && !closed)
+                {
+                    resetQuietly(stream.id, NO_ERROR);
+                }
+                else
+                {
+                    streams.remove(stream.id);
+                }
+
+                synchronized (flowLock)
+                {
+                    flowLock.notifyAll();
+                }
+            }
+        });
+    }
+
+    /**
+     * After the client's GOAWAY: gives the responses in progress time to finish
+     */
+    private void finishStreams()
+    {
+        long deadline = System.currentTimeMillis() + ServerConfig.H2_IDLE_TIMEOUT;
+
+        synchronized (flowLock)
+        {
+            long left;
+
+            while (!streams.isEmpty() && (left = deadline - System.currentTimeMillis()) > 0)
+            {
+                try
+                {
+                    flowLock.wait(left);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void cancel(Stream stream)
+    {
+        stream.reset = true;
+
+        if (!stream.dispatched)
+        {
+            stream.reader.close();
+        }
+
+        synchronized (flowLock)
+        {
+            flowLock.notifyAll();
+        }
+
+        synchronized (outbox)
+        {
+            outbox.notifyAll();
+        }
+    }
+
+    /**
+     * Takes bytes from the send windows, waiting for window updates if they are used up
+     * @param stream - the sending stream
+     * @param wanted - number of bytes to send
+     * @return number of bytes that may be sent, at least 1
+     * @throws IOException if the stream or connection ends, or no window arrives in time
+     */
+    private int reserve(Stream stream, int wanted) throws IOException
+    {
+        long deadline = System.currentTimeMillis() + ServerConfig.H2_IDLE_TIMEOUT;
+
+        synchronized (flowLock)
+        {
+            while (!closed && !stream.reset && (connectionWindow <= 0 || stream.sendWindow <= 0))
+            {
+                long left = deadline - System.currentTimeMillis();
+
+                if (left <= 0)
+                {
+                    throw new IOException("No flow-control window from client");
+                }
+
+                try
+                {
+                    flowLock.wait(left);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for window");
+                }
+            }
+
+            if (closed || stream.reset)
+            {
+                throw new IOException("Stream closed");
+            }
+
+            int n = Math.min(wanted, Math.min(connectionWindow, stream.sendWindow));
+            connectionWindow -= n;
+            stream.sendWindow -= n;
+            return n;
+        }
+    }
+
+    /**
+     * Channel a response is written to. It takes the HTTP/1.1 header apart into an HPACK
+     * header block and sends the body as DATA frames of the maximum size.
+     */
+    private final class StreamChannel implements WritableByteChannel
+    {
+        private final Stream stream;
+        private final long bodyLength;
+        private final byte[] header;
+        private int headerReceived;
+        private final byte[] data = BufferPool.SHARED.acquireArray(FRAME_SIZE);
+        private int buffered;
+        private long bodyReceived;
+        private boolean ended;
+
+        StreamChannel(Stream stream, HTTPResponse response)
+        {
+            this.stream = stream;
+            this.bodyLength = response.getBodyLength();
+            this.header = new byte[(int) (response.getLength() - bodyLength)];
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException
+        {
+            int written = src.remaining();
+
+            while (src.hasRemaining())
+            {
+                if (headerReceived < header.length)
+                {
+                    int n = Math.min(src.remaining(), header.length - headerReceived);
+                    src.get(header, headerReceived, n);
+                    headerReceived += n;
+
+                    if (headerReceived == header.length)
+                    {
+                        sendHeaders();
+                    }
+                    continue;
+                }
+
+                int n = Math.min(src.remaining(), FRAME_SIZE - buffered);
+                src.get(data, buffered, n);
+                buffered += n;
+                bodyReceived += n;
+
+                if (buffered == FRAME_SIZE || bodyReceived >= bodyLength)
+                {
+                    sendData(bodyReceived >= bodyLength);
+                }
+            }
+
+            return written;
+        }
+
+        /**
+         * Ends the stream, also if the body turned out shorter than announced
+         */
+        void finish() throws IOException
+        {
+            if (headerReceived < header.length)
+            {
+                throw new IOException("Response header incomplete");
+            }
+
+            if (!ended)
+            {
+                sendData(true);
+            }
+        }
+
+        /**
+         * Returns the data buffer to the pool once the response is done
+         */
+        void release()
+        {
+            BufferPool.SHARED.release(data);
+        }
+
+        private void sendHeaders() throws IOException
+        {
+            String text = new String(header, StandardCharsets.ISO_8859_1);
+            String[] lines = text.split("\r\n");
+            List<String> fields = new ArrayList<>();
+
+            fields.add(":status");
+            fields.add(lines[0].substring(9, 12));
+
+            for (int i = 1; i < lines.length; i++)
+            {
+                int colon = lines[i].indexOf(':');
+
+                if (colon <= 0)
+                {
+                    continue;
+                }
+
+                String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+
+                if (!CONNECTION_HEADERS.contains(name))
+                {
+                    fields.add(name);
+                    fields.add(lines[i].substring(colon + 1).trim());
+                }
+            }
+
+            ended = bodyLength == 0;
+            writeHeaders(stream, HPACK.encode(fields), ended);
+        }
+
+        private void sendData(boolean last) throws IOException
+        {
+            int off = 0;
+
+            do
+            {
+                int n = buffered == 0 ? 0 : reserve(stream, buffered - off);
+                boolean end = last && off + n == buffered;
+                writeData(stream, end, data, off, n, n);
+                off += n;
+            }
+            while (off < buffered);
+
+            buffered = 0;
+            ended = last;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return !closed && !stream.reset;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+    private void sendSettings() throws IOException
+    {
+        byte[] settings = new byte[18];
+        putSetting(settings, 0, SETTINGS_MAX_CONCURRENT_STREAMS, ServerConfig.H2_MAX_STREAMS);
+        putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, ServerConfig.H2_WINDOW);
+        putSetting(settings, 12, SETTINGS_MAX_HEADER_LIST_SIZE, ServerConfig.MAX_HEADER_BYTES);
+        writeFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+
+        // The connection window can only be raised with an update
+        if (ServerConfig.H2_WINDOW > DEFAULT_WINDOW)
+        {
+            writeWindowUpdate(0, ServerConfig.H2_WINDOW - DEFAULT_WINDOW);
+        }
+    }
+
+    private static void putSetting(byte[] settings, int off, int id, int value)
+    {
+        settings[off] = (byte) (id >>> 8);
+        settings[off + 1] = (byte) id;
+        putInt(settings, off + 2, value);
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException
+    {
+        byte[] frame = new byte[4];
+        putInt(frame, 0, increment);
+        writeFrame(WINDOW_UPDATE, 0, streamId, frame, 0, 4);
+    }
+
+    private void resetStream(int streamId, int code) throws IOException
+    {
+        synchronized (recentResets)
+        {
+            recentResets[recentResetNext] = streamId;
+            recentResetNext = (recentResetNext + 1) % recentResets.length;
+        }
+
+        Stream stream = streams.remove(streamId);
+
+        if (stream != null)
+        {
+            cancel(stream);
+        }
+
+        byte[] frame = new byte[4];
+        putInt(frame, 0, code);
+        writeFrame(RST_STREAM, 0, streamId, frame, 0, 4);
+    }
+
+    /**
+     * Checks if this side reset a stream recently
+     */
+    private boolean wasReset(int streamId)
+    {
+        synchronized (recentResets)
+        {
+            for (int id : recentResets)
+            {
+                if (id == streamId)
+                {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+
+    private void resetQuietly(int streamId, int code)
+    {
+        try
+        {
+            resetStream(streamId, code);
+        }
+        catch (IOException e)
+        {
+            // The connection is gone, nothing to reset
+        }
+    }
+
+    private void goAway(int code)
+    {
+        if (goAwaySent)
+        {
+            return;
+        }
+        goAwaySent = true;
+
+        byte[] frame = new byte[8];
+        putInt(frame, 0, lastStreamId);
+        putInt(frame, 4, code);
+
+        try
+        {
+            writeFrame(GOAWAY, 0, 0, frame, 0, 8);
+        }
+        catch (IOException e)
+        {
+            // The client went away first
+        }
+    }
+
+    /**
+     * Queues a header block as HEADERS and, if it does not fit one frame, CONTINUATION frames
+     */
+    private void writeHeaders(Stream stream, byte[] block, boolean endStream) throws IOException
+    {
+        int frames = Math.max(1, (block.length + FRAME_SIZE - 1) / FRAME_SIZE);
+        byte[] bytes = new byte[block.length + 9 * frames];
+        int off = 0, pos = 0;
+
+        do
+        {
+            int n = Math.min(FRAME_SIZE, block.length - off);
+            boolean last = off + n == block.length;
+            int flags = (last ? END_HEADERS : 0) | (off == 0 && endStream ? END_STREAM : 0);
+            pos = encode(bytes, pos, off == 0 ? HEADERS : CONTINUATION, flags, stream.id, block, off, n);
+            off += n;
+        }
+        while (off < block.length);
+
+        enqueue(new Frame(bytes, pos, false, stream, 0));
+    }
+
+    /**
+     * Queues one of the connection's own frames, it never waits for the writer
+     */
+    private void writeFrame(int type, int flags, int streamId, byte[] data, int off, int len) throws IOException
+    {
+        byte[] bytes = new byte[9 + len];
+        encode(bytes, 0, type, flags, streamId, data, off, len);
+        enqueue(new Frame(bytes, bytes.length, false, null, 0));
+    }
+
+    /**
+     * Queues a DATA frame of a response, waiting while the outbox is full
+     * @param window - bytes taken from the send windows for it
+     */
+    private void writeData(Stream stream, boolean endStream, byte[] data, int off, int len, int window) throws IOException
+    {
+        byte[] bytes = BufferPool.SHARED.acquireArray(9 + len);
+        int length = encode(bytes, 0, DATA, endStream ? END_STREAM : 0, stream.id, data, off, len);
+        enqueue(new Frame(bytes, length, true, stream, window));
+    }
+
+    private void writeRaw(byte[] bytes) throws IOException
+    {
+        enqueue(new Frame(bytes, bytes.length, false, null, 0));
+    }
+
+    /**
+     * Writes the frame header and payload into a buffer
+     * @return position after the frame
+     */
+    private static int encode(byte[] bytes, int pos, int type, int flags, int streamId, byte[] data, int off, int len)
+    {
+        bytes[pos] = (byte) (len >>> 16);
+        bytes[pos + 1] = (byte) (len >>> 8);
+        bytes[pos + 2] = (byte) len;
+        bytes[pos + 3] = (byte) type;
+        bytes[pos + 4] = (byte) flags;
+        putInt(bytes, pos + 5, streamId);
+        System.arraycopy(data, off, bytes, pos + 9, len);
+        return pos + 9 + len;
+    }
+
+    /**
+     * Hands frames to the writer thread. Frames of a response wait while the outbox is full,
+     * nothing is queued for a stream once it has been reset.
+     * @throws IOException if the connection or the stream has ended
+     */
+    private void enqueue(Frame frame) throws IOException
+    {
+        String refused = null;
+
+        synchronized (outbox)
+        {
+            Stream stream = frame.stream;
+
+            try
+            {
+                while (stream != null && !closed && !stream.reset && outboxBytes >= OUTBOX_LIMIT)
+                {
+                    outbox.wait();
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                refused = "Interrupted waiting for the writer";
+            }
+
+            if (refused == null && closed)
+            {
+                refused = "Connection closed";
+            }
+            else if (refused == null && stream != null && stream.reset)
+            {
+                refused = "Stream reset";
+            }
+            else if (refused == null && stream == null && outboxBytes >= CONTROL_LIMIT)
+            {
+                refused = "Client is not reading";
+            }
+
+            if (refused == null)
+            {
+                outbox.add(frame);
+                outboxBytes += frame.length;
+                outbox.notifyAll();
+                return;
+            }
+        }
+
+        // Outside the outbox lock, the flow lock is always taken first
+        drop(frame);
+        throw new IOException(refused);
+    }
+
+    /**
+     * Runs on the writer thread: writes queued frames in order until the connection is
+     * closed and the outbox is empty, or writing fails
+     */
+    private void writeFrames()
+    {
+        try
+        {
+            while (true)
+            {
+                Frame frame;
+
+                synchronized (outbox)
+                {
+                    while (outbox.isEmpty() && !closed)
+                    {
+                        outbox.wait();
+                    }
+
+                    frame = outbox.poll();
+
+                    if (frame == null)
+                    {
+                        return;
+                    }
+
+                    outboxBytes -= frame.length;
+                    outbox.notifyAll();
+                }
+
+                // A stream the client reset must not get any more frames
+                if (frame.stream != null && frame.stream.resetByClient)
+                {
+                    drop(frame);
+                    continue;
+                }
+
+                ByteBuffer buffer = ByteBuffer.wrap(frame.bytes, 0, frame.length);
+
+                while (buffer.hasRemaining())
+                {
+                    out.write(buffer);
+                }
+
+                if (frame.pooled)
+                {
+                    BufferPool.SHARED.release(frame.bytes);
+                }
+            }
+        }
+        catch (IOException | InterruptedException e)
+        {
+            // The client is gone: nothing more can be sent, the reading side finds out on its next read
+            List<Frame> left;
+
+            synchronized (outbox)
+            {
+                closed = true;
+                left = new ArrayList<>(outbox);
+                outbox.clear();
+                outboxBytes = 0;
+                outbox.notifyAll();
+            }
+
+            for (Frame frame : left)
+            {
+                drop(frame);
+            }
+
+            synchronized (flowLock)
+            {
+                flowLock.notifyAll();
+            }
+
+            try
+            {
+                socket.shutdownInput();
+            }
+            catch (IOException ignored)
+            {
+                // Already closed
+            }
+        }
+    }
+
+    /**
+     * Discards a frame that is not sent. The window of a DATA frame is given back, the client never counts it.
+     */
+    private void drop(Frame frame)
+    {
+        if (frame.pooled)
+        {
+            BufferPool.SHARED.release(frame.bytes);
+        }
+
+        if (frame.window > 0)
+        {
+            synchronized (flowLock)
+            {
+                connectionWindow += frame.window;
+                flowLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Strips the padding of a PADDED frame
+     * @return end of the data in the payload
+     */
+    private int unpad(int length) throws ConnectionException
+    {
+        if (length < 1)
+        {
+            throw new ConnectionException(PROTOCOL_ERROR, "Padded frame without pad length");
+        }
+
+        int padding = payload[0] & 0xff;
+
+        if (padding >= length)
+        {
+            throw new ConnectionException(PROTOCOL_ERROR, "Padding longer than the frame");
+        }
+
+        return length - padding;
+    }
+
+    private static int readInt(byte[] data, int off)
+    {
+        return ((data[off] & 0xff) << 24) | ((data[off + 1] & 0xff) << 16) | ((data[off + 2] & 0xff) << 8) | (data[off + 3] & 0xff);
+    }
+
+    private static void putInt(byte[] data, int off, int value)
+    {
+        data[off] = (byte) (value >>> 24);
+        data[off + 1] = (byte) (value >>> 16);
+        data[off + 2] = (byte) (value >>> 8);
+        data[off + 3] = (byte) value;
+    }
+}
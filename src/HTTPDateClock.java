@@ -0,0 +1,94 @@
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * Shared source of HTTP dates (RFC 7231 IMF-fixdate, e.g. "Sun, 06 Nov 1994 08:49:37 GMT").
+ * The current date is formatted at most once per second and handed out to all threads,
+ * both as a String and as a ready-to-send "Date: ...\r\n" header line.
+ * @author Maxim Kravchenko
+ */
+final class HTTPDateClock {
+
+    // DateTimeFormatter is immutable and thread-safe, unlike SimpleDateFormat
+    private static final DateTimeFormatter IMF_FIXDATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private static volatile Tick current = new Tick(System.currentTimeMillis() / 1000);
+
+    private HTTPDateClock() {
+    }
+
+    /**
+     * One formatted second, published as a whole so readers never see a mix of two seconds
+     */
+    private static final class Tick {
+        final long second;
+        final String text;
+        final byte[] headerLine;
+
+        Tick(long second) {
+            this.second = second;
+            this.text = IMF_FIXDATE.format(Instant.ofEpochSecond(second));
+            this.headerLine = ("Date: " + text + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Gets the current second, formatting it only if the second has changed
+     * @return the current tick
+     */
+    private static Tick tick() {
+        Tick t = current;
+        long second = System.currentTimeMillis() / 1000;
+
+        // Several threads may format the new second at once, they all produce the same value
+        if (t.second != second) {
+            t = new Tick(second);
+            current = t;
+        }
+
+        return t;
+    }
+
+    /**
+     * Gets the current date formatted for the Date header
+     * @return String representation of the current date
+     */
+    static String now() {
+        return tick().text;
+    }
+
+    /**
+     * Gets the complete, already encoded Date header line
+     * @return "Date: ...\r\n" as bytes, must not be modified
+     */
+    static byte[] dateHeaderLine() {
+        return tick().headerLine;
+    }
+
+    /**
+     * Parses an HTTP date as sent in If-Modified-Since or If-Range
+     * @param date - the date, IMF-fixdate or RFC 1123 format
+     * @return milliseconds since the epoch, -1 if the date can not be parsed
+     */
+    static long parse(String date) {
+        try {
+            return Instant.from(DateTimeFormatter.RFC_1123_DATE_TIME.parse(date.trim())).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Formats any point in time, e.g. a file's modification time for Last-Modified
+     * @param millis - milliseconds since the epoch
+     * @return String representation of the date
+     */
+    static String format(long millis) {
+        return IMF_FIXDATE.format(Instant.ofEpochMilli(millis));
+    }
+}
@@ -0,0 +1,30 @@
+import java.io.IOException;
+
+/**
+ * Thrown when a request can not be read, carries the status code the client should get
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+class HTTPRequestException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final String status;
+
+    /**
+     * @param status - status line to answer with, e.g. "413 Payload Too Large"
+     */
+    HTTPRequestException(String status)
+    {
+        super(status);
+        this.status = status;
+    }
+
+    /**
+     * Gets the status the client should be answered with
+     * @return status code and reason
+     */
+    String getStatus()
+    {
+        return status;
+    }
+}
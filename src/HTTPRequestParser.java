@@ -0,0 +1,335 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Allocation-light parser for the request line and headers. Works directly on the request
+ * bytes: known methods and versions are matched against constants and returned as the same
+ * interned String every time, and headers are kept as offsets in flat arrays. Only values
+ * that are actually asked for become Strings. One instance is reused for every request
+ * on a connection or event loop, so it is not thread-safe.
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+class HTTPRequestParser
+{
+    static final String GET = "GET", HEAD = "HEAD", POST = "POST", PUT = "PUT", DELETE = "DELETE",
+            OPTIONS = "OPTIONS", CONNECT = "CONNECT", TRACE = "TRACE", PATCH = "PATCH";
+
+    static final String HTTP_1_0 = "HTTP/1.0", HTTP_1_1 = "HTTP/1.1";
+
+    private static final String[] METHODS = {GET, POST, PUT, HEAD, DELETE, OPTIONS, CONNECT, TRACE, PATCH};
+    private static final byte[][] METHOD_BYTES = encode(METHODS);
+
+    private static final String[] VERSIONS = {HTTP_1_1, HTTP_1_0};
+    private static final byte[][] VERSION_BYTES = encode(VERSIONS);
+
+    private byte[] buf;
+    private String method;
+    private String version;
+    private int targetStart, targetEnd;
+    private String target;
+    private int headersEnd;
+
+    // Header i is buf[nameStart[i]..nameEnd[i]): buf[valueStart[i]..valueEnd[i])
+    private int headerCount;
+    private int[] nameStart = new int[16], nameEnd = new int[16], valueStart = new int[16], valueEnd = new int[16];
+
+    /**
+     * Parses the request line and headers of a request
+     * @param request - request bytes, starting with the request line
+     * @param length - number of valid bytes
+     * @return true if the request line and headers are well formed
+     */
+    boolean parse(byte[] request, int length)
+    {
+        return parse(request, 0, length);
+    }
+
+    /**
+     * Parses the request line and headers of a request in the middle of a larger buffer,
+     * e.g. the read buffer of a connection. Offsets handed out afterwards are into that buffer.
+     * @param request - buffer holding the request
+     * @param offset - index of the first byte of the request line
+     * @param length - number of valid bytes from offset
+     * @return true if the request line and headers are well formed
+     */
+    boolean parse(byte[] request, int offset, int length)
+    {
+        int limit = offset + length;
+
+        buf = request;
+        method = null;
+        version = null;
+        target = null;
+        headerCount = 0;
+        headersEnd = -1;
+
+        // Request line: METHOD SP TARGET SP VERSION CRLF
+        int sp1 = indexOf(' ', offset, limit);
+        int lineEnd = indexOf('\r', offset, limit);
+
+        if (sp1 <= offset || lineEnd < 0 || lineEnd + 1 >= limit || buf[lineEnd + 1] != '\n')
+        {
+            return false;
+        }
+
+        int sp2 = indexOf(' ', sp1 + 1, lineEnd);
+
+        if (sp2 < 0 || sp2 == sp1 + 1 || sp2 + 1 >= lineEnd)
+        {
+            return false;
+        }
+
+        method = lookup(METHODS, METHOD_BYTES, offset, sp1);
+        targetStart = sp1 + 1;
+        targetEnd = sp2;
+        version = lookup(VERSIONS, VERSION_BYTES, sp2 + 1, lineEnd);
+
+        // Header lines until the empty line
+        int pos = lineEnd + 2;
+
+        while (true)
+        {
+            int end = indexOf('\r', pos, limit);
+
+            if (end < 0 || end + 1 >= limit || buf[end + 1] != '\n')
+            {
+                return false;
+            }
+
+            if (end == pos)
+            {
+                headersEnd = end + 2;
+                return true;
+            }
+
+            int colon = indexOf(':', pos, end);
+
+            if (colon <= pos)
+            {
+                return false;
+            }
+
+            int valueFrom = skipSpaces(colon + 1, end);
+            addHeader(pos, colon, valueFrom, trimEnd(valueFrom, end));
+            pos = end + 2;
+        }
+    }
+
+    /**
+     * Gets the method, known methods are returned as the constants of this class
+     * @return request method
+     */
+    String getMethod()
+    {
+        return method;
+    }
+
+    /**
+     * Gets the request target as sent, e.g. /dir1/index.htm
+     * @return request target
+     */
+    String getTarget()
+    {
+        if (target == null)
+        {
+            target = new String(buf, targetStart, targetEnd - targetStart, StandardCharsets.UTF_8);
+        }
+        return target;
+    }
+
+    /**
+     * Gets the protocol version, known versions are returned as the constants of this class
+     * @return protocol version
+     */
+    String getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Gets the index of the first body byte in the parsed buffer
+     * @return end of the headers
+     */
+    int getBodyOffset()
+    {
+        return headersEnd;
+    }
+
+    /**
+     * Gets the value of a header, compared without regard to case
+     * @param name - header name
+     * @return value of the first header with that name, null if there is none
+     */
+    String getHeader(String name)
+    {
+        int i = find(name);
+        return i < 0 ? null : new String(buf, valueStart[i], valueEnd[i] - valueStart[i], StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Checks a header value without creating a String for it
+     * @param name - header name
+     * @param value - expected value, compared without regard to case
+     * @return true if the header is present with that value
+     */
+    boolean headerEquals(String name, String value)
+    {
+        int i = find(name);
+        return i >= 0 && equalsIgnoreCase(valueStart[i], valueEnd[i], value);
+    }
+
+    /**
+     * Reads a header as a non-negative number
+     * @param name - header name
+     * @return the value, -1 if the header is missing, -2 if it is not a valid number
+     */
+    long getLongHeader(String name)
+    {
+        int i = find(name);
+
+        if (i < 0)
+        {
+            return -1;
+        }
+
+        long value = 0;
+
+        if (valueStart[i] == valueEnd[i] || valueEnd[i] - valueStart[i] > 18)
+        {
+            return -2;
+        }
+
+        for (int p = valueStart[i]; p < valueEnd[i]; p++)
+        {
+            int d = buf[p] - '0';
+
+            if (d < 0 || d > 9)
+            {
+                return -2;
+            }
+            value = value * 10 + d;
+        }
+
+        return value;
+    }
+
+    private int find(String name)
+    {
+        for (int i = 0; i < headerCount; i++)
+        {
+            if (equalsIgnoreCase(nameStart[i], nameEnd[i], name))
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private boolean equalsIgnoreCase(int from, int to, String s)
+    {
+        if (to - from != s.length())
+        {
+            return false;
+        }
+
+        for (int i = 0; i < s.length(); i++)
+        {
+            int a = buf[from + i], b = s.charAt(i);
+
+            if (a != b && toLower(a) != toLower(b))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int toLower(int c)
+    {
+        return c >= 'A' && c <= 'Z' ? c + 32 : c;
+    }
+
+    private void addHeader(int ns, int ne, int vs, int ve)
+    {
+        if (headerCount == nameStart.length)
+        {
+            int size = headerCount * 2;
+            nameStart = Arrays.copyOf(nameStart, size);
+            nameEnd = Arrays.copyOf(nameEnd, size);
+            valueStart = Arrays.copyOf(valueStart, size);
+            valueEnd = Arrays.copyOf(valueEnd, size);
+        }
+
+        nameStart[headerCount] = ns;
+        nameEnd[headerCount] = ne;
+        valueStart[headerCount] = vs;
+        valueEnd[headerCount] = ve;
+        headerCount++;
+    }
+
+    private int indexOf(char c, int from, int to)
+    {
+        for (int i = from; i < to; i++)
+        {
+            if (buf[i] == c)
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private int skipSpaces(int from, int to)
+    {
+        while (from < to && (buf[from] == ' ' || buf[from] == '\t'))
+        {
+            from++;
+        }
+        return from;
+    }
+
+    private int trimEnd(int from, int to)
+    {
+        while (to > from && (buf[to - 1] == ' ' || buf[to - 1] == '\t'))
+        {
+            to--;
+        }
+        return to;
+    }
+
+    /**
+     * Matches bytes against a table of known tokens
+     * @return the matching constant, or a new String for an unknown token
+     */
+    private String lookup(String[] names, byte[][] encoded, int from, int to)
+    {
+        int len = to - from;
+
+        for (int i = 0; i < encoded.length; i++)
+        {
+            byte[] candidate = encoded[i];
+
+            if (candidate.length == len && Arrays.equals(buf, from, to, candidate, 0, len))
+            {
+                return names[i];
+            }
+        }
+
+        return new String(buf, from, len, StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[][] encode(String[] tokens)
+    {
+        byte[][] encoded = new byte[tokens.length][];
+
+        for (int i = 0; i < tokens.length; i++)
+        {
+            encoded[i] = tokens[i].getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        return encoded;
+    }
+}
@@ -0,0 +1,820 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Incremental HTTP/1.1 request reader. Bytes are fed in as they arrive, either from a
+ * blocking stream or from a non-blocking channel, and a request is handed out once the
+ * headers and the whole body (Content-Length or chunked) have been received.
+ * Bytes belonging to a following request are kept for the next call.
+ *
+ * A request is handed out in place: its request line and headers stay where they were
+ * received in the reader's buffer, and a body kept in memory is handed out in the array it
+ * was collected in. The request is valid until next() or close() is called again, no
+ * bytes may be fed to the reader while it is being handled.
+ *
+ * A body handler can take over the body of a request after its headers have arrived,
+ * the body is then passed on as it comes in instead of being held in memory.
+ *
+ * Memory for the body is reserved from the body budget before any of it is taken in, and
+ * given back once the next request is read or the reader is closed. While no memory is
+ * available the request waits with its body unread, up to the configured time.
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+class HTTPRequestReader
+{
+    private static final String HEADERS_TOO_LARGE = "431 Request Header Fields Too Large",
+            BODY_TOO_LARGE = "413 Payload Too Large",
+            BAD_REQUEST = "400 Bad Request",
+            SERVER_ERROR = "500 Internal Server Error",
+            SERVICE_UNAVAILABLE = "503 Service Unavailable";
+
+    // Chunk decoding states, any other value is the number of data bytes left in the current chunk
+    private static final long AWAIT_SIZE = -1, AWAIT_TRAILER = -2, AWAIT_DATA_END = -3;
+
+    /**
+     * Receives a request body piece by piece
+     */
+    interface BodySink
+    {
+        /**
+         * @param data - source array
+         * @param off - first body byte
+         * @param len - number of body bytes
+         */
+        void write(byte[] data, int off, int len) throws IOException;
+
+        /**
+         * Called once the whole body has been received
+         */
+        void finish() throws IOException;
+
+        /**
+         * Called if the request is abandoned, the sink should release what it holds
+         */
+        void abort();
+
+        /**
+         * Gets the memory the sink holds while the body arrives, counted against the body budget
+         * @return size of its buffers in bytes
+         */
+        int bufferSize();
+    }
+
+    /**
+     * Decides, from the request line and headers, whether a body should be streamed
+     */
+    interface BodyHandler
+    {
+        /**
+         * @param head - buffer holding the request line and headers, including the blank line
+         * @param off - first byte of the request line
+         * @param len - length of the request line and headers
+         * @return a sink for the body, or null to keep the body in memory
+         */
+        BodySink open(byte[] head, int off, int len) throws IOException;
+    }
+
+    /**
+     * A complete request: the request line and headers in data[offset..offset + length),
+     * and the body in body[0..bodyLength) unless it was streamed or there is none
+     */
+    static final class Request
+    {
+        final byte[] data;
+        final int offset;
+        final int length;
+        final byte[] body;
+        final int bodyLength;
+
+        /**
+         * @param data - buffer holding the request line and headers
+         * @param offset - first byte of the request line
+         * @param length - length of the request line and headers
+         * @param body - body kept in memory, or null
+         * @param bodyLength - number of body bytes
+         */
+        Request(byte[] data, int offset, int length, byte[] body, int bodyLength)
+        {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.body = body;
+            this.bodyLength = bodyLength;
+        }
+
+        /**
+         * Wraps a request that is already in an array of its own, e.g. one translated from HTTP/2
+         * @param head - request line and headers, without a body
+         */
+        Request(byte[] head)
+        {
+            this(head, 0, head.length, null, 0);
+        }
+
+        /**
+         * Copies the request out of the reader's buffer, for a request that has to outlive it
+         * @return a request backed by arrays of its own
+         */
+        Request copy()
+        {
+            return new Request(Arrays.copyOfRange(data, offset, offset + length), 0, length,
+                    body == null ? null : Arrays.copyOf(body, bodyLength), bodyLength);
+        }
+
+        /**
+         * Checks if the request line and headers are exactly the given bytes and there is no body
+         * @param head - expected request line and headers
+         * @return true if they match
+         */
+        boolean is(byte[] head)
+        {
+            return bodyLength == 0 && Arrays.equals(data, offset, offset + length, head, 0, head.length);
+        }
+    }
+
+    private final int maxHeaderBytes;
+    private final long maxBodyBytes;
+    private final HTTPRequestParser parser = new HTTPRequestParser();
+
+    private BodyHandler bodyHandler;
+    private long maxStreamedBytes;
+
+    // Received but not yet consumed bytes are buf[start..length). The request line and headers
+    // of the current request stay in front of them, at buf[headStart..headStart + headLength).
+    // The buffer comes from the buffer pool when the first bytes arrive and goes back once
+    // the reader is idle or closed.
+    private byte[] buf;
+    private int start;
+    private int length;
+
+    // Where to continue looking for the end of the headers
+    private int scanFrom;
+
+    // Set once the headers of the current request are complete, headStart is -1 before
+    private int headStart = -1;
+    private int headLength;
+    private String upgrade;
+    private boolean chunked;
+    private long bodyRemaining;
+    private long chunkRemaining = AWAIT_SIZE;
+    private long bodyReceived;
+
+    // Where the body goes: a sink, or the in-memory body buffer
+    private BodySink sink;
+    private byte[] body;
+    private int bodyLength;
+
+    // Sink that received the body of the last returned request, and its Upgrade header
+    private BodySink streamedBody;
+    private String returnedUpgrade;
+
+    // Body budget bytes of the request being received and of the last returned request
+    private long reserved;
+    private long held;
+    private boolean budgetGranted;
+    private long budgetWaitSince;
+    private final int budgetWait = ServerConfig.BODY_BUDGET_WAIT;
+
+    /**
+     * @param maxHeaderBytes - largest accepted request line plus headers, larger gives 431
+     * @param maxBodyBytes - largest accepted body held in memory, larger gives 413
+     */
+    HTTPRequestReader(int maxHeaderBytes, long maxBodyBytes)
+    {
+        this.maxHeaderBytes = maxHeaderBytes;
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    /**
+     * Lets bodies be streamed to a sink instead of being held in memory
+     * @param handler - decides per request whether to stream
+     * @param maxStreamedBytes - largest accepted streamed body, larger gives 413
+     */
+    void setBodyHandler(BodyHandler handler, long maxStreamedBytes)
+    {
+        this.bodyHandler = handler;
+        this.maxStreamedBytes = maxStreamedBytes;
+    }
+
+    /**
+     * Checks if the current request is held back until body memory becomes available.
+     * Its body should be left unread meanwhile.
+     * @return true if waiting for the body budget
+     */
+    boolean isWaitingForBudget()
+    {
+        return headStart >= 0 && !budgetGranted;
+    }
+
+    /**
+     * Adds received bytes
+     * @param data - source array
+     * @param off - first byte to add
+     * @param len - number of bytes to add
+     */
+    void feed(byte[] data, int off, int len)
+    {
+        ensureCapacity(len);
+        System.arraycopy(data, off, buf, length, len);
+        length += len;
+    }
+
+    /**
+     * Adds all remaining bytes of a buffer in read mode
+     * @param data - the buffer
+     */
+    void feed(ByteBuffer data)
+    {
+        int len = data.remaining();
+        ensureCapacity(len);
+        data.get(buf, length, len);
+        length += len;
+    }
+
+    /**
+     * Checks if a request has been partially received
+     * @return true if there are bytes that are not part of a returned request
+     */
+    boolean hasBufferedData()
+    {
+        return length > start || headStart >= 0;
+    }
+
+    /**
+     * Takes the received bytes that are not part of a returned request,
+     * used when the connection switches to another protocol
+     * @return the buffered bytes, possibly none
+     */
+    byte[] takeBuffered()
+    {
+        byte[] rest = new byte[length - start];
+
+        if (rest.length > 0)
+        {
+            System.arraycopy(buf, start, rest, 0, rest.length);
+        }
+
+        start = 0;
+        length = 0;
+        scanFrom = 0;
+        return rest;
+    }
+
+    /**
+     * Gets the sink that received the body of the request last returned by next()
+     * @return the sink, or null if that body was kept in memory
+     */
+    BodySink getStreamedBody()
+    {
+        return streamedBody;
+    }
+
+    /**
+     * Gets the Upgrade header of the request last returned by next(), taken from the parse
+     * that found its framing, so a protocol switch can be detected without parsing again
+     * @return the header value, or null if the request has none
+     */
+    String getUpgrade()
+    {
+        return returnedUpgrade;
+    }
+
+    /**
+     * Returns the next complete request if it has arrived. A chunked body is returned decoded,
+     * a streamed body is not part of the returned request.
+     * @return the request, valid until the next call, or null if more bytes are needed
+     * @throws HTTPRequestException if the request is malformed or too large
+     */
+    Request next() throws HTTPRequestException
+    {
+        streamedBody = null;
+        returnedUpgrade = null;
+
+        // The previous request has been handled by now, its body memory is free again
+        releaseBudget(held);
+        held = 0;
+
+        // and so are its bytes. Idle connections hold no buffer, the next bytes get one from the pool again.
+        if (headStart < 0 && start == length)
+        {
+            start = 0;
+            length = 0;
+            scanFrom = 0;
+            releaseBuffer();
+        }
+
+        try
+        {
+            if (headStart < 0 && !readHead())
+            {
+                return null;
+            }
+
+            if (!budgetGranted && !reserveBudget())
+            {
+                return null;
+            }
+
+            if (!(chunked ? readChunks() : readBody()))
+            {
+                return null;
+            }
+
+            if (sink != null)
+            {
+                sink.finish();
+            }
+        }
+        catch (HTTPRequestException e)
+        {
+            close();
+            throw e;
+        }
+        catch (IOException e)
+        {
+            // The sink failed, e.g. the disk is full
+            e.printStackTrace();
+            close();
+            throw new HTTPRequestException(SERVER_ERROR);
+        }
+
+        // The headers stay where they are until the next call, nothing is fed in the meantime
+        Request request = new Request(buf, headStart, headLength, body, bodyLength);
+
+        streamedBody = sink;
+        returnedUpgrade = upgrade;
+        held = reserved;
+        reserved = 0;
+        reset();
+
+        return request;
+    }
+
+    /**
+     * Blocks until a complete request has been read from the stream.
+     * Read timeouts are those of the underlying socket.
+     * @param in - stream to read from
+     * @param scratch - buffer used for reading
+     * @return the request, or null if the stream ended before a new request started
+     * @throws HTTPRequestException if the request is malformed, too large or cut off
+     * @throws IOException if reading fails or times out
+     */
+    Request read(InputStream in, byte[] scratch) throws IOException
+    {
+        Request request;
+
+        while ((request = next()) == null)
+        {
+            // Out of body memory: the body stays in the socket until memory frees up
+            if (isWaitingForBudget())
+            {
+                awaitBudget();
+                continue;
+            }
+
+            int readBytes = in.read(scratch);
+
+            if (readBytes < 0)
+            {
+                if (hasBufferedData())
+                {
+                    close();
+                    throw new HTTPRequestException(BAD_REQUEST);
+                }
+                return null;
+            }
+
+            Metrics.SHARED.bytesReceived(readBytes);
+            feed(scratch, 0, readBytes);
+        }
+
+        return request;
+    }
+
+    /**
+     * Abandons a partially received request, e.g. when the connection is closed,
+     * and returns the buffer to the pool. The reader can still be used afterwards.
+     */
+    void close()
+    {
+        if (sink != null)
+        {
+            sink.abort();
+        }
+
+        reset();
+        start = 0;
+        length = 0;
+        scanFrom = 0;
+        releaseBuffer();
+
+        releaseBudget(reserved + held);
+        reserved = 0;
+        held = 0;
+    }
+
+    private void releaseBuffer()
+    {
+        if (buf != null)
+        {
+            BufferPool.SHARED.release(buf);
+            buf = null;
+        }
+    }
+
+    /**
+     * Looks for the blank line ending the headers, takes them out of the buffer
+     * and sets up body framing when found
+     * @return true if the headers are complete
+     */
+    private boolean readHead() throws IOException
+    {
+        int headerEnd = -1;
+
+        for (int i = Math.max(scanFrom, start + 3); i < length; i++)
+        {
+            if (buf[i] == '\n' && buf[i - 1] == '\r' && buf[i - 2] == '\n' && buf[i - 3] == '\r')
+            {
+                headerEnd = i + 1;
+                break;
+            }
+        }
+
+        if (headerEnd < 0)
+        {
+            if (length - start > maxHeaderBytes)
+            {
+                throw new HTTPRequestException(HEADERS_TOO_LARGE);
+            }
+
+            scanFrom = length;
+            return false;
+        }
+
+        if (headerEnd - start > maxHeaderBytes)
+        {
+            throw new HTTPRequestException(HEADERS_TOO_LARGE);
+        }
+
+        // The headers are not copied, they stay in the buffer in front of the body
+        headStart = start;
+        headLength = headerEnd - start;
+        consume(headLength);
+
+        readFraming();
+
+        sink = bodyHandler == null ? null : bodyHandler.open(buf, headStart, headLength);
+
+        if (!chunked && bodyRemaining > (sink != null ? maxStreamedBytes : maxBodyBytes))
+        {
+            throw new HTTPRequestException(BODY_TOO_LARGE);
+        }
+
+        return true;
+    }
+
+    /**
+     * Reserves memory for the body before any of it is taken in: the whole body if it is kept
+     * in memory and its length is known, the buffers of the sink if it is streamed. A chunked
+     * body kept in memory reserves as it grows instead.
+     * @return true if reserved, false if the request has to wait
+     * @throws HTTPRequestException if the request has waited too long
+     */
+    private boolean reserveBudget() throws HTTPRequestException
+    {
+        long bytes = sink != null ? sink.bufferSize() : bodyRemaining;
+
+        if (bytes > 0 && !BodyBudget.SHARED.tryAcquire(bytes))
+        {
+            long now = System.currentTimeMillis();
+
+            if (budgetWaitSince == 0)
+            {
+                budgetWaitSince = now;
+            }
+
+            if (now - budgetWaitSince >= budgetWait)
+            {
+                BodyBudget.SHARED.refused();
+                throw new HTTPRequestException(SERVICE_UNAVAILABLE);
+            }
+            return false;
+        }
+
+        reserved += bytes;
+        budgetGranted = true;
+        budgetWaitSince = 0;
+
+        // Size the in-memory body up front when the length is known
+        if (sink == null && bodyRemaining > 0)
+        {
+            body = new byte[(int) bodyRemaining];
+        }
+
+        return true;
+    }
+
+    /**
+     * Blocks until the body budget may have room for the waiting request, or its wait is over
+     */
+    private void awaitBudget() throws HTTPRequestException
+    {
+        long left = budgetWait - (System.currentTimeMillis() - budgetWaitSince);
+
+        try
+        {
+            BodyBudget.SHARED.await(sink != null ? sink.bufferSize() : bodyRemaining, Math.max(left, 1));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            close();
+            throw new HTTPRequestException(SERVICE_UNAVAILABLE);
+        }
+    }
+
+    private static void releaseBudget(long bytes)
+    {
+        if (bytes > 0)
+        {
+            BodyBudget.SHARED.release(bytes);
+        }
+    }
+
+    /**
+     * Reads Content-Length, Transfer-Encoding and Upgrade from the received headers
+     */
+    private void readFraming() throws HTTPRequestException
+    {
+        if (!parser.parse(buf, headStart, headLength))
+        {
+            throw new HTTPRequestException(BAD_REQUEST);
+        }
+
+        String transferEncoding = parser.getHeader("Transfer-Encoding");
+        long contentLength = parser.getLongHeader("Content-Length");
+        upgrade = parser.getHeader("Upgrade");
+
+        if (contentLength == -2)
+        {
+            throw new HTTPRequestException(BAD_REQUEST);
+        }
+
+        // Chunked encoding takes precedence over Content-Length
+        chunked = transferEncoding != null && transferEncoding.toLowerCase().endsWith("chunked");
+        bodyRemaining = chunked ? 0 : Math.max(contentLength, 0);
+    }
+
+    /**
+     * Passes on as much of a Content-Length body as has been received
+     * @return true once the whole body has been received
+     */
+    private boolean readBody() throws IOException
+    {
+        int count = (int) Math.min(length - start, bodyRemaining);
+
+        if (count > 0)
+        {
+            deliver(buf, start, count);
+            consume(count);
+            bodyRemaining -= count;
+        }
+
+        return bodyRemaining == 0;
+    }
+
+    /**
+     * Decodes as many chunks as have been received, chunk data is passed on as it arrives
+     * @return true once the last chunk and the trailers have been received
+     */
+    private boolean readChunks() throws IOException
+    {
+        while (true)
+        {
+            if (chunkRemaining == AWAIT_SIZE || chunkRemaining == AWAIT_TRAILER)
+            {
+                int lineEnd = indexOfCRLF();
+
+                if (lineEnd < 0)
+                {
+                    if (length - start > maxHeaderBytes)
+                    {
+                        throw new HTTPRequestException(BAD_REQUEST);
+                    }
+                    return false;
+                }
+
+                if (chunkRemaining == AWAIT_TRAILER)
+                {
+                    // Last chunk seen, skip trailer lines until the empty one
+                    consume(lineEnd + 2);
+
+                    if (lineEnd == 0)
+                    {
+                        return true;
+                    }
+                    continue;
+                }
+
+                long size = parseChunkSize(lineEnd);
+                consume(lineEnd + 2);
+                chunkRemaining = size == 0 ? AWAIT_TRAILER : size;
+            }
+            else if (chunkRemaining == AWAIT_DATA_END)
+            {
+                // Chunk data is followed by CRLF
+                if (length - start < 2)
+                {
+                    return false;
+                }
+
+                if (buf[start] != '\r' || buf[start + 1] != '\n')
+                {
+                    throw new HTTPRequestException(BAD_REQUEST);
+                }
+
+                consume(2);
+                chunkRemaining = AWAIT_SIZE;
+            }
+            else
+            {
+                int count = (int) Math.min(length - start, chunkRemaining);
+
+                if (count == 0)
+                {
+                    return false;
+                }
+
+                deliver(buf, start, count);
+                consume(count);
+                chunkRemaining -= count;
+
+                if (chunkRemaining == 0)
+                {
+                    chunkRemaining = AWAIT_DATA_END;
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands body bytes to the sink, or appends them to the in-memory body
+     */
+    private void deliver(byte[] data, int off, int len) throws IOException
+    {
+        bodyReceived += len;
+
+        if (bodyReceived > (sink != null ? maxStreamedBytes : maxBodyBytes))
+        {
+            throw new HTTPRequestException(BODY_TOO_LARGE);
+        }
+
+        if (sink != null)
+        {
+            sink.write(data, off, len);
+            return;
+        }
+
+        if (body == null || bodyLength + len > body.length)
+        {
+            byte[] bigger = new byte[Math.max(bodyLength + len, body == null ? 1024 : body.length * 2)];
+            int growth = bigger.length - (body == null ? 0 : body.length);
+
+            // Chunk data has already been read, there is no holding it back any more
+            if (!BodyBudget.SHARED.tryAcquire(growth))
+            {
+                BodyBudget.SHARED.refused();
+                throw new HTTPRequestException(SERVICE_UNAVAILABLE);
+            }
+            reserved += growth;
+
+            if (body != null)
+            {
+                System.arraycopy(body, 0, bigger, 0, bodyLength);
+            }
+            body = bigger;
+        }
+
+        System.arraycopy(data, off, body, bodyLength, len);
+        bodyLength += len;
+    }
+
+    /**
+     * @param lineEnd - length of the chunk size line, without its CRLF
+     */
+    private long parseChunkSize(int lineEnd) throws HTTPRequestException
+    {
+        long size = 0;
+        int digits = 0;
+
+        for (int i = start; i < start + lineEnd && buf[i] != ';' && buf[i] != ' '; i++)
+        {
+            int d = Character.digit(buf[i], 16);
+
+            if (d < 0 || ++digits > 15)
+            {
+                throw new HTTPRequestException(BAD_REQUEST);
+            }
+            size = size * 16 + d;
+        }
+
+        if (digits == 0)
+        {
+            throw new HTTPRequestException(BAD_REQUEST);
+        }
+
+        return size;
+    }
+
+    /**
+     * Finds the next line end among the unconsumed bytes
+     * @return number of bytes before the CRLF, or -1 if there is none yet
+     */
+    private int indexOfCRLF()
+    {
+        for (int i = start; i + 1 < length; i++)
+        {
+            if (buf[i] == '\r' && buf[i + 1] == '\n')
+            {
+                return i - start;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Marks bytes at the front of the unconsumed ones as consumed. They are not moved,
+     * the buffer is compacted only when it runs out of room.
+     * @param count - number of consumed bytes
+     */
+    private void consume(int count)
+    {
+        start += count;
+        scanFrom = start;
+    }
+
+    /**
+     * Clears the per-request state, received bytes of a following request are kept
+     */
+    private void reset()
+    {
+        scanFrom = start;
+        headStart = -1;
+        headLength = 0;
+        upgrade = null;
+        chunked = false;
+        bodyRemaining = 0;
+        chunkRemaining = AWAIT_SIZE;
+        bodyReceived = 0;
+        sink = null;
+        body = null;
+        bodyLength = 0;
+        budgetGranted = false;
+        budgetWaitSince = 0;
+    }
+
+    /**
+     * Makes room for more bytes at the end of the buffer. Consumed bytes in front are dropped
+     * first, the headers of the current request are kept, and the buffer only grows if that
+     * is not enough.
+     * @param extra - number of bytes to add
+     */
+    private void ensureCapacity(int extra)
+    {
+        if (buf == null)
+        {
+            buf = BufferPool.SHARED.acquireArray(Math.max(extra, 1024));
+            return;
+        }
+
+        if (length + extra <= buf.length)
+        {
+            return;
+        }
+
+        int from = headStart >= 0 ? headStart : start;
+        int kept = length - from;
+        byte[] target = kept + extra <= buf.length ? buf
+                : BufferPool.SHARED.acquireArray(Math.max(kept + extra, buf.length * 2));
+
+        System.arraycopy(buf, from, target, 0, kept);
+
+        if (target != buf)
+        {
+            BufferPool.SHARED.release(buf);
+            buf = target;
+        }
+
+        length = kept;
+        start -= from;
+        scanFrom = Math.max(scanFrom - from, start);
+
+        if (headStart >= 0)
+        {
+            headStart -= from;
+        }
+    }
+}
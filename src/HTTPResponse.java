@@ -0,0 +1,295 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A response ready to be sent: the header followed by a body made of one or more parts.
+ * A part is either held in memory (a cached file, a read-only view of a memory-mapped file
+ * or a small generated piece such as a multipart header) or a region of a file that is
+ * streamed to the socket with FileChannel.transferTo, so large files never get copied
+ * onto the heap. The file is opened when the response is built, so its length is known
+ * before the header goes out, and a file that gets shorter while it is sent ends the
+ * response with an error instead of a silently truncated body. Writing can be resumed,
+ * which lets the non-blocking engine send it piece by piece.
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+class HTTPResponse
+{
+    private final List<Part> parts = new ArrayList<>(2);
+    private final boolean keepAlive;
+
+    // Only set while every part is in memory, then everything goes out in gathering writes
+    private ByteBuffer[] buffers;
+    private boolean allInMemory = true;
+
+    private final int status;
+    private final long headerLength;
+    private long bodyLength;
+
+    private FileChannel file;
+    private int current;
+
+    /**
+     * One piece of the response, a buffer or a region of the response's file
+     */
+    private static final class Part
+    {
+        final ByteBuffer buffer;
+        long position;
+        long remaining;
+
+        Part(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        Part(long position, long length)
+        {
+            this.buffer = null;
+            this.position = position;
+            this.remaining = length;
+        }
+    }
+
+    /**
+     * Response whose body parts are added afterwards
+     * @param header - encoded status line and headers, ready to be read
+     * @param keepAlive - true if the connection stays open afterwards
+     */
+    HTTPResponse(ByteBuffer header, boolean keepAlive)
+    {
+        this.keepAlive = keepAlive;
+        this.status = statusOf(header);
+        this.headerLength = header.remaining();
+        parts.add(new Part(header));
+    }
+
+    /**
+     * Reads the status code from the status line, "HTTP/1.1 200 OK" has it at offset 9
+     */
+    private static int statusOf(ByteBuffer header)
+    {
+        int p = header.position() + 9;
+
+        if (header.limit() < p + 3)
+        {
+            return 0;
+        }
+
+        return (header.get(p) - '0') * 100 + (header.get(p + 1) - '0') * 10 + (header.get(p + 2) - '0');
+    }
+
+    /**
+     * Response with a body held in memory or in a mapped buffer
+     * @param header - encoded status line and headers, ready to be read
+     * @param body - body bytes, null for none
+     * @param keepAlive - true if the connection stays open afterwards
+     */
+    HTTPResponse(ByteBuffer header, ByteBuffer body, boolean keepAlive)
+    {
+        this(header, keepAlive);
+
+        if (body != null)
+        {
+            addBuffer(body);
+        }
+    }
+
+    /**
+     * Response with a body streamed straight from a file
+     * @param header - encoded status line and headers, ready to be read
+     * @param file - the file, opened with open(), closed by the response
+     * @param position - first byte of the file to send
+     * @param length - number of bytes to send
+     * @param keepAlive - true if the connection stays open afterwards
+     */
+    HTTPResponse(ByteBuffer header, FileChannel file, long position, long length, boolean keepAlive)
+    {
+        this(header, keepAlive);
+        addFileRegion(file, position, length);
+    }
+
+    /**
+     * Opens a file to stream a response body from
+     * @param filePath - path to the file
+     * @return the channel, its size() is the length the header must announce
+     * @throws IOException if the file can not be opened
+     */
+    static FileChannel open(String filePath) throws IOException
+    {
+        return FileChannel.open(Paths.get(filePath), StandardOpenOption.READ);
+    }
+
+    /**
+     * Appends a part held in memory
+     * @param buffer - the bytes between position and limit are sent
+     */
+    void addBuffer(ByteBuffer buffer)
+    {
+        parts.add(new Part(buffer));
+        bodyLength += buffer.remaining();
+        buffers = null;
+    }
+
+    /**
+     * Appends a region of a file, all regions of a response must come from the same file
+     * @param file - the file, opened with open(), closed by the response
+     * @param position - first byte of the file to send
+     * @param length - number of bytes to send
+     */
+    void addFileRegion(FileChannel file, long position, long length)
+    {
+        this.file = file;
+        parts.add(new Part(position, length));
+        bodyLength += length;
+        allInMemory = false;
+    }
+
+    /**
+     * Gets the status code of the response
+     * @return e.g. 200
+     */
+    int getStatus()
+    {
+        return status;
+    }
+
+    /**
+     * Gets the number of body bytes, as sent in Content-Length
+     * @return body length in bytes
+     */
+    long getBodyLength()
+    {
+        return bodyLength;
+    }
+
+    /**
+     * Gets the number of bytes of the whole response, header and body
+     * @return response length in bytes
+     */
+    long getLength()
+    {
+        return headerLength + bodyLength;
+    }
+
+    /**
+     * Checks if the connection should stay open after this response
+     * @return true for keep-alive
+     */
+    boolean isKeepAlive()
+    {
+        return keepAlive;
+    }
+
+    /**
+     * Writes as much of the response as the channel accepts. On a blocking channel
+     * the call is simply repeated until it returns true.
+     * @param channel - the connection
+     * @return true once the whole response has been written
+     * @throws IOException if writing or reading the file fails
+     */
+    boolean writeTo(WritableByteChannel channel) throws IOException
+    {
+        // Header and in-memory body parts go out together in gathering writes
+        if (allInMemory && parts.size() > 1 && channel instanceof GatheringByteChannel)
+        {
+            if (buffers == null)
+            {
+                buffers = new ByteBuffer[parts.size()];
+
+                for (int i = 0; i < buffers.length; i++)
+                {
+                    buffers[i] = parts.get(i).buffer;
+                }
+            }
+
+            ((GatheringByteChannel) channel).write(buffers);
+            return !buffers[buffers.length - 1].hasRemaining();
+        }
+
+        while (current < parts.size())
+        {
+            Part part = parts.get(current);
+
+            if (part.buffer != null ? !writeBuffer(part, channel) : !writeFileRegion(part, channel))
+            {
+                return false;
+            }
+
+            current++;
+        }
+
+        close();
+        return true;
+    }
+
+    private boolean writeBuffer(Part part, WritableByteChannel channel) throws IOException
+    {
+        channel.write(part.buffer);
+        return !part.buffer.hasRemaining();
+    }
+
+    private boolean writeFileRegion(Part part, WritableByteChannel channel) throws IOException
+    {
+        // Let the kernel copy file pages straight to the socket (sendfile where available)
+        long sent = file.transferTo(part.position, part.remaining, channel);
+        part.position += sent;
+        part.remaining -= sent;
+
+        // The file got shorter while it was sent, the announced Content-Length can not be met
+        // and the connection has to be closed, the client would otherwise wait for the rest
+        if (sent == 0 && part.remaining > 0 && part.position >= file.size())
+        {
+            throw new IOException("File truncated while sending, " + part.remaining + " bytes missing");
+        }
+
+        return part.remaining == 0;
+    }
+
+    /**
+     * Writes the whole response to a blocking channel
+     * @param channel - the connection, in blocking mode
+     * @throws IOException if writing fails
+     */
+    void writeFully(WritableByteChannel channel) throws IOException
+    {
+        try
+        {
+            while (!writeTo(channel))
+            {
+                // Keep going, a blocking channel only returns early for partial transfers
+            }
+        }
+        finally
+        {
+            close();
+        }
+    }
+
+    /**
+     * Releases the file channel if the response is abandoned before it was fully sent
+     */
+    void close()
+    {
+        if (file == null)
+        {
+            return;
+        }
+
+        try
+        {
+            file.close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+        file = null;
+    }
+}
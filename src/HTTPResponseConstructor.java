@@ -1,8 +1,9 @@
 import java.io.File;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Maxim Kravchenko
@@ -10,12 +11,40 @@ import java.util.TimeZone;
  */
 class HTTPResponseConstructor {
 
-    private final SimpleDateFormat SDF = new SimpleDateFormat("EEE, d MMM, yyyy hh:mm:ss a z");
+    // Constant parts of every header, encoded once
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.ISO_8859_1),
+            CONTENT_LENGTH = "Content-Length: ".getBytes(StandardCharsets.ISO_8859_1),
+            ERROR_CONTENT_HEADERS = "Content-Type: text/html; charset=UTF-8\r\n".getBytes(StandardCharsets.ISO_8859_1),
+            FIXED_HEADERS = ("Server: Apache/1.3.3.7 (Unix) (Red-Hat/Linux)\r\n" +
+                    "Accept-Ranges: bytes\r\n").getBytes(StandardCharsets.ISO_8859_1),
+            CONNECTION_KEEP_ALIVE = "Connection: keep-alive\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1),
+            CONNECTION_CLOSE = "Connection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1),
+            CONTENT_TYPE = "Content-Type: ".getBytes(StandardCharsets.ISO_8859_1),
+            CONTENT_RANGE = "Content-Range: ".getBytes(StandardCharsets.ISO_8859_1),
+            VARY_ACCEPT_ENCODING = "Vary: Accept-Encoding\r\n".getBytes(StandardCharsets.ISO_8859_1),
+            RETRY_AFTER = "Retry-After: ".getBytes(StandardCharsets.ISO_8859_1),
+            CACHE_CONTROL = "Cache-Control: ".getBytes(StandardCharsets.ISO_8859_1);
+
+    static final String NOT_MODIFIED = "304 Not Modified",
+            PARTIAL_CONTENT = "206 Partial Content",
+            RANGE_NOT_SATISFIABLE = "416 Range Not Satisfiable",
+            NO_STORE = "no-store";
+
+    private static final ConcurrentHashMap<String, byte[]> STATUS_LINES = new ConcurrentHashMap<>();
+
     private String inputDir;
     private String header;
     private String statusCode;
     private String pathName;
     private String extension;
+    private long contentLength = -1;
+    private FileCache.Entry file;
+    private boolean keepAlive;
+    private String contentRange;
+    private String contentType;
+    private CompressedCache.Variant variant;
+    private int retryAfter;
+    private String cacheControl;
 
     /**
      * Normalizes path to the file
@@ -29,28 +58,277 @@ class HTTPResponseConstructor {
      * Constructs http response based on status code and sets the corresponding field
      */
     void setHeader() {
+        ByteBuffer buf = writeHeader(ByteBuffer.allocate(512));
+        header = new String(buf.array(), 0, buf.limit(), StandardCharsets.ISO_8859_1);
+    }
 
-        if (statusCode.equals("200 OK")) {
-            File f = new File(getPath());
-            header = "HTTP/1.1 " + statusCode + '\n' +
-                    "Date: " + getDate() + '\n' +
-                    "Content-Type: " + getExtension() +'\n' +
-                    "Content-Length: " + getContentLength(f) + '\n' +
-                    "Last-Modified: " + getLastModified(f) + '\n' +
-                    "Server: Apache/1.3.3.7 (Unix) (Red-Hat/Linux)\n" +
-                    "ETag: \"3f80f-1b6-3e1cb03b\"\n" +
-                    "Accept-Ranges: bytes\n" +
-                    "Connection: close\n\n";
+    /**
+     * Writes the header into a reusable buffer, built from pre-encoded constant parts so nothing
+     * is formatted or encoded per response. The buffer is replaced by a larger one if needed.
+     * @param buf - buffer to write into, its content is overwritten
+     * @return the buffer holding the header, flipped and ready to be sent
+     */
+    ByteBuffer writeHeader(ByteBuffer buf) {
+        while (true) {
+            try {
+                buf.clear();
+                putHeader(buf);
+                buf.flip();
+                return buf;
+            } catch (BufferOverflowException e) {
+                // A direct buffer grows through the pool, the smaller one goes back to it
+                if (buf.isDirect()) {
+                    ByteBuffer bigger = BufferPool.SHARED.acquireDirect(buf.capacity() * 2);
+                    BufferPool.SHARED.release(buf);
+                    buf = bigger;
+                } else {
+                    buf = ByteBuffer.allocate(buf.capacity() * 2);
+                }
+            }
+        }
+    }
+
+    private void putHeader(ByteBuffer buf) {
+        buf.put(statusLine(statusCode));
+        buf.put(HTTPDateClock.dateHeaderLine());
+
+        boolean fileResponse = true;
+
+        if (statusCode.equals("200 OK") && contentType != null) {
+            // Generated body, not a file
+            buf.put(CONTENT_TYPE);
+            buf.put(contentType.getBytes(StandardCharsets.ISO_8859_1));
+            buf.put(CRLF);
+            buf.put(CONTENT_LENGTH);
+            putNumber(buf, contentLength);
+            buf.put(CRLF);
+        } else if (statusCode.equals("200 OK")) {
+            buf.put(variant != null ? getVariantHeaders() : getFileHeaders());
+        } else if (statusCode.equals(NOT_MODIFIED)) {
+            // Same validators as the 200 response would have had, but no body
+            buf.put(variant != null ? getVariantValidatorHeaders() : getValidatorHeaders());
+        } else if (statusCode.equals(PARTIAL_CONTENT)) {
+            // Only part of the file follows, a multipart body brings its own type
+            if (contentType != null) {
+                buf.put(CONTENT_TYPE);
+                buf.put(contentType.getBytes(StandardCharsets.ISO_8859_1));
+                buf.put(CRLF);
+            } else {
+                buf.put(MimeTypes.SHARED.headerLine(getExtension()));
+            }
+            buf.put(CONTENT_LENGTH);
+            putNumber(buf, contentLength);
+            buf.put(CRLF);
+            putContentRange(buf);
+            buf.put(getValidatorHeaders());
         } else {
-            header = "HTTP/1.1 " + statusCode + '\n' +
-                    "Date: " + getDate() + '\n' +
-                    "Content-Type: text/html; charset=UTF-8\n" +
-                    "Content-Encoding: UTF-8\n" +
-                    "Server: Apache/1.3.3.7 (Unix) (Red-Hat/Linux)\n" +
-                    "ETag: \"3f80f-1b6-3e1cb03b\"\n" +
-                    "Accept-Ranges: bytes\n" +
-                    "Connection: close\n\n";
+            buf.put(ERROR_CONTENT_HEADERS);
+            buf.put(CONTENT_LENGTH);
+            putNumber(buf, Math.max(contentLength, 0));
+            buf.put(CRLF);
+            putContentRange(buf);
+            fileResponse = false;
+
+            if (retryAfter > 0) {
+                buf.put(RETRY_AFTER);
+                putNumber(buf, retryAfter);
+                buf.put(CRLF);
+            }
+        }
+
+        // The body of text files depends on Accept-Encoding, caches have to know
+        if (fileResponse && CompressedCache.isCompressible(getExtension()))
+            buf.put(VARY_ACCEPT_ENCODING);
+
+        if (cacheControl != null) {
+            buf.put(CACHE_CONTROL);
+            buf.put(cacheControl.getBytes(StandardCharsets.ISO_8859_1));
+            buf.put(CRLF);
         }
+
+        buf.put(FIXED_HEADERS);
+        buf.put(keepAlive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+    }
+
+    private void putContentRange(ByteBuffer buf) {
+        if (contentRange == null)
+            return;
+
+        buf.put(CONTENT_RANGE);
+        buf.put(contentRange.getBytes(StandardCharsets.ISO_8859_1));
+        buf.put(CRLF);
+    }
+
+    /**
+     * Gets the encoded status line for a status code, each one is encoded only once
+     * @param status - status code and reason, e.g. "404 Not Found"
+     * @return "HTTP/1.1 404 Not Found\r\n" as bytes
+     */
+    private static byte[] statusLine(String status) {
+        return STATUS_LINES.computeIfAbsent(status, s -> ("HTTP/1.1 " + s + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Writes a non-negative number as ASCII digits without creating a String
+     */
+    private static void putNumber(ByteBuffer buf, long value) {
+        if (value == 0) {
+            buf.put((byte) '0');
+            return;
+        }
+
+        int start = buf.position();
+
+        while (value > 0) {
+            buf.put((byte) ('0' + value % 10));
+            value /= 10;
+        }
+
+        // Digits were written backwards
+        for (int i = start, j = buf.position() - 1; i < j; i++, j--) {
+            byte t = buf.get(i);
+            buf.put(i, buf.get(j));
+            buf.put(j, t);
+        }
+    }
+
+    /**
+     * Builds the header lines that only depend on the file. When the file came from the cache
+     * they are built and encoded once and stored with the cache entry.
+     * @return Content-Type, Content-Length, ETag and Last-Modified lines
+     */
+    private byte[] getFileHeaders() {
+        if (file != null && file.fileHeaders != null)
+            return file.fileHeaders;
+
+        File f = new File(getPath());
+        byte[] lines = ("Content-Type: " + getExtension() + "\r\n" +
+                "Content-Length: " + (contentLength >= 0 ? String.valueOf(contentLength) : getContentLength(f)) + "\r\n" +
+                new String(getValidatorHeaders(), StandardCharsets.ISO_8859_1))
+                .getBytes(StandardCharsets.ISO_8859_1);
+
+        if (file != null)
+            file.fileHeaders = lines;
+
+        return lines;
+    }
+
+    /**
+     * Builds the ETag and Last-Modified lines, cached with the file entry like the other file headers
+     * @return ETag and Last-Modified lines, only Last-Modified if the file has no cache entry
+     */
+    private byte[] getValidatorHeaders() {
+        if (file != null && file.validatorHeaders != null)
+            return file.validatorHeaders;
+
+        String lines = file != null
+                ? "ETag: " + file.getETag() + "\r\n" + "Last-Modified: " + file.getLastModifiedText() + "\r\n"
+                : "Last-Modified: " + getLastModified(new File(getPath())) + "\r\n";
+        byte[] encoded = lines.getBytes(StandardCharsets.ISO_8859_1);
+
+        if (file != null)
+            file.validatorHeaders = encoded;
+
+        return encoded;
+    }
+
+    /**
+     * Builds the header lines of the gzip variant of the file, cached with the variant
+     * @return Content-Type, Content-Length, Content-Encoding, ETag and Last-Modified lines
+     */
+    private byte[] getVariantHeaders() {
+        if (variant.fileHeaders != null)
+            return variant.fileHeaders;
+
+        byte[] lines = ("Content-Type: " + getExtension() + "\r\n" +
+                "Content-Length: " + variant.length + "\r\n" +
+                "Content-Encoding: gzip\r\n" +
+                new String(getVariantValidatorHeaders(), StandardCharsets.ISO_8859_1))
+                .getBytes(StandardCharsets.ISO_8859_1);
+
+        variant.fileHeaders = lines;
+        return lines;
+    }
+
+    /**
+     * Builds the ETag and Last-Modified lines of the gzip variant, cached with the variant
+     * @return ETag and Last-Modified lines
+     */
+    private byte[] getVariantValidatorHeaders() {
+        if (variant.validatorHeaders != null)
+            return variant.validatorHeaders;
+
+        byte[] lines = ("ETag: " + variant.getETag() + "\r\n" +
+                "Last-Modified: " + HTTPDateClock.format(variant.lastModified) + "\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1);
+
+        variant.validatorHeaders = lines;
+        return lines;
+    }
+
+    /**
+     * Sets the gzip variant the body comes from instead of the file itself
+     * @param variant - the compressed variant, null for an uncompressed body
+     */
+    void setVariant(CompressedCache.Variant variant) {
+        this.variant = variant;
+    }
+
+    /**
+     * Sets the file the response body comes from, so cached per-file header lines can be reused
+     * @param file - the cache entry of the file
+     */
+    void setFile(FileCache.Entry file) {
+        this.file = file;
+    }
+
+    /**
+     * Sets the length of the body that will follow the header
+     * @param length - body length in bytes
+     */
+    void setContentLength(long length) {
+        contentLength = length;
+    }
+
+    /**
+     * Sets the Content-Range of a 206 or 416 response
+     * @param range - e.g. "bytes 0-499/1234", null for none
+     */
+    void setContentRange(String range) {
+        contentRange = range;
+    }
+
+    /**
+     * Overrides the Content-Type of a 206 response, used for multipart/byteranges,
+     * or sets it for a 200 response with a generated body
+     * @param type - the media type
+     */
+    void setContentType(String type) {
+        contentType = type;
+    }
+
+    /**
+     * Sets the Retry-After of an error response, e.g. a 503 when the server is overloaded
+     * @param seconds - seconds the client should wait before trying again, 0 for none
+     */
+    void setRetryAfter(int seconds) {
+        retryAfter = seconds;
+    }
+
+    /**
+     * Sets the Cache-Control of a response, e.g. no-store for a body that stands in for another
+     * @param value - the directives, null for no Cache-Control header
+     */
+    void setCacheControl(String value) {
+        cacheControl = value;
+    }
+
+    /**
+     * Sets whether the connection stays open after this response
+     * @param keepAlive - true for a persistent connection
+     */
+    void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
     }
 
     /**
@@ -62,74 +340,30 @@ class HTTPResponseConstructor {
     }
 
     /**
-     * Determines the status code by trying to access the specified file
+     * Determines the status code by looking the path up in the resource index. A directory
+     * resolves to its index file, the path and extension are changed to point to it.
      */
     void setStatusCode() {
-        String ok = "200 OK",
-                forbidden = "403 Forbidden",
-                notFound = "404 Not Found",
-                tooLarge = "413 Payload Too Large",
-                tooLong = "414 URI Too Long",
-                serverErr = "500 Internal Server Error",
-                wrongMedia = "415 Unsupported Media Type",
-                legalReason = "451 Unavailable For Legal Reasons";
-
-        try {
-            File file = new File(getPath());
-            boolean exists = file.exists(),
-                    hidden = isHidden(),
-                    isDirectory = file.isDirectory(),
-                    oversized = file.length() > 2000000 ,
-                    lengthy = inputDir.length() > 100,
-                    unsupported = extension == null,
-                    illegal = getPath().equals("http\\resources\\dir2\\TheAnswer.txt");
-
-            if (oversized)
-                statusCode = tooLarge;
-
-            else if (lengthy)
-                statusCode = tooLong;
-
-            else if(!exists)
-                statusCode = notFound;
-
-            else if(hidden)
-                statusCode = forbidden;
-
-            else if(isDirectory) {
-                //if the file is a directory, check if it contains index html or htm, otherwise return 404 Not Found
-                if (new File(getPath(), "index.html").exists()) {
-                    inputDir = inputDir + "/index.html";
-                    setPath();
-                    setExtension();
-                    setStatusCode();
-
-                } else if (new File(getPath(), "index.htm").exists()) {
-                    inputDir = inputDir + "/index.htm";
-                    setPath();
-                    setExtension();
-                    setStatusCode();
-                }
-                else
-                    statusCode = notFound;
-            }
-
-            else if(unsupported)
-                statusCode = wrongMedia;
-
-            else if (illegal)
-                statusCode = legalReason;
+        if (inputDir.length() > 100) {
+            statusCode = "414 URI Too Long";
+            return;
+        }
 
-            else
-                statusCode = ok;
+        ResourceIndex.Resource resource = ResourceIndex.SHARED.get(getPath());
 
-        } catch (SecurityException e) {
-            e.printStackTrace();
-            statusCode = serverErr;
+        if (resource == null) {
+            statusCode = "404 Not Found";
+            return;
+        }
 
-        } catch (NullPointerException n) {
-            statusCode = serverErr;
+        // A directory answered by its index file
+        if (!resource.path.equals(pathName)) {
+            inputDir = inputDir + resource.path.substring(pathName.length());
+            pathName = resource.path;
         }
+
+        extension = resource.contentType;
+        statusCode = resource.status;
     }
 
     /**
@@ -148,16 +382,6 @@ class HTTPResponseConstructor {
         return statusCode;
     }
 
-    /**
-     * Calculates and returns the current date and time
-     * @return String representation of current date with format specified in the fields
-     */
-    private String getDate() {
-        final Date currentTime = new Date();
-        SDF.setTimeZone(TimeZone.getTimeZone("GMT"));
-        return (SDF.format(currentTime));
-    }
-
     /**
      * Computes and returns the length of the file
      * @param file - the specified file
@@ -173,7 +397,7 @@ class HTTPResponseConstructor {
      * @return String representation of file last modified date in fields
      */
     private String getLastModified(File file) {
-        return SDF.format(file.lastModified());
+        return HTTPDateClock.format(file.lastModified());
     }
 
     /**
@@ -201,33 +425,49 @@ class HTTPResponseConstructor {
         return extension;
     }
 
-    /** Computes extension of the file that is requested and sets the corresponding field,
-     * right now only determines if a file is png image, html/htm, or a txt otherwise sets it null
+    /**
+     * Gets the media type of the requested file, as used in the Content-Type header
+     * @return media type, null if the file type is not supported
+     */
+    String getContentType() {
+        return extension;
+    }
+
+    /** Computes extension of the file that is requested and sets the corresponding field
      */
     void setExtension() {
-        String ext = inputDir.substring(inputDir.lastIndexOf(".") + 1, inputDir.length());;
-        switch (ext) {
-            case "png":
-                extension = "image/png";
-                break;
-            case "html":
-            case "htm":
-            case "txt":
-                extension = "text/html; charset=UTF-8";
-                break;
-            default:
-                extension = null;
-                break;
-        }
+        extension = contentTypeOf(inputDir);
+    }
+
+    /**
+     * Builds a complete error response from the cached status page, for connections that are
+     * turned away before any handler exists. The client is asked to come back later.
+     * @param status - status code and reason, e.g. "503 Service Unavailable"
+     * @return header and body, small enough to go out in one write
+     */
+    static ByteBuffer refusal(String status) {
+        HTTPResponseConstructor rc = new HTTPResponseConstructor("StatusPages/" + status.substring(0, 3) + ".html");
+        rc.setPath();
+        rc.forceStatusCode(status);
+        rc.setRetryAfter(ServerConfig.RETRY_AFTER);
+
+        FileCache.Entry page = FileCache.SHARED.get(rc.getPath());
+        byte[] body = page != null && page.data != null ? page.data : new byte[0];
+        rc.setContentLength(body.length);
 
+        ByteBuffer header = rc.writeHeader(ByteBuffer.allocate(512));
+        ByteBuffer response = ByteBuffer.allocate(header.remaining() + body.length);
+        response.put(header).put(body).flip();
+        return response;
     }
 
     /**
-     * Checks if the client is trying to access the "secret" directory
-     * @return boolean isHidden
+     * Gets the media type for a file name from the registry of known types
+     * @param name - file name or path
+     * @return the media type, null if the type is not supported
      */
-    private boolean isHidden(){
-        return inputDir.contains("secretDir");
+    static String contentTypeOf(String name) {
+        return MimeTypes.SHARED.typeOf(name);
     }
 
 }
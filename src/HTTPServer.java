@@ -1,8 +1,12 @@
 import java.io.*;
-import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Arrays;
-import java.util.Scanner;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.function.Supplier;
 
 /**
  * Simple multi-threaded HTTP server
@@ -10,395 +14,332 @@ import java.util.Scanner;
  */
 public class HTTPServer
 {
-    private static final int BUFSIZE = 1024;
-    private static final int MYPORT = 8888;
-
     public static void main(String[] args) {
 
         // Print out message at startup
-        System.out.printf("HTTP-Server running on port %d ...\n", MYPORT);
+        System.out.printf("HTTP-Server running on port %d ...\n", ServerConfig.PORT);
 
-        try
+        // Status pages are needed for every error response, keep them in memory from the start
+        FileCache.SHARED.preload("http/resources/StatusPages");
+
+        // Requests are resolved against an index of the resources, built once and then kept current
+        System.out.printf("Indexed %d resources\n", ResourceIndex.SHARED.size());
+
+        if (ServerConfig.ENGINE.equalsIgnoreCase("nio"))
         {
-            // Create a socket for communication
-            ServerSocket socket = new ServerSocket(MYPORT);
+            System.out.printf("Serving connections using %d event loops and %d workers\n",
+                    ServerConfig.EVENT_LOOPS, ServerConfig.WORKERS);
 
-            // Endless main-loop
-            while (true)
-            {
-                // Wait for a client to connect
-                Socket clientSocket = socket.accept();
+            Listener listener = new Listener();
+            NioServer server = new NioServer(listener, ServerConfig.EVENT_LOOPS, ServerConfig.BUFFER_SIZE,
+                    ServerConfig.WORKERS);
+            startStatsPrinter(listener, server::stats);
 
-                // Create a new thread for handling the connection
-                Thread clientConnection = new Thread(new ClientConnectionThread(clientSocket, BUFSIZE));
-                clientConnection.start();
+            try
+            {
+                server.run();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
             }
+            return;
+        }
+
+        // Runs the connection handlers, bounded pool or virtual threads depending on configuration
+        ConnectionExecutor executor = new ConnectionExecutor();
+        System.out.printf("Serving connections using %s\n", executor.getMode().name().toLowerCase());
+
+        // Listening sockets are opened as channels so responses can use transferTo
+        Listener listener = new Listener();
+
+        try
+        {
+            listener.bind();
         }
         catch (IOException e)
         {
             e.printStackTrace();
+            return;
         }
-    }
-}
 
-/**
- * A Client Connection handler-class that is used by the HTTP-Server
- * to create Threads for each Client connection
- * @author Peter Danielsson, pd222dj@student.lnu.se
- */
-class ClientConnectionThread implements Runnable
-{
-    private Socket clientSocket;
-    private int buffSize;
+        System.out.printf("Accepting connections with %s\n", listener.describe());
+        startStatsPrinter(listener, executor::stats);
 
-    ClientConnectionThread(Socket socket, int buffSize)
-    {
-        this.clientSocket = socket;
-        this.buffSize = buffSize;
+        // The main thread is the first acceptor
+        for (int i = 1; i < listener.getAcceptors(); i++)
+        {
+            ServerSocketChannel server = listener.channelFor(i);
+            Thread t = new Thread(() -> acceptLoop(server, listener, executor), "http-acceptor-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        Thread.currentThread().setName("http-acceptor-0");
+        acceptLoop(listener.channelFor(0), listener, executor);
     }
 
-    @Override
-    public void run()
+    /**
+     * Accepts connections and hands them to the executor, until the listening socket is closed
+     * @param server - listening socket, shared with other acceptors unless SO_REUSEPORT is used
+     * @param listener - applies the socket options and counts connections
+     * @param executor - runs the connection handlers
+     */
+    private static void acceptLoop(ServerSocketChannel server, Listener listener, ConnectionExecutor executor)
     {
-        try
+        while (true)
         {
-            // Get raw byte-streams for Input/Output
-            InputStream in = clientSocket.getInputStream();
-            OutputStream out = clientSocket.getOutputStream();
-
-            // Used as a temporary storage when receiving data
-            ByteArrayOutputStream temp = new ByteArrayOutputStream();
-
-            // Wait for a message
-            while(in.available() == 0);
+            SocketChannel client;
 
-            // Small delay so data can get through
-            try {
-                Thread.sleep(20);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            try
+            {
+                // Wait for a client to connect
+                client = server.accept();
             }
-
-            // Keep reading from input-stream as long as we have bytes to process.
-            while (in.available() != 0)
+            catch (ClosedChannelException e)
             {
-                // Read input-stream and store it in temporary buffer
-                byte[] buf = new byte[buffSize];
+                return;
+            }
+            catch (IOException e)
+            {
+                // Usually out of file descriptors: back off instead of spinning, new clients wait in the backlog
+                System.err.println("Accept failed: " + e.getMessage());
+                pause(10);
+                continue;
+            }
 
-                int readBytes = in.read(buf);
+            Socket clientSocket = client.socket();
 
-                // In case we don't fill the the whole buffer, we want to remove zeroes.
-                if (readBytes < buffSize)
-                {
-                    buf = Arrays.copyOf(buf, readBytes);
-                }
+            try
+            {
+                listener.accepted(client);
+            }
+            catch (IOException e)
+            {
+                // The client went away before we got to it
+                closeQuietly(client);
+                continue;
+            }
 
-                temp.write(buf);
+            // Clients over their limits are turned away before a handler is created
+            ClientLimiter.Verdict verdict = ClientLimiter.SHARED.acquire(clientSocket.getInetAddress());
 
+            if (verdict != ClientLimiter.Verdict.ACCEPT)
+            {
+                ClientLimiter.SHARED.refuse(client, verdict);
+                continue;
             }
 
-            System.out.printf("HTTP request from %s using port %d \n", clientSocket.getInetAddress(), clientSocket.getPort());
-
-            // For debugging purposes
-            System.out.println(new String(temp.toByteArray(), "UTF-8"));
+            // Hand the connection over to the executor
+            if (!executor.execute(clientSocket, new ClientConnectionThread(clientSocket, ServerConfig.BUFFER_SIZE)))
+            {
+                ClientLimiter.SHARED.release(clientSocket.getInetAddress());
+            }
+        }
+    }
 
-            processRequest(temp.toByteArray(), out);
+    private static void pause(long millis)
+    {
+        try
+        {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            System.out.printf("Closing connection for %s on port %d \n", clientSocket.getInetAddress(), clientSocket.getPort());
-            this.clientSocket.close();
+    private static void closeQuietly(SocketChannel client)
+    {
+        try
+        {
+            client.close();
         }
         catch (IOException e)
         {
-            e.printStackTrace();
+            // Nothing left to release
         }
     }
 
     /**
-     * Help-method for sending back a response. This is just for testing purposes
-     * @param req - request
+     * Starts a background thread that periodically prints server statistics, if enabled
+     * @param listener - the listener to report the accept rate of
+     * @param engine - summary of the engine serving the connections
      */
-    private void processRequest(byte[] req, OutputStream out) throws IOException {
-
-        // Make string-version of request
-        String request = new String(req, "UTF-8");
-
-        System.out.println(request);
-
-        Scanner requestScanner = new Scanner(request);
-
-        // Grab the first word in the HTTP-request which is the method
-        String reqMeth = requestScanner.next();
-
-        String destinationFilePath = null;
-        HTTPResponseConstructor rc;
-        String fileToGet = requestScanner.next().substring(1),
-                HTTP = requestScanner.next();
-
-        //check if http is ok
-        if(!HTTP.equals("HTTP/1.1")) {
-            destinationFilePath = "http/resources/StatusPages/505.html";
-            rc = new HTTPResponseConstructor(destinationFilePath);
-            rc.setPath();
-            rc.setExtension();
-            rc.forceStatusCode("505 HTTP Version Not Supported");
-        }
-
-        else if (reqMeth.equals("GET")) {
-            destinationFilePath = fileToGet;
-            rc = new HTTPResponseConstructor(destinationFilePath);
-            rc.setPath();
-            rc.setExtension();
-            rc.setStatusCode();
+    private static void startStatsPrinter(Listener listener, Supplier<String> engine)
+    {
+        if (ServerConfig.STATS_INTERVAL <= 0)
+        {
+            return;
         }
-            /*
-            the rest needed to be separated because now we do not want to compute the status code
-            but rather force it to be of a certain value
-            */
 
-        //if HTTP is ok but the request is not get
-        else {
-            String verdict = null;
-
-            if (reqMeth.equals("POST") || reqMeth.equals("PUT")){
-                String filename = "";
-
-                while(filename.equals(""))
+        Thread printer = new Thread(() -> {
+            while (true)
+            {
+                try
                 {
-                    String currentRow = requestScanner.nextLine();
-
-                    if(currentRow.contains("filename="))
-                    {
-                        String unCleanFilename = currentRow.split(" ")[3];
-                        filename = unCleanFilename.substring(unCleanFilename.indexOf("\"") + 1, unCleanFilename.lastIndexOf("\""));
-                    }
+                    Thread.sleep(ServerConfig.STATS_INTERVAL * 1000L);
                 }
-
-                filename = filename.split("\\.")[1];
-
-                //check if the file to be uploaded is png
-                if(filename.equals("png")) {
-                    if (reqMeth.equals("POST")) {
-                        uploadImage(req, null);
-                        destinationFilePath = "uploads/StatusPages/201.html";
-                        verdict = "201 Created";
-
-                    }
-
-                    else if (reqMeth.equals("PUT")) {
-                        // Read the request from the beginning in order to get the path
-                        requestScanner = new Scanner(request);
-
-                        // Remove first / so path is correct
-                        destinationFilePath = requestScanner.nextLine().split(" ")[1].substring(1);
-
-                        if (destinationFilePath.contains("secretDir")){
-                            destinationFilePath = "secretDir";
-                            verdict = "403 Forbidden";
-                        }
-
-
-                        else if (destinationFilePath.contains("readOnly")) {
-                            destinationFilePath = "readOnly";
-                            verdict = "405 Method Not Allowed";
-                        }
-
-                        else {
-
-                            // Make sure file could be uploaded correctly
-                            if (uploadImage(req, destinationFilePath))
-                            {
-                                destinationFilePath = "uploads/StatusPages/201.html";
-                                verdict = "201 Created";
-                            }
-                            else
-                            {
-                                destinationFilePath = "uploads/StatusPages/403.html";
-                                verdict = "403 Forbidden";
-                            }
-                        }
-                    }
-                }
-
-                else {
-                    destinationFilePath = "uploads/StatusPages/415.html";
-                    verdict = "415 Unsupported Media Type";
-                }
-            }
-
-            //if HTTP is ok but the request is neither get, nor post, nor put
-            else {
-                //checking for other standard HTTP requests that we didn't implement
-                if (reqMeth.equals("HEAD") || reqMeth.equals("DELETE") || reqMeth.equals("OPTIONS") || reqMeth.equals("CONNECT")) {
-                    destinationFilePath = "http/resources/StatusPages/501.html";
-                    verdict = "501 Not Implemented";
-
-                }
-
-                //any other request is to be considered a bad request
-                else {
-                    destinationFilePath = "http/resources/StatusPages/400.html";
-                    verdict = "400 Bad Request";
+                catch (InterruptedException e)
+                {
+                    return;
                 }
+                System.out.println(listener.stats());
+                System.out.println(engine.get());
+                System.out.println(FileCache.SHARED.stats());
+                System.out.println(MappedFileCache.SHARED.stats());
+                System.out.println(CompressedCache.SHARED.stats());
+                System.out.println(ClientLimiter.SHARED.stats());
+                System.out.println(BufferPool.SHARED.stats());
+                System.out.println(BodyBudget.SHARED.stats());
+                System.out.println(ImageVariants.SHARED.stats());
             }
-
-            rc = new HTTPResponseConstructor(destinationFilePath);
-            rc.setPath();
-            rc.setExtension();
-            rc.forceStatusCode(verdict);
-        }
-
-        rc.setHeader();
-        String header = rc.getHeader();
-        byte[] response = setResponse(rc.getStatusCode(), rc.getPath());
-        out.write(header.getBytes());
-        out.write(response);
-
+        }, "http-stats");
+        printer.setDaemon(true);
+        printer.start();
     }
+}
 
-    /**
-     *Form a response of the specific HTML-file depending on its existence and accessibility
-     * @param status - status code of the HTTP message
-     * @param destinationFilePath - path to the required file
-     * @return byteArr - byte array containing raw bytes of the file
-     */
-    private byte[] setResponse(String status, String destinationFilePath){
-        byte[] byteArr;
-
-        if (status.equals("200 OK"))
-            byteArr = loadFile(destinationFilePath);
-
-        else {
-            String statusName = status.split(" ")[0];
-            byteArr = loadFile("http/resources/StatusPages/" + statusName +".html");
-        }
-
-        return byteArr;
-    }
+/**
+ * A Client Connection handler-class that is used by the HTTP-Server
+ * to serve each Client connection on the connection executor
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+class ClientConnectionThread implements Runnable
+{
+    private Socket clientSocket;
+    private int buffSize;
+    private final RequestHandler handler;
 
-    /**
-     * Loads file from a String path name into a byte array
-     * @param pathName - path to the required file
-     * @return byteArr - byte array containing contents of the file
-     */
-    private byte[] loadFile(String pathName)
+    ClientConnectionThread(Socket socket, int buffSize)
     {
-        byte[] byteArr = null;
-
-        try {
-            FileInputStream dataFileReader = new FileInputStream(pathName);
-            byteArr = new byte[dataFileReader.available()];
-            dataFileReader.read(byteArr);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return byteArr;
+        this.clientSocket = socket;
+        this.buffSize = buffSize;
+        this.handler = new RequestHandler(socket.getInetAddress());
     }
 
-    /**
-     *  Extract image (png) binary data from a POST-request and stores it as a file
-     * @param req byte-array containing full request from client
-     * @param path path (directory path) where file should be stored
-     * @return true if successfull, false otherwise
-     * @throws IOException
-     */
-    private boolean uploadImage(byte[] req, String path) throws IOException {
+    @Override
+    public void run()
+    {
+        // Reads one request at a time: headers up to the blank line, then the framed body.
+        // Pipelined requests stay buffered in the reader and are served in order.
+        HTTPRequestReader reader = new HTTPRequestReader(ServerConfig.MAX_HEADER_BYTES, ServerConfig.MAX_BODY_BYTES);
 
+        // Uploads are streamed to disk as they arrive instead of being held in memory
+        reader.setBodyHandler(handler::openBody, ServerConfig.MAX_UPLOAD_BYTES);
 
-        try {
+        Metrics.SHARED.connectionOpened();
 
-            // Make string-version of request, used to extract some data
-            String request = new String(req, "UTF-8");
+        // Socket reads land in a pooled buffer, reused by the next connection on this worker
+        byte[] buf = BufferPool.SHARED.acquireArray(buffSize);
 
-            String filename ="";
+        try
+        {
+            // Requests are read from the byte-stream, responses are written to the channel
+            // so file bodies can be handed to the kernel without copying them
+            InputStream in = clientSocket.getInputStream();
+            WritableByteChannel out = clientSocket.getChannel() != null
+                    ? clientSocket.getChannel() : Channels.newChannel(clientSocket.getOutputStream());
 
-            Scanner lineScanner = new Scanner(request);
+            int served = 0;
+            boolean keepAlive = true;
 
-            // Find name of file
-            while(filename.equals("") && lineScanner.hasNextLine())
+            while (keepAlive)
             {
-                String currentRow = lineScanner.nextLine();
+                // Blocking reads give up after the configured timeout instead of waiting forever,
+                // between requests the shorter keep-alive timeout applies
+                boolean idle = served > 0 && !reader.hasBufferedData();
+                clientSocket.setSoTimeout(idle ? ServerConfig.KEEP_ALIVE_TIMEOUT : ServerConfig.READ_TIMEOUT);
+
+                HTTPRequestReader.Request request;
 
-                if(currentRow.contains("filename="))
+                try
                 {
-                    String unCleanFilename = currentRow.split(" ")[3];
-                    filename = unCleanFilename.substring(unCleanFilename.indexOf("\"") + 1, unCleanFilename.lastIndexOf("\""));
+                    request = reader.read(in, buf);
+                }
+                catch (SocketTimeoutException e)
+                {
+                    // Only answer if the client actually started sending something
+                    if (reader.hasBufferedData())
+                    {
+                        send(handler.processError("408 Request Timeout"), out);
+                    }
+                    break;
+                }
+                catch (HTTPRequestException e)
+                {
+                    send(handler.processError(e.getStatus()), out);
+                    break;
                 }
-            }
-
-            // -119 since it will be interpreted as a signed int.
-            byte[] pngSignature = {-119, 80, 78, 71, 13, 10, 26, 10};
-            byte[] pngIEND = {73, 69, 78, 68};
-
-            int beginningOfImageDataByte = findByteSequenceIndex(req, pngSignature);
 
-            // +4 because of the CRC in the end
-            int lastByteofImageData = findByteSequenceIndex(req, pngIEND) + pngIEND.length + 4;
+                // Client closed the connection between requests
+                if (request == null)
+                {
+                    break;
+                }
 
-           byte[] imageData = Arrays.copyOfRange(req, beginningOfImageDataByte, lastByteofImageData);
+                // A client switching to HTTP/2 keeps the connection, it is served as HTTP/2 from here on
+                if (HTTP2Connection.isSwitch(request, reader.getUpgrade()))
+                {
+                    HTTP2Connection.serve(request, reader, clientSocket, in, out);
+                    break;
+                }
 
-            FileOutputStream file;
+                // For debugging purposes, requests are in the access log
+                if (ServerConfig.DEBUG)
+                {
+                    System.out.printf("HTTP request from %s using port %d \n", clientSocket.getInetAddress(), clientSocket.getPort());
+                }
 
-            if (path == null)
-            {
-                file = new FileOutputStream("http/resources/uploads/" + filename);
+                served++;
+                HTTPResponse response = handler.processRequest(request, reader.getStreamedBody(),
+                        served < ServerConfig.KEEP_ALIVE_MAX);
+                send(response, out);
+                keepAlive = response.isKeepAlive();
             }
-            else
+
+            if (ServerConfig.DEBUG)
             {
-                file = new FileOutputStream((path + filename));
+                System.out.printf("Closing connection for %s on port %d \n", clientSocket.getInetAddress(), clientSocket.getPort());
             }
-
-            file.write(imageData);
-            file.close();
         }
-        catch (Exception e)
+        catch (IOException e)
         {
-            return false;
+            e.printStackTrace();
         }
+        finally
+        {
+            // Always release the socket and a half-received upload, also when the client went away mid-request
+            reader.close();
+            handler.close();
+            BufferPool.SHARED.release(buf);
 
-        return true;
-    }
-
-    /**
-     * Help-method to return the first index of a byte-sequence in a byte-buffer
-     * @param buf Byte buffer
-     * @param seq Byte sequence to look for
-     * @return first index of byte-sequence, -1 if not found.
-     */
-    private int findByteSequenceIndex(byte[] buf, byte[] seq) {
-
-        boolean found = false;
-        int i = 0;
-
-        // Main loop, go through whole buffer if needed
-        while (!found && i <= buf.length - seq.length) {
-
-            int j = 0;
-
-            // Check the actual location and elements in front, if they corresponds to the sequence
-            while (j < seq.length && buf[i + j] == seq[j])
+            try
             {
-                j++;
+                this.clientSocket.close();
             }
-            if (j == seq.length)
+            catch (IOException e)
             {
-                found = true;
-            }
-            else
-            {
-                i++;
+                e.printStackTrace();
             }
-        }
 
-        if (found)
-        {
-            return i;
-        }
-        else
-        {
-            return -1;
+            ClientLimiter.SHARED.release(clientSocket.getInetAddress());
+            Metrics.SHARED.connectionClosed();
         }
     }
-}
-
 
+    /**
+     * Writes a response and records how long sending took
+     * @param response - the response
+     * @param out - the connection
+     * @throws IOException if writing fails
+     */
+    private void send(HTTPResponse response, WritableByteChannel out) throws IOException
+    {
+        long start = System.nanoTime();
+        response.writeFully(out);
+        Metrics.SHARED.send.recordSince(start);
+        Metrics.SHARED.responseSent(response.getStatus(), response.getLength());
+    }
+}
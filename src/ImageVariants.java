@@ -0,0 +1,424 @@
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import javax.imageio.ImageIO;
+
+/**
+ * Scaled-down variants of PNG and JPEG images, for clients that ask for ?w=200 instead of the
+ * full image. Variants are generated in the background by a small pool of threads, when an
+ * image is uploaded or the first time a variant is asked for, and stored on disk in a
+ * directory of their own. Once there they are served like any other file, through the file cache.
+ * A request never waits for a variant, it gets the original until the variant is ready,
+ * marked as not to be stored so no cache keeps it under the variant's URL.
+ *
+ * The name of a variant file carries the version (modification time) of the original it was
+ * made from, so a variant of an older version is never served. The file keeps a modification
+ * time of its own, so the variant and the original have different validators.
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+final class ImageVariants
+{
+    static final ImageVariants SHARED = new ImageVariants(parseWidths(ServerConfig.IMAGE_WIDTHS),
+            Paths.get(ServerConfig.IMAGE_VARIANT_DIR), ServerConfig.IMAGE_WORKERS, ServerConfig.IMAGE_QUEUE);
+
+    private static final Path RESOURCES = Paths.get("http/resources");
+    private static final AtomicInteger workerCount = new AtomicInteger();
+
+    // Configured widths, ascending
+    private final int[] widths;
+    private final Path directory;
+    private final ThreadPoolExecutor workers;
+
+    // Variants queued or being generated, so each is generated only once at a time
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    // Variants there will be no file of, because the original is no wider or could not be decoded,
+    // with the version of the original this was found for
+    private final ConcurrentHashMap<String, Long> unscaled = new ConcurrentHashMap<>();
+
+    private final LongAdder generated = new LongAdder(),
+            skipped = new LongAdder(),
+            failed = new LongAdder();
+
+    /**
+     * @param widths - widths of the variants, ascending, none to turn variants off
+     * @param directory - where variant files are stored
+     * @param threads - threads generating variants
+     * @param queueSize - variants that may wait for a thread
+     */
+    ImageVariants(int[] widths, Path directory, int threads, int queueSize)
+    {
+        this.widths = widths;
+        this.directory = directory;
+
+        threads = Math.max(1, threads);
+        this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)), r -> {
+                    Thread t = new Thread(r, "image-worker-" + workerCount.incrementAndGet());
+                    t.setDaemon(true);
+
+                    // Scaling is background work, requests come first
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                });
+    }
+
+    /**
+     * Parses a comma separated list of widths
+     * @param list - e.g. "200,400,800"
+     * @return the valid widths, ascending
+     */
+    static int[] parseWidths(String list)
+    {
+        return Arrays.stream(list.split(","))
+                .map(String::trim)
+                .filter(w -> w.matches("\\d{1,5}"))
+                .mapToInt(Integer::parseInt)
+                .filter(w -> w > 0)
+                .sorted()
+                .distinct()
+                .toArray();
+    }
+
+    /**
+     * Checks if variants can be made of a media type
+     * @param contentType - the Content-Type value
+     * @return true for PNG and JPEG images
+     */
+    static boolean isScalable(String contentType)
+    {
+        return "image/png".equals(contentType) || "image/jpeg".equals(contentType);
+    }
+
+    /**
+     * Gets the width asked for in a query string
+     * @param query - query string without the '?', may be null
+     * @return the value of the w parameter, 0 if there is none or it is not a number
+     */
+    static int requestedWidth(String query)
+    {
+        if (query == null)
+        {
+            return 0;
+        }
+
+        for (String param : query.split("&"))
+        {
+            if (param.startsWith("w=") && param.length() > 2 && param.length() <= 7
+                    && param.substring(2).chars().allMatch(Character::isDigit))
+            {
+                return Integer.parseInt(param.substring(2));
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Chooses the file to send for a requested width: the variant of the smallest configured
+     * width that is at least as wide. If it is not ready yet it is queued for generation.
+     * @param file - cache entry of the original image
+     * @param requested - width the client asked for
+     * @return path of the variant, the original's path if there will be no variant of this version,
+     *         or null while the variant is being made and the original is sent in its place
+     */
+    String get(FileCache.Entry file, int requested)
+    {
+        int width = widthFor(requested);
+        Path variant = width > 0 ? variantPath(file.path, width, file.lastModified) : null;
+
+        if (variant == null)
+        {
+            return file.path;
+        }
+
+        if (variant.toFile().isFile())
+        {
+            return variant.toString();
+        }
+
+        Long checked = unscaled.get(unscaledKey(file.path, width));
+
+        if (checked != null && checked == file.lastModified)
+        {
+            return file.path;
+        }
+
+        schedule(file.path, width, file.lastModified, variant);
+        return null;
+    }
+
+    /**
+     * Queues all variants of an image, e.g. when it has just been uploaded
+     * @param pathName - path of the original image
+     */
+    void prepare(String pathName)
+    {
+        if (!isScalable(HTTPResponseConstructor.contentTypeOf(pathName)))
+        {
+            return;
+        }
+
+        long version = new File(pathName).lastModified();
+
+        for (int width : widths)
+        {
+            Path variant = variantPath(pathName, width, version);
+
+            if (variant != null)
+            {
+                schedule(pathName, width, version, variant);
+            }
+        }
+    }
+
+    private int widthFor(int requested)
+    {
+        if (requested <= 0)
+        {
+            return 0;
+        }
+
+        for (int width : widths)
+        {
+            if (width >= requested)
+            {
+                return width;
+            }
+        }
+
+        // Wider than every variant, the original is the best fit
+        return 0;
+    }
+
+    /**
+     * Maps a version of an original to its variant file, e.g. http/resources/dir2/boston.png
+     * to http/variants/dir2/boston.w200-15a74fc8e68.png
+     * @param version - modification time of the original
+     * @return the variant path, or null if the original is not one of the served files
+     */
+    private Path variantPath(String pathName, int width, long version)
+    {
+        Path original = Paths.get(pathName).normalize();
+
+        if (!original.startsWith(RESOURCES) || original.equals(RESOURCES))
+        {
+            return null;
+        }
+
+        String name = original.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+
+        if (dot <= 0)
+        {
+            return null;
+        }
+        String variantName = variantPrefix(name, width) + Long.toHexString(version) + name.substring(dot);
+
+        return directory.resolve(RESOURCES.relativize(original)).resolveSibling(variantName);
+    }
+
+    /**
+     * Gets the start of the file names of all versions of one variant, e.g. "boston.w200-"
+     */
+    private static String variantPrefix(String name, int width)
+    {
+        return name.substring(0, name.lastIndexOf('.')) + ".w" + width + "-";
+    }
+
+    private static String unscaledKey(String pathName, int width)
+    {
+        return pathName + "#" + width;
+    }
+
+    private void schedule(String pathName, int width, long version, Path variant)
+    {
+        String key = variant.toString();
+
+        if (!pending.add(key))
+        {
+            return;
+        }
+
+        try
+        {
+            workers.execute(() -> {
+                try
+                {
+                    generate(pathName, width, version, variant);
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    // Not tried again until the original changes
+                    unscaled.put(unscaledKey(pathName, width), version);
+                    failed.increment();
+                    e.printStackTrace();
+                }
+                finally
+                {
+                    pending.remove(key);
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            // The queue is full, the variant is asked for again by a later request
+            pending.remove(key);
+            skipped.increment();
+        }
+    }
+
+    /**
+     * Scales one version of an image and stores the result. The file is written next to its
+     * final name and renamed into place, so it is never served half-written. Variants of
+     * older versions are removed afterwards.
+     */
+    private void generate(String pathName, int width, long version, Path variant) throws IOException
+    {
+        File source = new File(pathName);
+
+        // The original was removed or replaced while the variant waited, the new version has a job of its own
+        if (!source.isFile() || source.lastModified() != version)
+        {
+            return;
+        }
+
+        BufferedImage image = ImageIO.read(source);
+
+        if (image == null)
+        {
+            throw new IOException("Not a readable image: " + pathName);
+        }
+
+        if (image.getWidth() <= width)
+        {
+            unscaled.put(unscaledKey(pathName, width), version);
+            return;
+        }
+
+        String format = pathName.substring(pathName.lastIndexOf('.') + 1).toLowerCase();
+        BufferedImage scaled = scale(image, width, !format.equals("png"));
+
+        Files.createDirectories(variant.getParent());
+        Path temp = Files.createTempFile(variant.getParent(), ".variant-", ".tmp");
+
+        try
+        {
+            if (!ImageIO.write(scaled, format, temp.toFile()))
+            {
+                throw new IOException("No image writer for " + format);
+            }
+
+            Files.move(temp, variant, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally
+        {
+            Files.deleteIfExists(temp);
+        }
+
+        generated.increment();
+        removeOlderVersions(source.getName(), width, variant);
+    }
+
+    /**
+     * Deletes the variant files of other versions of the same original and width
+     */
+    private static void removeOlderVersions(String originalName, int width, Path current) throws IOException
+    {
+        String prefix = variantPrefix(originalName, width);
+        String extension = originalName.substring(originalName.lastIndexOf('.'));
+        Pattern versions = Pattern.compile(Pattern.quote(prefix) + "[0-9a-f]+" + Pattern.quote(extension));
+
+        try (DirectoryStream<Path> siblings = Files.newDirectoryStream(current.getParent(),
+                p -> versions.matcher(p.getFileName().toString()).matches()))
+        {
+            for (Path sibling : siblings)
+            {
+                if (!sibling.equals(current))
+                {
+                    Files.deleteIfExists(sibling);
+                    FileCache.SHARED.invalidate(sibling.toString());
+                    MappedFileCache.SHARED.invalidate(sibling.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Scales an image down to a width, keeping its aspect ratio. Large reductions are done in
+     * halving steps, a single bilinear step would skip most of the source pixels.
+     * @param opaque - true if the result has no alpha channel, as JPEG can not store one
+     */
+    private static BufferedImage scale(BufferedImage image, int width, boolean opaque)
+    {
+        int height = Math.max(1, (int) Math.round((double) image.getHeight() * width / image.getWidth()));
+        int type = opaque || !image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
+        BufferedImage current = image;
+
+        do
+        {
+            int w = Math.max(width, current.getWidth() / 2);
+            int h = w == width ? height : Math.max(height, current.getHeight() / 2);
+            BufferedImage next = new BufferedImage(w, h, type);
+            Graphics2D g = next.createGraphics();
+
+            try
+            {
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                g.drawImage(current, 0, 0, w, h, null);
+            }
+            finally
+            {
+                g.dispose();
+            }
+
+            current = next;
+        }
+        while (current.getWidth() > width);
+
+        return current;
+    }
+
+    long getGenerated()
+    {
+        return generated.sum();
+    }
+
+    long getSkipped()
+    {
+        return skipped.sum();
+    }
+
+    long getFailed()
+    {
+        return failed.sum();
+    }
+
+    /**
+     * Short summary of the variant generation, used for the periodic statistics print
+     * @return summary string
+     */
+    String stats()
+    {
+        return String.format("images generated=%d queued=%d skipped=%d failed=%d",
+                getGenerated(), workers.getQueue().size(), getSkipped(), getFailed());
+    }
+}
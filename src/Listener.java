@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The listening side of the server: binds the port with the configured backlog, applies the
+ * socket options to accepted connections and counts them. Several acceptors can take
+ * connections at once. Where the JDK supports SO_REUSEPORT every acceptor gets a listening
+ * socket of its own and the kernel spreads new connections over them, otherwise all
+ * acceptors share one listening socket.
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+final class Listener
+{
+    private final InetSocketAddress address;
+    private final int backlog;
+    private final int acceptors;
+    private final List<ServerSocketChannel> channels = new ArrayList<>();
+    private boolean reusePort;
+
+    // Accept count and time of the last stats() call, for the accept rate
+    private long lastAccepts;
+    private long lastStats = System.nanoTime();
+
+    Listener()
+    {
+        this(ServerConfig.BIND_ADDRESS, ServerConfig.PORT, ServerConfig.BACKLOG, ServerConfig.ACCEPTORS);
+    }
+
+    /**
+     * @param bindAddress - local address to listen on, empty for all addresses
+     * @param port - port to listen on
+     * @param backlog - connections the kernel queues until they are accepted
+     * @param acceptors - number of threads or event loops accepting connections
+     */
+    Listener(String bindAddress, int port, int backlog, int acceptors)
+    {
+        this.address = bindAddress.isEmpty() ? new InetSocketAddress(port) : new InetSocketAddress(bindAddress, port);
+        this.backlog = backlog;
+        this.acceptors = Math.max(1, acceptors);
+    }
+
+    /**
+     * Opens and binds the listening sockets, in blocking mode
+     * @throws IOException if the address can not be bound
+     */
+    void bind() throws IOException
+    {
+        ServerSocketChannel first = ServerSocketChannel.open();
+        reusePort = acceptors > 1 && ServerConfig.REUSE_PORT
+                && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+
+        for (int i = 0; i < (reusePort ? acceptors : 1); i++)
+        {
+            ServerSocketChannel channel = i == 0 ? first : ServerSocketChannel.open();
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+
+            if (reusePort)
+            {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+
+            // Accepted sockets inherit the receive buffer, it has to be set before bind to affect window scaling
+            if (ServerConfig.RECEIVE_BUFFER > 0)
+            {
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, ServerConfig.RECEIVE_BUFFER);
+            }
+
+            channel.bind(address, backlog);
+            channels.add(channel);
+        }
+    }
+
+    /**
+     * Gets the listening socket an acceptor takes connections from
+     * @param acceptor - index of the acceptor, from 0 to getAcceptors() - 1
+     * @return its own socket with SO_REUSEPORT, else the shared one
+     */
+    ServerSocketChannel channelFor(int acceptor)
+    {
+        return channels.get(acceptor % channels.size());
+    }
+
+    int getAcceptors()
+    {
+        return acceptors;
+    }
+
+    int getPort()
+    {
+        return channels.isEmpty() ? address.getPort() : channels.get(0).socket().getLocalPort();
+    }
+
+    /**
+     * Describes how connections are accepted, for the startup message
+     * @return e.g. "4 acceptors, SO_REUSEPORT"
+     */
+    String describe()
+    {
+        return String.format("%d acceptor%s, %s, backlog %d", acceptors, acceptors == 1 ? "" : "s",
+                reusePort ? "SO_REUSEPORT" : "shared socket", backlog);
+    }
+
+    /**
+     * Applies the per-connection socket options to a newly accepted connection and counts it
+     * @param client - the accepted connection
+     * @throws IOException if an option can not be set, e.g. because the client is already gone
+     */
+    void accepted(SocketChannel client) throws IOException
+    {
+        Metrics.SHARED.connectionAccepted();
+
+        // Header and body go out in separate writes, don't let Nagle delay the body
+        client.setOption(StandardSocketOptions.TCP_NODELAY, ServerConfig.TCP_NODELAY);
+
+        if (ServerConfig.SEND_BUFFER > 0)
+        {
+            client.setOption(StandardSocketOptions.SO_SNDBUF, ServerConfig.SEND_BUFFER);
+        }
+    }
+
+    /**
+     * Short summary of the accept rate since the previous call, used for the periodic statistics print
+     * @return summary string
+     */
+    synchronized String stats()
+    {
+        long now = System.nanoTime(), accepts = Metrics.SHARED.getAccepts();
+        double seconds = (now - lastStats) / 1e9;
+        double rate = seconds > 0 ? (accepts - lastAccepts) / seconds : 0;
+
+        lastStats = now;
+        lastAccepts = accepts;
+
+        return String.format("listener accepts=%d rate=%.1f/s", accepts, rate);
+    }
+}
@@ -0,0 +1,270 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Optional cache of memory-mapped large files. A file is mapped once it has been requested
+ * a few times, after that it is served from the page cache through a read-only view without
+ * opening the file again. Mapped memory lives outside the heap and is bounded in total, the
+ * least recently used mappings are dropped to make room for a new one.
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+class MappedFileCache
+{
+    static final MappedFileCache SHARED = new MappedFileCache(ServerConfig.MAPPED_CACHE_BYTES,
+            ServerConfig.MAPPED_HOT_HITS, ServerConfig.CACHE_STAT_INTERVAL);
+
+    private final long maxBytes;
+    private final int hotHits;
+    private final long statInterval;
+
+    private final ConcurrentHashMap<String, Mapping> mappings = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicInteger> requestCounts = new ConcurrentHashMap<>();
+    private final AtomicLong mappedBytes = new AtomicLong();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxBytes - upper bound for all mapped files together, 0 turns the cache off
+     * @param hotHits - number of requests after which a file is mapped
+     * @param statInterval - milliseconds between checks of a mapped file's modification time
+     */
+    MappedFileCache(long maxBytes, int hotHits, long statInterval)
+    {
+        this.maxBytes = maxBytes;
+        this.hotHits = hotHits;
+        this.statInterval = statInterval;
+    }
+
+    private static final class Mapping
+    {
+        final MappedByteBuffer buffer;
+        final long lastModified;
+        volatile long checkedAt;
+        volatile long usedAt;
+
+        Mapping(MappedByteBuffer buffer, long lastModified, long now)
+        {
+            this.buffer = buffer;
+            this.lastModified = lastModified;
+            this.checkedAt = now;
+            this.usedAt = now;
+        }
+    }
+
+    /**
+     * Gets a mapped view of a file if it is hot enough to be mapped
+     * @param pathName - path to the file
+     * @param lastModified - modification time the caller expects
+     * @return a read-only buffer positioned at the start of the file, or null if the
+     *         file should be streamed from disk instead
+     */
+    ByteBuffer get(String pathName, long lastModified)
+    {
+        if (maxBytes <= 0)
+        {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        Mapping mapping = mappings.get(pathName);
+
+        if (mapping != null)
+        {
+            if (mapping.lastModified == lastModified
+                    && (now - mapping.checkedAt < statInterval || isUnchanged(pathName, mapping, now)))
+            {
+                mapping.usedAt = now;
+                return mapping.buffer.asReadOnlyBuffer();
+            }
+
+            // Changed on disk, forget the old mapping
+            if (mappings.remove(pathName, mapping))
+            {
+                mappedBytes.addAndGet(-mapping.buffer.capacity());
+            }
+        }
+
+        AtomicInteger count = requestCounts.computeIfAbsent(pathName, k -> new AtomicInteger());
+
+        if (count.incrementAndGet() < hotHits)
+        {
+            return null;
+        }
+
+        requestCounts.remove(pathName);
+        mapping = map(pathName, lastModified, now);
+
+        return mapping == null ? null : mapping.buffer.asReadOnlyBuffer();
+    }
+
+    private boolean isUnchanged(String pathName, Mapping mapping, long now)
+    {
+        File file = new File(pathName);
+
+        if (file.lastModified() == mapping.lastModified && file.length() == mapping.buffer.capacity())
+        {
+            mapping.checkedAt = now;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Maps a file, dropping the least recently used mappings if the budget is used up
+     * @return the new mapping, or null if the file does not fit, changed or could not be mapped
+     */
+    private Mapping map(String pathName, long lastModified, long now)
+    {
+        try (FileChannel channel = FileChannel.open(Paths.get(pathName), StandardOpenOption.READ))
+        {
+            // The size of the file as it is opened, it may differ from the caller's entry
+            long size = channel.size();
+
+            if (size > maxBytes || size > Integer.MAX_VALUE || !reserve(size))
+            {
+                return null;
+            }
+
+            MappedByteBuffer buffer;
+
+            try
+            {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            catch (IOException e)
+            {
+                mappedBytes.addAndGet(-size);
+                throw e;
+            }
+
+            // Replaced or rewritten since the caller looked at it, the mapping may hold
+            // either version and is not kept
+            if (new File(pathName).lastModified() != lastModified)
+            {
+                mappedBytes.addAndGet(-size);
+                return null;
+            }
+
+            Mapping mapping = new Mapping(buffer, lastModified, now);
+            Mapping old = mappings.put(pathName, mapping);
+
+            if (old != null)
+            {
+                mappedBytes.addAndGet(-old.buffer.capacity());
+            }
+
+            return mapping;
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Counts bytes against the budget, evicting until they fit
+     * @param size - bytes about to be mapped, at most the whole budget
+     * @return true if the bytes are counted, false if nothing was left to evict
+     */
+    private boolean reserve(long size)
+    {
+        while (mappedBytes.addAndGet(size) > maxBytes)
+        {
+            mappedBytes.addAndGet(-size);
+
+            if (!evictLeastRecentlyUsed())
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Drops the mapping that was used longest ago. Mapped files are large, so there are few
+     * mappings and a scan is cheap compared to mapping a file.
+     * @return false if there was no mapping to drop
+     */
+    private boolean evictLeastRecentlyUsed()
+    {
+        String victim = null;
+        Mapping oldest = null;
+
+        for (Map.Entry<String, Mapping> entry : mappings.entrySet())
+        {
+            if (oldest == null || entry.getValue().usedAt < oldest.usedAt)
+            {
+                victim = entry.getKey();
+                oldest = entry.getValue();
+            }
+        }
+
+        if (oldest == null)
+        {
+            return false;
+        }
+
+        // Another thread may have dropped it first, then there is room anyway
+        if (mappings.remove(victim, oldest))
+        {
+            mappedBytes.addAndGet(-oldest.buffer.capacity());
+            evictions.increment();
+        }
+
+        return true;
+    }
+
+    /**
+     * Drops a file's mapping, e.g. after it has been overwritten
+     * @param pathName - path to the file
+     */
+    void invalidate(String pathName)
+    {
+        Mapping old = mappings.remove(pathName);
+
+        if (old != null)
+        {
+            mappedBytes.addAndGet(-old.buffer.capacity());
+        }
+    }
+
+    /**
+     * Gets the total size of all mapped files
+     * @return mapped bytes
+     */
+    long getMappedBytes()
+    {
+        return mappedBytes.get();
+    }
+
+    /**
+     * Gets the number of mappings dropped to make room for others
+     * @return evictions
+     */
+    long getEvictions()
+    {
+        return evictions.sum();
+    }
+
+    /**
+     * Short summary of the mapped files, used for the periodic statistics print
+     * @return summary string
+     */
+    String stats()
+    {
+        return String.format("mapped files=%d bytes=%d limit=%d evictions=%d",
+                mappings.size(), getMappedBytes(), maxBytes, getEvictions());
+    }
+}
@@ -0,0 +1,296 @@
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-wide counters and latency histograms, exported in the Prometheus text format.
+ * Everything is recorded with LongAdders, which spread concurrent updates over striped
+ * cells, so recording costs a few nanoseconds and never blocks a request thread.
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+class Metrics
+{
+    static final Metrics SHARED = new Metrics();
+
+    // Bucket bounds in seconds for the exported histograms
+    private static final double[] BOUNDS = {0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01,
+            0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    // The bounds as le label values, written out without exponents
+    private static final String[] BOUND_LABELS = new String[BOUNDS.length];
+
+    static
+    {
+        for (int i = 0; i < BOUNDS.length; i++)
+        {
+            BOUND_LABELS[i] = BigDecimal.valueOf(BOUNDS[i]).stripTrailingZeros().toPlainString();
+        }
+    }
+
+    private final LongAdder[] statuses = new LongAdder[600];
+    private final LongAdder bytesIn = new LongAdder(),
+            bytesOut = new LongAdder(),
+            accepts = new LongAdder(),
+            connections = new LongAdder(),
+            activeConnections = new LongAdder(),
+            uploads = new LongAdder(),
+            failedUploads = new LongAdder();
+
+    final Histogram request = new Histogram(),
+            parse = new Histogram(),
+            resolve = new Histogram(),
+            fileLoad = new Histogram(),
+            send = new Histogram(),
+            queue = new Histogram(),
+            upload = new Histogram();
+
+    private final long startedAt = System.currentTimeMillis();
+
+    Metrics()
+    {
+        for (int i = 0; i < statuses.length; i++)
+        {
+            statuses[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Latency histogram with log-linear buckets like HdrHistogram: every power of two of
+     * nanoseconds is split into 8 buckets, so a recorded value is off by at most 12.5%.
+     */
+    static final class Histogram
+    {
+        private static final int SUB_BITS = 3;
+        private static final int SUB = 1 << SUB_BITS;
+        private static final int BUCKETS = SUB + (63 - SUB_BITS) * SUB;
+
+        private final LongAdder[] counts = new LongAdder[BUCKETS];
+        private final LongAdder sum = new LongAdder();
+
+        Histogram()
+        {
+            for (int i = 0; i < BUCKETS; i++)
+            {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Records the time since a start time
+         * @param startNanos - System.nanoTime() at the start
+         */
+        void recordSince(long startNanos)
+        {
+            record(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * Records a duration
+         * @param nanos - duration in nanoseconds
+         */
+        void record(long nanos)
+        {
+            if (nanos < 0)
+            {
+                nanos = 0;
+            }
+
+            counts[index(nanos)].increment();
+            sum.add(nanos);
+        }
+
+        private static int index(long value)
+        {
+            if (value < SUB)
+            {
+                return (int) value;
+            }
+
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int mantissa = (int) (value >>> (exponent - SUB_BITS)) - SUB;
+            return SUB + (exponent - SUB_BITS) * SUB + mantissa;
+        }
+
+        /**
+         * Gets the largest value that falls into a bucket
+         */
+        private static long upperBound(int index)
+        {
+            if (index < SUB)
+            {
+                return index;
+            }
+
+            int exponent = (index - SUB) / SUB + SUB_BITS;
+            long mantissa = (index - SUB) % SUB + SUB;
+            return ((mantissa + 1) << (exponent - SUB_BITS)) - 1;
+        }
+
+        /**
+         * Writes the histogram as Prometheus buckets. A bucket is counted under the first
+         * bound that holds all of its values.
+         */
+        private void export(StringBuilder out, String name, String labels)
+        {
+            long cumulative = 0;
+            int bucket = 0;
+            String separator = labels.isEmpty() ? "" : labels + ",";
+
+            for (int i = 0; i < BOUNDS.length; i++)
+            {
+                long limit = (long) (BOUNDS[i] * 1e9);
+
+                while (bucket < BUCKETS && upperBound(bucket) <= limit)
+                {
+                    cumulative += counts[bucket++].sum();
+                }
+
+                out.append(name).append("_bucket{").append(separator).append("le=\"").append(BOUND_LABELS[i]).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+
+            while (bucket < BUCKETS)
+            {
+                cumulative += counts[bucket++].sum();
+            }
+
+            String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+            out.append(name).append("_bucket{").append(separator).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append(name).append("_sum").append(braces).append(' ').append(sum.sum() / 1e9).append('\n');
+            out.append(name).append("_count").append(braces).append(' ').append(cumulative).append('\n');
+        }
+    }
+
+    /**
+     * Counts a response
+     * @param status - status code
+     * @param bytes - bytes sent, header and body
+     */
+    void responseSent(int status, long bytes)
+    {
+        statuses[status >= 0 && status < statuses.length ? status : 0].increment();
+        bytesOut.add(bytes);
+    }
+
+    /**
+     * Counts received bytes
+     * @param bytes - number of bytes read from a connection
+     */
+    void bytesReceived(long bytes)
+    {
+        bytesIn.add(bytes);
+    }
+
+    void connectionAccepted()
+    {
+        accepts.increment();
+    }
+
+    long getAccepts()
+    {
+        return accepts.sum();
+    }
+
+    void connectionOpened()
+    {
+        connections.increment();
+        activeConnections.increment();
+    }
+
+    void connectionClosed()
+    {
+        activeConnections.decrement();
+    }
+
+    /**
+     * Counts an upload that was moved into place or refused
+     * @param ok - true if the upload was stored
+     */
+    void uploadDone(boolean ok)
+    {
+        (ok ? uploads : failedUploads).increment();
+    }
+
+    /**
+     * Builds the Prometheus text exposition of all metrics
+     * @return the metrics page
+     */
+    String export()
+    {
+        StringBuilder out = new StringBuilder(8 * 1024);
+
+        header(out, "http_requests_total", "counter", "Responses sent, by status code.");
+        for (int i = 0; i < statuses.length; i++)
+        {
+            long count = statuses[i].sum();
+
+            if (count > 0)
+            {
+                out.append("http_requests_total{code=\"").append(i).append("\"} ").append(count).append('\n');
+            }
+        }
+
+        counter(out, "http_received_bytes_total", "counter", "Bytes read from connections.", bytesIn.sum());
+        counter(out, "http_sent_bytes_total", "counter", "Response bytes, headers and bodies.", bytesOut.sum());
+        counter(out, "http_accepts_total", "counter", "Connections taken from the listen backlog, also those refused.", accepts.sum());
+        counter(out, "http_connections_total", "counter", "Connections accepted.", connections.sum());
+        counter(out, "http_connections_active", "gauge", "Connections currently open.", activeConnections.sum());
+
+        header(out, "http_uploads_total", "counter", "Uploads, by result.");
+        out.append("http_uploads_total{result=\"stored\"} ").append(uploads.sum()).append('\n');
+        out.append("http_uploads_total{result=\"refused\"} ").append(failedUploads.sum()).append('\n');
+
+        header(out, "http_image_variants_total", "counter", "Scaled image variants, by result.");
+        out.append("http_image_variants_total{result=\"generated\"} ").append(ImageVariants.SHARED.getGenerated()).append('\n');
+        out.append("http_image_variants_total{result=\"skipped\"} ").append(ImageVariants.SHARED.getSkipped()).append('\n');
+        out.append("http_image_variants_total{result=\"failed\"} ").append(ImageVariants.SHARED.getFailed()).append('\n');
+
+        counter(out, "http_file_cache_hits_total", "counter", "File cache hits.", FileCache.SHARED.getHits());
+        counter(out, "http_file_cache_misses_total", "counter", "File cache misses.", FileCache.SHARED.getMisses());
+        counter(out, "http_file_cache_evictions_total", "counter", "File cache evictions.", FileCache.SHARED.getEvictions());
+        counter(out, "http_file_cache_bytes", "gauge", "Bytes held by the file cache.", FileCache.SHARED.getSize());
+        counter(out, "http_buffer_pool_hits_total", "counter", "I/O buffers reused from the pool.", BufferPool.SHARED.getHits());
+        counter(out, "http_buffer_pool_misses_total", "counter", "I/O buffers newly allocated.", BufferPool.SHARED.getMisses());
+        counter(out, "http_buffer_pool_outstanding", "gauge", "Pooled I/O buffers in use.", BufferPool.SHARED.getOutstanding());
+        counter(out, "http_body_budget_bytes", "gauge", "Memory reserved for request bodies.", BodyBudget.SHARED.getUsed());
+        counter(out, "http_body_budget_peak_bytes", "gauge", "Most memory reserved for request bodies at once.",
+                BodyBudget.SHARED.getPeak());
+        counter(out, "http_body_budget_limit_bytes", "gauge", "Memory request bodies may take.", BodyBudget.SHARED.getLimit());
+        counter(out, "http_body_budget_refused_total", "counter", "Requests answered 503 for lack of body memory.",
+                BodyBudget.SHARED.getRefused());
+        counter(out, "http_access_log_dropped_total", "counter", "Access log records dropped.", AccessLog.SHARED.getDroppedCount());
+        counter(out, "http_refused_connections_total", "counter", "Connections refused by the client limits.",
+                ClientLimiter.SHARED.getRefusedCount());
+
+        header(out, "http_request_duration_seconds", "histogram", "Time to handle a request, until the response is ready.");
+        request.export(out, "http_request_duration_seconds", "");
+
+        header(out, "http_request_phase_seconds", "histogram", "Time spent in each phase of a request.");
+        parse.export(out, "http_request_phase_seconds", "phase=\"parse\"");
+        resolve.export(out, "http_request_phase_seconds", "phase=\"resolve\"");
+        fileLoad.export(out, "http_request_phase_seconds", "phase=\"load\"");
+        send.export(out, "http_request_phase_seconds", "phase=\"send\"");
+
+        header(out, "http_queue_seconds", "histogram", "Time accepted connections waited for a worker.");
+        queue.export(out, "http_queue_seconds", "");
+
+        header(out, "http_upload_seconds", "histogram", "Time to check and move an upload into place.");
+        upload.export(out, "http_upload_seconds", "");
+
+        counter(out, "http_uptime_seconds", "gauge", "Seconds since the server started.",
+                (System.currentTimeMillis() - startedAt) / 1000);
+
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help)
+    {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String type, String help, long value)
+    {
+        header(out, name, type, help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,128 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Registry of media types by file extension, loaded once from a mime.types file.
+ * Text types get a UTF-8 charset parameter. The encoded Content-Type header line of
+ * every type is built when the registry is loaded.
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+class MimeTypes
+{
+    static final MimeTypes SHARED = load(ServerConfig.MIME_TYPES);
+
+    private final Map<String, String> types = new HashMap<>();
+    private final Map<String, byte[]> headerLines = new HashMap<>();
+
+    private MimeTypes()
+    {
+    }
+
+    /**
+     * Reads a registry from a file with lines of the form "type ext1 ext2 ...", # starts a comment.
+     * Falls back to the few types the server always knew if the file can not be read.
+     * @param pathName - path to the mime.types file
+     * @return the registry
+     */
+    static MimeTypes load(String pathName)
+    {
+        MimeTypes registry = new MimeTypes();
+        List<String> lines;
+
+        try
+        {
+            lines = Files.readAllLines(Paths.get(pathName), StandardCharsets.UTF_8);
+        }
+        catch (IOException e)
+        {
+            System.err.printf("Could not read %s, only html, txt and png are served\n", pathName);
+            lines = List.of("text/html html htm", "text/plain txt", "image/png png");
+        }
+
+        for (String line : lines)
+        {
+            int comment = line.indexOf('#');
+            String[] fields = (comment >= 0 ? line.substring(0, comment) : line).trim().split("\\s+");
+
+            for (int i = 1; i < fields.length; i++)
+            {
+                registry.add(fields[i], fields[0]);
+            }
+        }
+
+        return registry;
+    }
+
+    private void add(String extension, String type)
+    {
+        type = type.toLowerCase(Locale.ROOT);
+
+        if (isText(type))
+        {
+            type += "; charset=UTF-8";
+        }
+
+        // Types are shared by several extensions, keep one String and one encoding per type
+        String shared = types.values().stream().filter(type::equals).findFirst().orElse(type);
+        types.put(extension.toLowerCase(Locale.ROOT), shared);
+        headerLines.computeIfAbsent(shared, t -> ("Content-Type: " + t + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Checks if a media type is textual, these are sent with a charset and are worth compressing
+     * @param type - media type, with or without parameters
+     * @return true for text/* and the textual application and image types
+     */
+    static boolean isText(String type)
+    {
+        return type.startsWith("text/") || type.startsWith("application/javascript")
+                || type.startsWith("application/json") || type.startsWith("application/manifest+json")
+                || type.startsWith("image/svg+xml");
+    }
+
+    /**
+     * Gets the media type of a file from its extension
+     * @param name - file name or path
+     * @return the media type, null if the extension is unknown
+     */
+    String typeOf(String name)
+    {
+        int dot = name.lastIndexOf('.');
+
+        if (dot < 0 || dot < name.lastIndexOf('/'))
+        {
+            return null;
+        }
+
+        String extension = name.substring(dot + 1);
+        String type = types.get(extension);
+
+        return type != null ? type : types.get(extension.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Gets the encoded Content-Type header line of a media type
+     * @param type - a media type returned by typeOf
+     * @return "Content-Type: type\r\n" as bytes
+     */
+    byte[] headerLine(String type)
+    {
+        byte[] line = headerLines.get(type);
+        return line != null ? line : ("Content-Type: " + type + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Gets the number of known extensions
+     * @return number of extensions
+     */
+    int size()
+    {
+        return types.size();
+    }
+}
@@ -0,0 +1,270 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streaming multipart/form-data parser. The body is fed in pieces of any size and part
+ * contents are passed on as soon as it is certain they do not belong to a boundary.
+ * Only the last boundary-length bytes are held back between pieces, so memory use does
+ * not depend on the size of the uploaded files.
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+class MultipartParser
+{
+    private static final int MAX_PART_HEADER_BYTES = 8192;
+
+    /**
+     * Receives the parts of a multipart body
+     */
+    interface Listener
+    {
+        /**
+         * @param headers - part headers, names in lower case
+         */
+        void partStart(Map<String, String> headers) throws IOException;
+
+        void partData(byte[] data, int off, int len) throws IOException;
+
+        void partEnd() throws IOException;
+    }
+
+    private enum State { PREAMBLE, DELIMITER_END, HEADERS, DATA, DONE }
+
+    private final Listener listener;
+
+    // "\r\n--boundary", the body is treated as if it started with CRLF so the first boundary matches too
+    private final ByteSearch delimiter;
+
+    private State state = State.PREAMBLE;
+    private byte[] work;
+    private int length;
+
+    /**
+     * @param boundary - boundary parameter from the Content-Type header
+     * @param listener - receiver of the parts
+     */
+    MultipartParser(String boundary, Listener listener)
+    {
+        this.listener = listener;
+        this.delimiter = new ByteSearch(("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1));
+        this.work = new byte[Math.max(4096, delimiter.length() * 2)];
+        this.work[0] = '\r';
+        this.work[1] = '\n';
+        this.length = 2;
+    }
+
+    /**
+     * Extracts the boundary from a Content-Type header value
+     * @param contentType - e.g. multipart/form-data; boundary=----abc
+     * @return the boundary, or null if the content type is not multipart/form-data
+     */
+    static String boundaryOf(String contentType)
+    {
+        if (contentType == null || !contentType.toLowerCase().startsWith("multipart/form-data"))
+        {
+            return null;
+        }
+
+        for (String param : contentType.split(";"))
+        {
+            param = param.trim();
+
+            if (param.toLowerCase().startsWith("boundary="))
+            {
+                String boundary = param.substring("boundary=".length());
+
+                if (boundary.length() > 1 && boundary.startsWith("\"") && boundary.endsWith("\""))
+                {
+                    boundary = boundary.substring(1, boundary.length() - 1);
+                }
+
+                return boundary.isEmpty() || boundary.length() > 70 ? null : boundary;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Parses the next piece of the body
+     * @param data - source array
+     * @param off - first byte
+     * @param len - number of bytes
+     * @throws HTTPRequestException if the body is not valid multipart
+     */
+    void feed(byte[] data, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            // Only copy as much as fits, the held back tail is always small
+            int count = Math.min(len, work.length - length);
+            System.arraycopy(data, off, work, length, count);
+            length += count;
+            off += count;
+            len -= count;
+
+            process();
+        }
+    }
+
+    /**
+     * Checks that the closing boundary has been seen, called when the body is complete
+     * @throws HTTPRequestException if the body ended early
+     */
+    void finish() throws HTTPRequestException
+    {
+        if (state != State.DONE)
+        {
+            throw new HTTPRequestException("400 Bad Request");
+        }
+    }
+
+    /**
+     * Runs the state machine over the work buffer and keeps whatever could not be decided yet
+     */
+    private void process() throws IOException
+    {
+        int pos = 0;
+
+        while (true)
+        {
+            if (state == State.PREAMBLE || state == State.DATA)
+            {
+                int match = delimiter.indexOf(work, pos, length);
+
+                if (match < 0)
+                {
+                    // The tail could be the start of a delimiter, keep it for the next round
+                    int safe = Math.max(pos, length - (delimiter.length() - 1));
+
+                    if (state == State.DATA && safe > pos)
+                    {
+                        listener.partData(work, pos, safe - pos);
+                    }
+                    pos = safe;
+                    break;
+                }
+
+                if (state == State.DATA)
+                {
+                    if (match > pos)
+                    {
+                        listener.partData(work, pos, match - pos);
+                    }
+                    listener.partEnd();
+                }
+
+                pos = match + delimiter.length();
+                state = State.DELIMITER_END;
+            }
+            else if (state == State.DELIMITER_END)
+            {
+                // Either "--" for the last boundary or CRLF before the next part's headers
+                if (length - pos < 2)
+                {
+                    break;
+                }
+
+                if (work[pos] == '-' && work[pos + 1] == '-')
+                {
+                    state = State.DONE;
+                }
+                else if (work[pos] == '\r' && work[pos + 1] == '\n')
+                {
+                    state = State.HEADERS;
+                }
+                else
+                {
+                    throw new HTTPRequestException("400 Bad Request");
+                }
+                pos += 2;
+            }
+            else if (state == State.HEADERS)
+            {
+                int end = endOfHeaders(pos);
+
+                if (end < 0)
+                {
+                    if (length - pos > MAX_PART_HEADER_BYTES)
+                    {
+                        throw new HTTPRequestException("400 Bad Request");
+                    }
+
+                    // Part headers have to be complete before they are parsed, make room for them
+                    if (pos == 0 && length == work.length)
+                    {
+                        grow();
+                    }
+                    break;
+                }
+
+                listener.partStart(parseHeaders(pos, end - 4));
+                pos = end;
+                state = State.DATA;
+            }
+            else
+            {
+                // Epilogue after the last boundary is ignored
+                pos = length;
+                break;
+            }
+        }
+
+        System.arraycopy(work, pos, work, 0, length - pos);
+        length -= pos;
+    }
+
+    /**
+     * Finds the blank line after a part's headers
+     * @param from - start of the headers
+     * @return the position after the blank line, or -1 if it has not arrived yet
+     */
+    private int endOfHeaders(int from)
+    {
+        // Headers of a part may also be empty, then the blank line follows right away
+        if (length - from >= 2 && work[from] == '\r' && work[from + 1] == '\n')
+        {
+            return from + 2;
+        }
+
+        for (int i = from; i + 3 < length; i++)
+        {
+            if (work[i] == '\r' && work[i + 1] == '\n' && work[i + 2] == '\r' && work[i + 3] == '\n')
+            {
+                return i + 4;
+            }
+        }
+
+        return -1;
+    }
+
+    private Map<String, String> parseHeaders(int from, int to)
+    {
+        Map<String, String> headers = new HashMap<>();
+
+        if (to <= from)
+        {
+            return headers;
+        }
+
+        for (String line : new String(work, from, to - from, StandardCharsets.UTF_8).split("\r\n"))
+        {
+            int colon = line.indexOf(':');
+
+            if (colon > 0)
+            {
+                headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+        }
+
+        return headers;
+    }
+
+    private void grow()
+    {
+        byte[] bigger = new byte[work.length * 2];
+        System.arraycopy(work, 0, bigger, 0, length);
+        work = bigger;
+    }
+}
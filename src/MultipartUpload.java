@@ -0,0 +1,249 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Body sink for multipart/form-data uploads. The first file part is written straight to a
+ * temporary file while it arrives, through a pooled direct buffer. Once the request
+ * is complete the handler decides whether the file is moved into place or discarded.
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+class MultipartUpload implements HTTPRequestReader.BodySink, MultipartParser.Listener
+{
+    private static final Path STAGING_DIR = Paths.get("http/resources/uploads");
+    private static final int PREFIX_LENGTH = 16;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final MultipartParser parser;
+
+    // Taken from the buffer pool when the file part starts, returned when the file is closed
+    private ByteBuffer buffer;
+
+    private String filename;
+    private Path staged;
+    private FileChannel file;
+    private boolean inFilePart;
+    private boolean done;
+
+    // First bytes of the file, used to check its type without reading it back
+    private final byte[] prefix = new byte[PREFIX_LENGTH];
+    private int prefixLength;
+
+    /**
+     * @param boundary - multipart boundary of the request
+     */
+    MultipartUpload(String boundary)
+    {
+        this.parser = new MultipartParser(boundary, this);
+    }
+
+    @Override
+    public void write(byte[] data, int off, int len) throws IOException
+    {
+        parser.feed(data, off, len);
+    }
+
+    @Override
+    public void finish() throws IOException
+    {
+        parser.finish();
+        closeFile();
+    }
+
+    @Override
+    public void abort()
+    {
+        discard();
+    }
+
+    @Override
+    public int bufferSize()
+    {
+        return BUFFER_SIZE;
+    }
+
+    @Override
+    public void partStart(Map<String, String> headers) throws IOException
+    {
+        String name = filenameOf(headers.get("content-disposition"));
+
+        // Only the first file part is stored, form fields and further files are skipped
+        if (name == null || done)
+        {
+            return;
+        }
+
+        filename = name;
+        staged = Files.createTempFile(STAGING_DIR, ".upload-", ".tmp");
+        file = FileChannel.open(staged, StandardOpenOption.WRITE);
+        buffer = BufferPool.SHARED.acquireDirect(BUFFER_SIZE);
+        inFilePart = true;
+    }
+
+    @Override
+    public void partData(byte[] data, int off, int len) throws IOException
+    {
+        if (!inFilePart)
+        {
+            return;
+        }
+
+        if (prefixLength < PREFIX_LENGTH)
+        {
+            int count = Math.min(len, PREFIX_LENGTH - prefixLength);
+            System.arraycopy(data, off, prefix, prefixLength, count);
+            prefixLength += count;
+        }
+
+        while (len > 0)
+        {
+            int count = Math.min(len, buffer.remaining());
+            buffer.put(data, off, count);
+            off += count;
+            len -= count;
+
+            if (!buffer.hasRemaining())
+            {
+                flush();
+            }
+        }
+    }
+
+    @Override
+    public void partEnd() throws IOException
+    {
+        if (inFilePart)
+        {
+            flush();
+            inFilePart = false;
+            done = true;
+        }
+    }
+
+    /**
+     * Gets the file name the client sent for the uploaded file
+     * @return file name, or null if the body had no file part
+     */
+    String getFilename()
+    {
+        return filename;
+    }
+
+    /**
+     * Gets the temporary file holding the upload
+     * @return path of the staged file, or null if there is none
+     */
+    Path getStagedFile()
+    {
+        return staged;
+    }
+
+    /**
+     * Checks if the uploaded file starts with the given bytes, e.g. a file signature
+     * @param signature - expected first bytes, at most 16
+     * @return true if the file starts with the signature
+     */
+    boolean startsWith(byte[] signature)
+    {
+        return prefixLength >= signature.length
+                && Arrays.equals(prefix, 0, signature.length, signature, 0, signature.length);
+    }
+
+    /**
+     * Deletes the staged file, used when the upload is refused or the request fails
+     */
+    void discard()
+    {
+        closeFile();
+
+        if (staged != null)
+        {
+            try
+            {
+                Files.deleteIfExists(staged);
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+            staged = null;
+        }
+    }
+
+    private void flush() throws IOException
+    {
+        buffer.flip();
+
+        while (buffer.hasRemaining())
+        {
+            file.write(buffer);
+        }
+
+        buffer.clear();
+    }
+
+    private void closeFile()
+    {
+        if (buffer != null)
+        {
+            BufferPool.SHARED.release(buffer);
+            buffer = null;
+        }
+
+        if (file == null)
+        {
+            return;
+        }
+
+        try
+        {
+            file.close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+        file = null;
+    }
+
+    /**
+     * Gets the filename parameter of a Content-Disposition header, without any directories
+     * @param disposition - header value, e.g. form-data; name="f"; filename="kappa.png"
+     * @return the file name, or null if there is none
+     */
+    private static String filenameOf(String disposition)
+    {
+        if (disposition == null)
+        {
+            return null;
+        }
+
+        int start = disposition.indexOf("filename=\"");
+
+        if (start < 0)
+        {
+            return null;
+        }
+
+        start += "filename=\"".length();
+        int end = disposition.indexOf('"', start);
+
+        if (end <= start)
+        {
+            return null;
+        }
+
+        String name = disposition.substring(start, end);
+
+        // Browsers on Windows may send a full path
+        name = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+
+        return name.isEmpty() ? null : name;
+    }
+}
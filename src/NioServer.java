@@ -0,0 +1,964 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event-driven server engine. A handful of event-loop threads each own a Selector and
+ * serve many non-blocking connections, so idle connections cost no thread at all.
+ * Requests are handled by the same RequestHandler as the blocking engine, on a pool of
+ * worker threads: file reads and uploads may block, and a loop must never wait for them.
+ * The finished response is posted back to the loop, which writes it. An upload body is
+ * decoded on the loop but written to disk by a worker: the loop queues what arrives and
+ * stops reading the connection while a worker catches up.
+ *
+ * HTTP/2 is served in blocking mode: a connection that switches leaves its event loop and
+ * gets a reading and a writing thread of its own. Their number is bounded, a client that
+ * asks for an upgrade beyond the bound is answered over HTTP/1.1 instead.
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+class NioServer
+{
+    private final Listener listener;
+    private final int bufSize;
+    private final EventLoop[] loops;
+
+    // Runs the request handlers. The queue needs no bound, a connection has at most one
+    // request in it and the number of connections is limited when they are accepted.
+    private final ThreadPoolExecutor workers;
+    private final AtomicInteger workerCount = new AtomicInteger();
+
+    // HTTP/2 connections that may run at once
+    private final Semaphore h2Connections = new Semaphore(Math.max(0, ServerConfig.H2_MAX_CONNECTIONS));
+    private final AtomicInteger h2Count = new AtomicInteger();
+
+    /**
+     * @param listener - binds the port and sets up accepted connections
+     * @param loopCount - number of event-loop threads
+     * @param bufSize - size of the read buffer used by each event loop
+     * @param workerThreads - number of threads handling requests
+     */
+    NioServer(Listener listener, int loopCount, int bufSize, int workerThreads)
+    {
+        this.listener = listener;
+        this.bufSize = bufSize;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+
+        workerThreads = Math.max(1, workerThreads);
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "http-worker-" + workerCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /**
+     * Opens the listening channels and starts the event loops. The calling thread
+     * becomes the first event loop, so this method does not return.
+     * @throws IOException if the port could not be bound
+     */
+    void run() throws IOException
+    {
+        for (int i = 0; i < loops.length; i++)
+        {
+            loops[i] = new EventLoop(i);
+        }
+
+        listener.bind();
+        System.out.printf("Accepting connections with %s\n", listener.describe());
+
+        // Acceptors are spread over the loops, each spreads its new connections over all loops.
+        // Every SO_REUSEPORT channel must be registered somewhere, the kernel hands connections
+        // to all of them. A shared channel is registered with several selectors, the loops that
+        // lose the race for a connection simply accept nothing.
+        for (int i = 0; i < listener.getAcceptors(); i++)
+        {
+            ServerSocketChannel server = listener.channelFor(i);
+            server.configureBlocking(false);
+            server.register(loops[i % loops.length].selector, SelectionKey.OP_ACCEPT);
+        }
+
+        for (int i = 1; i < loops.length; i++)
+        {
+            Thread t = new Thread(loops[i], "http-loop-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        Thread.currentThread().setName("http-loop-0");
+        loops[0].run();
+    }
+
+    /**
+     * Short summary of the engine state, used for the periodic statistics print
+     * @return summary string
+     */
+    String stats()
+    {
+        return String.format("nio loops=%d workers active=%d queued=%d h2=%d", loops.length,
+                workers.getActiveCount(), workers.getQueue().size(),
+                Math.max(0, ServerConfig.H2_MAX_CONNECTIONS) - h2Connections.availablePermits());
+    }
+
+    /**
+     * One selector thread serving its share of the connections
+     */
+    private class EventLoop implements Runnable
+    {
+        private final Selector selector;
+        private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+
+        // Connections whose response a worker has finished, posted back to be written
+        private final Queue<SelectionKey> handled = new ConcurrentLinkedQueue<>();
+
+        // Connections whose queued upload bytes a worker has written, posted back to be read again
+        private final Queue<SelectionKey> drained = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer;
+
+        // Connections whose request waits for body memory, they are not read from meanwhile
+        private final List<SelectionKey> parked = new ArrayList<>();
+
+        // Connections switching to HTTP/2, their keys are cancelled but not yet dropped by the selector
+        private final List<Connection> handOvers = new ArrayList<>();
+        private int nextLoop;
+        private long lastSweep;
+
+        EventLoop(int index) throws IOException
+        {
+            this.selector = Selector.open();
+            this.readBuffer = ByteBuffer.allocateDirect(bufSize);
+            this.nextLoop = index;
+        }
+
+        /**
+         * Hands over an accepted channel from the accepting loop
+         * @param channel - the new connection
+         */
+        void assign(SocketChannel channel)
+        {
+            newChannels.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run()
+        {
+            while (true)
+            {
+                try
+                {
+                    // Wake up regularly so silent connections can be timed out,
+                    // and more often while requests are waiting for body memory
+                    selector.select(parked.isEmpty() ? 1000 : 10);
+                    registerNewChannels();
+                    finishHandled();
+                    finishDrained();
+                    closeIdleConnections();
+                    resumeParked();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                    while (keys.hasNext())
+                    {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        if (!key.isValid())
+                        {
+                            continue;
+                        }
+
+                        try
+                        {
+                            if (key.isAcceptable())
+                            {
+                                accept((ServerSocketChannel) key.channel());
+                            }
+                            else if (key.isReadable())
+                            {
+                                read(key);
+                            }
+                            else if (key.isWritable())
+                            {
+                                write(key);
+                            }
+                        }
+                        catch (IOException e)
+                        {
+                            close(key);
+                        }
+                    }
+
+                    finishHandOvers();
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void registerNewChannels()
+        {
+            SocketChannel channel;
+
+            while ((channel = newChannels.poll()) != null)
+            {
+                try
+                {
+                    channel.register(selector, SelectionKey.OP_READ, new Connection(channel, bufSize));
+                    Metrics.SHARED.connectionOpened();
+                }
+                catch (ClosedChannelException e)
+                {
+                    // Client went away before we got to it
+                    ClientLimiter.SHARED.release(channel.socket().getInetAddress());
+                }
+            }
+        }
+
+        private void accept(ServerSocketChannel server) throws IOException
+        {
+            SocketChannel channel;
+
+            // Drain all pending connections, a burst should not need one wakeup per client
+            while ((channel = nextConnection(server)) != null)
+            {
+                channel.configureBlocking(false);
+
+                try
+                {
+                    listener.accepted(channel);
+                }
+                catch (IOException e)
+                {
+                    // The client went away before we got to it
+                    channel.close();
+                    continue;
+                }
+
+                // Clients over their limits are turned away before any connection state is created
+                ClientLimiter.Verdict verdict = ClientLimiter.SHARED.acquire(channel.socket().getInetAddress());
+
+                if (verdict != ClientLimiter.Verdict.ACCEPT)
+                {
+                    ClientLimiter.SHARED.refuse(channel, verdict);
+                    continue;
+                }
+
+                nextLoop = (nextLoop + 1) % loops.length;
+                loops[nextLoop].assign(channel);
+            }
+        }
+
+        /**
+         * Accepts one pending connection. A failed accept, usually for lack of file
+         * descriptors, must not close the listening channel; the client stays in the backlog.
+         * @return the connection, or null if there is none or accepting failed
+         */
+        private SocketChannel nextConnection(ServerSocketChannel server)
+        {
+            try
+            {
+                return server.accept();
+            }
+            catch (IOException e)
+            {
+                System.err.println("Accept failed: " + e.getMessage());
+                return null;
+            }
+        }
+
+        private void read(SelectionKey key) throws IOException
+        {
+            Connection conn = (Connection) key.attachment();
+
+            readBuffer.clear();
+            int readBytes = conn.channel.read(readBuffer);
+
+            if (readBytes < 0)
+            {
+                close(key);
+                return;
+            }
+
+            conn.lastActive = System.currentTimeMillis();
+            Metrics.SHARED.bytesReceived(readBytes);
+            readBuffer.flip();
+            conn.reader.feed(readBuffer);
+
+            serveNext(key);
+        }
+
+        /**
+         * Handles the next buffered request if it is complete. Pipelined requests are
+         * taken one at a time, the next one is served once the previous response is out.
+         * @param key - key of the connection
+         */
+        private void serveNext(SelectionKey key) throws IOException
+        {
+            Connection conn = (Connection) key.attachment();
+            HTTPRequestReader.Request request;
+
+            try
+            {
+                request = conn.reader.next();
+            }
+            catch (HTTPRequestException e)
+            {
+                // Status pages are kept in memory, an error is answered right on the loop
+                respond(key, conn.handler.processError(e.getStatus()));
+                return;
+            }
+
+            if (request == null)
+            {
+                // Out of body memory: stop reading so TCP flow control holds the client back
+                if (conn.reader.isWaitingForBudget())
+                {
+                    key.interestOps(0);
+                    parked.add(key);
+                }
+                // Enough of an upload is queued, reading waits until a worker has written it
+                else if (conn.upload != null && conn.upload.isFull())
+                {
+                    drain(key, conn.upload);
+                }
+                return;
+            }
+
+            if (HTTP2Connection.isSwitch(request, conn.reader.getUpgrade()))
+            {
+                if (h2Connections.tryAcquire())
+                {
+                    conn.switchRequest = request;
+                    key.cancel();
+                    handOvers.add(conn);
+                    return;
+                }
+
+                // No thread to spare: the preface can only be refused, an upgrade request is simply not upgraded
+                if (conn.reader.getUpgrade() == null)
+                {
+                    close(key);
+                    return;
+                }
+            }
+
+            // For debugging purposes, requests are in the access log
+            if (ServerConfig.DEBUG)
+            {
+                System.out.printf("HTTP request from %s using port %d \n",
+                        conn.channel.socket().getInetAddress(), conn.channel.socket().getPort());
+            }
+
+            conn.served++;
+            conn.upload = null;
+            handle(key, request, conn.reader.getStreamedBody(), conn.served < ServerConfig.KEEP_ALIVE_MAX);
+        }
+
+        /**
+         * Hands a request to a worker. The connection is neither read from nor timed out
+         * until the worker has posted the response back.
+         * @param key - key of the connection
+         * @param request - the complete request
+         * @param body - sink that received a streamed request body, null if the body is part of the request
+         * @param allowKeepAlive - false if the connection has to be closed after this response anyway
+         */
+        private void handle(SelectionKey key, HTTPRequestReader.Request request, HTTPRequestReader.BodySink body,
+                            boolean allowKeepAlive)
+        {
+            Connection conn = (Connection) key.attachment();
+
+            conn.busy = true;
+            key.interestOps(0);
+
+            workers.execute(() -> {
+                try
+                {
+                    // The rest of a streamed upload goes to disk before the request is handled
+                    QueuedSink upload = body instanceof QueuedSink ? (QueuedSink) body : null;
+                    String failure = upload != null ? writeQueued(upload) : null;
+
+                    conn.handled = failure != null ? conn.handler.processError(failure)
+                            : conn.handler.processRequest(request, upload != null ? upload.target : body, allowKeepAlive);
+                }
+                catch (IOException e)
+                {
+                    // The connection is closed without a response
+                }
+                catch (RuntimeException e)
+                {
+                    // A bug in handling one request must not take the worker with it
+                    e.printStackTrace();
+                }
+
+                handled.add(key);
+                selector.wakeup();
+            });
+        }
+
+        /**
+         * Hands the queued bytes of an upload to a worker, which writes them to the upload's
+         * sink. The connection is not read from until the worker has posted it back.
+         * @param key - key of the connection
+         * @param upload - the upload being received
+         */
+        private void drain(SelectionKey key, QueuedSink upload)
+        {
+            Connection conn = (Connection) key.attachment();
+
+            conn.busy = true;
+            key.interestOps(0);
+
+            workers.execute(() -> {
+                conn.failure = writeQueued(upload);
+                drained.add(key);
+                selector.wakeup();
+            });
+        }
+
+        /**
+         * Writes the queued bytes of an upload to its sink, on a worker
+         * @return null, or the status to answer if the body turned out malformed or could not be stored
+         */
+        private String writeQueued(QueuedSink upload)
+        {
+            try
+            {
+                upload.drain();
+                return null;
+            }
+            catch (HTTPRequestException e)
+            {
+                upload.abort();
+                return e.getStatus();
+            }
+            catch (IOException | RuntimeException e)
+            {
+                // The sink failed, e.g. the disk is full
+                e.printStackTrace();
+                upload.abort();
+                return "500 Internal Server Error";
+            }
+        }
+
+        /**
+         * Goes on reading the connections whose queued upload bytes have been written,
+         * or answers the error their upload ran into
+         */
+        private void finishDrained()
+        {
+            SelectionKey key;
+
+            while ((key = drained.poll()) != null)
+            {
+                Connection conn = (Connection) key.attachment();
+                String failure = conn.failure;
+
+                conn.failure = null;
+                conn.busy = false;
+                conn.lastActive = System.currentTimeMillis();
+
+                if (!key.isValid())
+                {
+                    continue;
+                }
+
+                try
+                {
+                    if (failure != null)
+                    {
+                        conn.reader.close();
+                        respond(key, conn.handler.processError(failure));
+                    }
+                    else
+                    {
+                        key.interestOps(SelectionKey.OP_READ);
+                        serveNext(key);
+                    }
+                }
+                catch (IOException e)
+                {
+                    close(key);
+                }
+            }
+        }
+
+        /**
+         * Starts writing the responses the workers have finished. A request that failed
+         * without a response closes its connection.
+         */
+        private void finishHandled()
+        {
+            SelectionKey key;
+
+            while ((key = handled.poll()) != null)
+            {
+                Connection conn = (Connection) key.attachment();
+                HTTPResponse response = conn.handled;
+
+                conn.handled = null;
+                conn.busy = false;
+
+                if (response == null)
+                {
+                    close(key);
+                    continue;
+                }
+
+                try
+                {
+                    respond(key, response);
+                }
+                catch (IOException e)
+                {
+                    close(key);
+                }
+            }
+        }
+
+        /**
+         * Retries the requests waiting for body memory, each either goes on reading its body,
+         * is parked again or is answered 503 once it has waited too long
+         */
+        private void resumeParked()
+        {
+            if (parked.isEmpty())
+            {
+                return;
+            }
+
+            List<SelectionKey> waiting = new ArrayList<>(parked);
+            parked.clear();
+
+            for (SelectionKey key : waiting)
+            {
+                if (!key.isValid())
+                {
+                    continue;
+                }
+
+                try
+                {
+                    key.interestOps(SelectionKey.OP_READ);
+                    serveNext(key);
+                }
+                catch (IOException e)
+                {
+                    close(key);
+                }
+            }
+        }
+
+        /**
+         * Moves the connections that switch to HTTP/2 off the event loop. selectNow() makes
+         * the selector drop their cancelled keys, after that the channels can be put in
+         * blocking mode and handed to threads of their own.
+         */
+        private void finishHandOvers() throws IOException
+        {
+            if (handOvers.isEmpty())
+            {
+                return;
+            }
+
+            // Keys it selects stay in the selected set for the next round
+            selector.selectNow();
+
+            for (Connection conn : handOvers)
+            {
+                try
+                {
+                    conn.channel.configureBlocking(true);
+                }
+                catch (IOException e)
+                {
+                    closeHandedOver(conn);
+                    continue;
+                }
+
+                Thread t = new Thread(() -> serveHTTP2(conn), "h2-connection-" + h2Count.incrementAndGet());
+                t.setDaemon(true);
+                t.start();
+            }
+
+            handOvers.clear();
+        }
+
+        /**
+         * Serves a connection that switched to HTTP/2 until it ends, on its own thread
+         * @param conn - the connection, its channel in blocking mode
+         */
+        private void serveHTTP2(Connection conn)
+        {
+            try
+            {
+                HTTP2Connection.serve(conn.switchRequest, conn.reader, conn.channel.socket(),
+                        conn.channel.socket().getInputStream(), conn.channel);
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+            finally
+            {
+                closeHandedOver(conn);
+            }
+        }
+
+        private void closeHandedOver(Connection conn)
+        {
+            conn.reader.close();
+            conn.handler.close();
+            ClientLimiter.SHARED.release(conn.channel.socket().getInetAddress());
+            Metrics.SHARED.connectionClosed();
+            h2Connections.release();
+
+            try
+            {
+                conn.channel.close();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Starts writing a finished response, reading stops until it has been sent
+         * @param key - key of the connection
+         * @param response - the complete response
+         */
+        private void respond(SelectionKey key, HTTPResponse response) throws IOException
+        {
+            Connection conn = (Connection) key.attachment();
+
+            conn.output = response;
+            conn.sendStart = System.nanoTime();
+            key.interestOps(SelectionKey.OP_WRITE);
+            write(key);
+        }
+
+        /**
+         * Closes connections that have been silent for longer than the read timeout,
+         * answering 408 if a request was partially received
+         */
+        private void closeIdleConnections()
+        {
+            long now = System.currentTimeMillis();
+
+            if (now - lastSweep < 1000)
+            {
+                return;
+            }
+            lastSweep = now;
+
+            for (SelectionKey key : selector.keys())
+            {
+                if (!(key.attachment() instanceof Connection) || !key.isValid())
+                {
+                    continue;
+                }
+
+                Connection conn = (Connection) key.attachment();
+
+                // Between requests the shorter keep-alive timeout applies
+                boolean idle = conn.served > 0 && !conn.reader.hasBufferedData();
+                int timeout = idle ? ServerConfig.KEEP_ALIVE_TIMEOUT : ServerConfig.READ_TIMEOUT;
+
+                // A request waiting for body memory is answered once its wait is over,
+                // one that is being handled once the worker is done
+                if (conn.output != null || conn.busy || conn.reader.isWaitingForBudget() || now - conn.lastActive < timeout)
+                {
+                    continue;
+                }
+
+                try
+                {
+                    if (conn.reader.hasBufferedData())
+                    {
+                        respond(key, conn.handler.processError("408 Request Timeout"));
+                    }
+                    else
+                    {
+                        close(key);
+                    }
+                }
+                catch (IOException e)
+                {
+                    close(key);
+                }
+            }
+        }
+
+        private void write(SelectionKey key) throws IOException
+        {
+            Connection conn = (Connection) key.attachment();
+
+            boolean done = conn.output.writeTo(conn.channel);
+            conn.lastActive = System.currentTimeMillis();
+
+            if (!done)
+            {
+                return;
+            }
+
+            Metrics.SHARED.send.recordSince(conn.sendStart);
+            Metrics.SHARED.responseSent(conn.output.getStatus(), conn.output.getLength());
+
+            if (!conn.output.isKeepAlive())
+            {
+                close(key);
+                return;
+            }
+
+            // Response is out, go back to reading and serve any request that is already buffered
+            conn.output = null;
+            key.interestOps(SelectionKey.OP_READ);
+            serveNext(key);
+        }
+
+        private void close(SelectionKey key)
+        {
+            key.cancel();
+
+            // Release the file of a response and the upload of a request that were cut short
+            if (key.attachment() instanceof Connection)
+            {
+                Connection conn = (Connection) key.attachment();
+                conn.reader.close();
+                conn.handler.close();
+
+                // Counted once per connection, also if the key gets closed twice
+                if (conn.channel.isOpen())
+                {
+                    ClientLimiter.SHARED.release(conn.channel.socket().getInetAddress());
+                    Metrics.SHARED.connectionClosed();
+                }
+
+                if (conn.output != null)
+                {
+                    conn.output.close();
+                }
+            }
+
+            try
+            {
+                key.channel().close();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Per-connection state: the request being read, the response being written
+     * and how many requests have been served on the connection
+     */
+    private static class Connection
+    {
+        private final SocketChannel channel;
+        private final RequestHandler handler;
+        private final HTTPRequestReader reader =
+                new HTTPRequestReader(ServerConfig.MAX_HEADER_BYTES, ServerConfig.MAX_BODY_BYTES);
+        private HTTPResponse output;
+
+        // Set by the worker, taken over by the loop once the key is posted back
+        private HTTPResponse handled;
+        private String failure;
+        private boolean busy;
+
+        // Body of an upload being received, queued for a worker to write
+        private QueuedSink upload;
+        private HTTPRequestReader.Request switchRequest;
+        private int served;
+        private long lastActive = System.currentTimeMillis();
+        private long sendStart;
+
+        private final int readSize;
+
+        /**
+         * @param channel - the accepted connection
+         * @param readSize - most bytes one read of the event loop takes in
+         */
+        Connection(SocketChannel channel, int readSize)
+        {
+            this.channel = channel;
+            this.handler = new RequestHandler(channel.socket().getInetAddress());
+            this.readSize = readSize;
+
+            // Uploads are streamed to disk as they arrive instead of being held in memory
+            reader.setBodyHandler(this::openBody, ServerConfig.MAX_UPLOAD_BYTES);
+        }
+
+        private HTTPRequestReader.BodySink openBody(byte[] head, int off, int len) throws IOException
+        {
+            HTTPRequestReader.BodySink target = handler.openBody(head, off, len);
+            upload = target == null ? null : new QueuedSink(target, readSize);
+            return upload;
+        }
+    }
+
+    /**
+     * Body sink the event loop can write to without touching the disk. The bytes are copied
+     * into a queue, a worker writes them to the real sink. Once QUEUE_BYTES are waiting the
+     * loop stops reading, so the queue holds at most that plus one read.
+     */
+    private static final class QueuedSink implements HTTPRequestReader.BodySink
+    {
+        private static final int QUEUE_BYTES = 64 * 1024;
+
+        private final HTTPRequestReader.BodySink target;
+        private final int readSize;
+
+        // Guarded by this
+        private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+        private int queued;
+        private boolean finished;
+        private boolean draining;
+        private boolean aborted;
+
+        /**
+         * @param target - sink the body is written to
+         * @param readSize - most bytes one read of the event loop takes in
+         */
+        QueuedSink(HTTPRequestReader.BodySink target, int readSize)
+        {
+            this.target = target;
+            this.readSize = readSize;
+        }
+
+        @Override
+        public synchronized void write(byte[] data, int off, int len)
+        {
+            queue.add(Arrays.copyOfRange(data, off, off + len));
+            queued += len;
+        }
+
+        /**
+         * Only notes that the body is complete, the target is finished by the last drain
+         */
+        @Override
+        public synchronized void finish()
+        {
+            finished = true;
+        }
+
+        @Override
+        public void abort()
+        {
+            synchronized (this)
+            {
+                aborted = true;
+                queue.clear();
+                queued = 0;
+
+                // A worker writing right now aborts the target itself once it is done
+                if (draining)
+                {
+                    return;
+                }
+            }
+
+            target.abort();
+        }
+
+        @Override
+        public int bufferSize()
+        {
+            return target.bufferSize() + QUEUE_BYTES + readSize;
+        }
+
+        /**
+         * Checks if the loop should stop reading until the queue has been written
+         * @return true if enough bytes are queued
+         */
+        synchronized boolean isFull()
+        {
+            return queued >= QUEUE_BYTES;
+        }
+
+        /**
+         * Writes the queued bytes to the target, and finishes it if the whole body has
+         * been queued. Runs on a worker while the loop does not read the connection.
+         * @throws IOException if the target fails, e.g. on a malformed body or a full disk
+         */
+        void drain() throws IOException
+        {
+            synchronized (this)
+            {
+                if (aborted)
+                {
+                    return;
+                }
+                draining = true;
+            }
+
+            try
+            {
+                byte[] piece;
+
+                while ((piece = take()) != null)
+                {
+                    target.write(piece, 0, piece.length);
+                }
+
+                if (isFinished())
+                {
+                    target.finish();
+                }
+            }
+            finally
+            {
+                boolean abortTarget;
+
+                synchronized (this)
+                {
+                    draining = false;
+                    abortTarget = aborted;
+                }
+
+                if (abortTarget)
+                {
+                    target.abort();
+                }
+            }
+        }
+
+        private synchronized byte[] take()
+        {
+            byte[] piece = aborted ? null : queue.poll();
+
+            if (piece != null)
+            {
+                queued -= piece.length;
+            }
+
+            return piece;
+        }
+
+        private synchronized boolean isFinished()
+        {
+            return finished && !aborted;
+        }
+    }
+}
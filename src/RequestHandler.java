@@ -0,0 +1,693 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Turns a raw HTTP request into a response. Shared by the blocking and the
+ * event-driven server engines. Keeps a reusable request parser and header buffer,
+ * so an instance belongs to one connection, and a response has to be sent before
+ * the next request on that connection is processed.
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+class RequestHandler
+{
+    private final HTTPRequestParser parser = new HTTPRequestParser();
+    private final InetAddress client;
+    private boolean parsed;
+
+    // Response headers are written here, a response must be sent before the next one is built.
+    // Taken from the buffer pool on first use and returned by close().
+    private ByteBuffer headerBuffer;
+
+    /**
+     * @param client - address of the connection's client, used for the access log
+     */
+    RequestHandler(InetAddress client) {
+        this.client = client;
+    }
+
+    /**
+     * Handles a request and cleans up after a streamed body
+     * @param req - request, as handed out by the reader
+     * @param body - sink that received a streamed request body, null if the body is part of req
+     * @param allowKeepAlive - false if the connection has to be closed after this response anyway
+     * @return the response, telling also whether the connection should stay open
+     */
+    HTTPResponse processRequest(HTTPRequestReader.Request req, HTTPRequestReader.BodySink body, boolean allowKeepAlive) throws IOException {
+        long start = System.nanoTime();
+
+        try {
+            HTTPResponse response = handleRequest(req, body, allowKeepAlive);
+            Metrics.SHARED.request.recordSince(start);
+            log(response, start);
+            return response;
+        } finally {
+            // A staged upload that was not moved into place is removed
+            if (body != null)
+                body.abort();
+        }
+    }
+
+    /**
+     * Help-method for sending back a response. This is just for testing purposes
+     * @param req - request, as handed out by the reader
+     * @param body - sink that received a streamed request body, null if the body is part of req
+     * @param allowKeepAlive - false if the connection has to be closed after this response anyway
+     * @return the response, telling also whether the connection should stay open
+     */
+    private HTTPResponse handleRequest(HTTPRequestReader.Request req, HTTPRequestReader.BodySink body, boolean allowKeepAlive) throws IOException {
+
+        // For debugging purposes
+        if (ServerConfig.DEBUG)
+            System.out.println(new String(req.data, req.offset, req.length, StandardCharsets.UTF_8));
+
+        // Request line and headers are parsed in place, in the buffer they were read into,
+        // without Strings for what is not used
+        long parseStart = System.nanoTime();
+        parsed = parser.parse(req.data, req.offset, req.length);
+        Metrics.SHARED.parse.recordSince(parseStart);
+
+        if (!parsed)
+            return errorResponse("400 Bad Request");
+
+        // Known methods and versions come back as the parser's constants, so == would do
+        String reqMeth = parser.getMethod();
+
+        // Keep the connection unless the client or the connection limits say otherwise
+        boolean keepAlive = allowKeepAlive && parser.getVersion().equals(HTTPRequestParser.HTTP_1_1)
+                && !parser.headerEquals("Connection", "close");
+
+        String target = parser.getTarget(),
+                HTTP = parser.getVersion();
+
+        // The query never names a file, it only selects a variant, e.g. ?w=200 for a smaller image
+        int queryStart = target.indexOf('?');
+        String query = queryStart < 0 ? null : target.substring(queryStart + 1);
+        String path = queryStart < 0 ? target : target.substring(0, queryStart);
+        String fileToGet = path.substring(1);
+
+        // The metrics page is generated, it never goes through the static file handling
+        if (!ServerConfig.METRICS_PATH.isEmpty() && reqMeth.equals("GET")
+                && HTTP.equals(HTTPRequestParser.HTTP_1_1) && path.equals(ServerConfig.METRICS_PATH))
+            return metricsResponse(keepAlive);
+
+        String destinationFilePath = null;
+        HTTPResponseConstructor rc;
+
+        //check if http is ok
+        if(!HTTP.equals(HTTPRequestParser.HTTP_1_1)) {
+            destinationFilePath = "http/resources/StatusPages/505.html";
+            rc = new HTTPResponseConstructor(destinationFilePath);
+            rc.setPath();
+            rc.setExtension();
+            rc.forceStatusCode("505 HTTP Version Not Supported");
+        }
+
+        else if (reqMeth.equals("GET")) {
+            destinationFilePath = fileToGet;
+            rc = new HTTPResponseConstructor(destinationFilePath);
+
+            // A target with characters the file system can not encode names no file at all
+            try {
+                rc.setPath();
+            } catch (InvalidPathException e) {
+                return errorResponse("400 Bad Request");
+            }
+            rc.setExtension();
+
+            long resolveStart = System.nanoTime();
+            rc.setStatusCode();
+            Metrics.SHARED.resolve.recordSince(resolveStart);
+        }
+            /*
+            the rest needed to be separated because now we do not want to compute the status code
+            but rather force it to be of a certain value
+            */
+
+        //if HTTP is ok but the request is not get
+        else {
+            String verdict = null;
+
+            if (reqMeth.equals("POST") || reqMeth.equals("PUT")){
+                // The file part was already streamed to a staging file while the body arrived
+                MultipartUpload upload = body instanceof MultipartUpload ? (MultipartUpload) body : null;
+                String filename = upload == null || upload.getFilename() == null ? "" : upload.getFilename();
+
+                filename = filename.substring(filename.lastIndexOf(".") + 1);
+
+                //check if the file to be uploaded is png
+                if(filename.equals("png")) {
+                    if (reqMeth.equals("POST")) {
+                        uploadImage(upload, null);
+                        destinationFilePath = "uploads/StatusPages/201.html";
+                        verdict = "201 Created";
+
+                    }
+
+                    else if (reqMeth.equals("PUT")) {
+                        // Remove first / so path is correct
+                        destinationFilePath = fileToGet;
+
+                        if (destinationFilePath.contains("secretDir")){
+                            destinationFilePath = "secretDir";
+                            verdict = "403 Forbidden";
+                        }
+
+
+                        else if (destinationFilePath.contains("readOnly")) {
+                            destinationFilePath = "readOnly";
+                            verdict = "405 Method Not Allowed";
+                        }
+
+                        else {
+
+                            // Make sure file could be uploaded correctly
+                            if (uploadImage(upload, destinationFilePath))
+                            {
+                                destinationFilePath = "uploads/StatusPages/201.html";
+                                verdict = "201 Created";
+                            }
+                            else
+                            {
+                                destinationFilePath = "uploads/StatusPages/403.html";
+                                verdict = "403 Forbidden";
+                            }
+                        }
+                    }
+                }
+
+                else {
+                    destinationFilePath = "uploads/StatusPages/415.html";
+                    verdict = "415 Unsupported Media Type";
+                }
+            }
+
+            //if HTTP is ok but the request is neither get, nor post, nor put
+            else {
+                //checking for other standard HTTP requests that we didn't implement
+                if (reqMeth.equals("HEAD") || reqMeth.equals("DELETE") || reqMeth.equals("OPTIONS") || reqMeth.equals("CONNECT")) {
+                    destinationFilePath = "http/resources/StatusPages/501.html";
+                    verdict = "501 Not Implemented";
+
+                }
+
+                //any other request is to be considered a bad request
+                else {
+                    destinationFilePath = "http/resources/StatusPages/400.html";
+                    verdict = "400 Bad Request";
+                }
+            }
+
+            rc = new HTTPResponseConstructor(destinationFilePath);
+            rc.setPath();
+            rc.setExtension();
+            rc.forceStatusCode(verdict);
+        }
+
+        FileCache.Entry file = setResponse(rc.getStatusCode(), rc.getPath());
+
+        // A scaled-down image replaces the original once it has been generated. Until then the
+        // original stands in for it, and must neither be stored nor validated as the variant.
+        int width = ImageVariants.requestedWidth(query);
+        boolean standIn = false;
+
+        if (width > 0 && file != null && rc.getStatusCode().equals("200 OK") && reqMeth.equals("GET")
+                && ImageVariants.isScalable(rc.getContentType())) {
+            String scaled = ImageVariants.SHARED.get(file, width);
+            FileCache.Entry variantFile = scaled != null && !scaled.equals(file.path) ? loadFile(scaled) : null;
+
+            if (variantFile != null)
+                file = variantFile;
+            else if (scaled == null || !scaled.equals(file.path))
+                standIn = true;
+        }
+
+        // Text files go out gzip-encoded to clients that accept it, ranges are always of the plain file
+        CompressedCache.Variant variant = null;
+
+        if (file != null && rc.getStatusCode().equals("200 OK") && reqMeth.equals("GET")
+                && CompressedCache.isCompressible(rc.getContentType()) && parser.getHeader("Range") == null
+                && CompressedCache.acceptsGzip(parser.getHeader("Accept-Encoding")))
+            variant = CompressedCache.SHARED.get(file);
+
+        // File vanished between the status check and loading it
+        if (file == null) {
+            rc.forceStatusCode("500 Internal Server Error");
+            file = setResponse(rc.getStatusCode(), rc.getPath());
+        }
+
+        else if (standIn) {
+            rc.setCacheControl(HTTPResponseConstructor.NO_STORE);
+            return buildResponse(rc, file, keepAlive);
+        }
+
+        // The client's copy is still current, answer without a body
+        else if (rc.getStatusCode().equals("200 OK") && reqMeth.equals("GET")
+                && isNotModified(file, variant != null ? variant.getETag() : file.getETag())) {
+            rc.forceStatusCode(HTTPResponseConstructor.NOT_MODIFIED);
+            rc.setFile(file);
+            rc.setVariant(variant);
+            rc.setKeepAlive(keepAlive);
+            writeHeader(rc);
+            return new HTTPResponse(headerBuffer, null, keepAlive);
+        }
+
+        // Only part of the file was asked for, and the client's partial copy is of this version
+        else if (rc.getStatusCode().equals("200 OK") && reqMeth.equals("GET")
+                && parser.getHeader("Range") != null && ifRangeMatches(file)) {
+            HTTPResponse response = buildRangeResponse(rc, file, parser.getHeader("Range"), keepAlive);
+
+            // An invalid Range header is ignored and the whole file is sent
+            if (response != null)
+                return response;
+        }
+
+        if (variant != null)
+            return buildVariantResponse(rc, file, variant, keepAlive);
+
+        return buildResponse(rc, file, keepAlive);
+
+    }
+
+    /**
+     * Checks the conditional headers of the current request against a file. If-None-Match
+     * takes precedence, If-Modified-Since is only looked at when there is no If-None-Match.
+     * @param file - the requested file
+     * @param eTag - entity tag of the representation that would be sent
+     * @return true if the client's cached copy is still valid
+     */
+    private boolean isNotModified(FileCache.Entry file, String eTag) {
+        String ifNoneMatch = parser.getHeader("If-None-Match");
+
+        if (ifNoneMatch != null)
+            return eTagMatches(ifNoneMatch, eTag);
+
+        String ifModifiedSince = parser.getHeader("If-Modified-Since");
+
+        if (ifModifiedSince == null)
+            return false;
+
+        // HTTP dates have whole seconds
+        long since = HTTPDateClock.parse(ifModifiedSince);
+        return since >= 0 && file.lastModified / 1000 <= since / 1000;
+    }
+
+    /**
+     * Checks If-Range, ranges are only served if the client's partial copy is of the current file
+     * @param file - the requested file
+     * @return true if there is no If-Range, or if its entity tag or date matches the file
+     */
+    private boolean ifRangeMatches(FileCache.Entry file) {
+        String ifRange = parser.getHeader("If-Range");
+
+        if (ifRange == null)
+            return true;
+
+        // Strong comparison for entity tags, an exact match for dates
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+            return ifRange.equals(file.getETag());
+
+        long date = HTTPDateClock.parse(ifRange);
+        return date >= 0 && file.lastModified / 1000 == date / 1000;
+    }
+
+    /**
+     * Weak comparison of an If-None-Match list against an entity tag
+     * @param list - header value, "*" or comma separated entity tags
+     * @param eTag - current entity tag of the file
+     * @return true if one of the tags matches
+     */
+    private static boolean eTagMatches(String list, String eTag) {
+        for (String candidate : list.split(",")) {
+            candidate = candidate.trim();
+
+            if (candidate.startsWith("W/"))
+                candidate = candidate.substring(2);
+
+            if (candidate.equals("*") || candidate.equals(eTag))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Writes the response header into the handler's header buffer
+     * @param rc - the response to write the header of
+     */
+    private void writeHeader(HTTPResponseConstructor rc) {
+        if (headerBuffer == null)
+            headerBuffer = BufferPool.SHARED.acquireDirect(512);
+
+        headerBuffer = rc.writeHeader(headerBuffer);
+    }
+
+    /**
+     * Returns the header buffer to the pool once the connection is done,
+     * the last response must have been sent
+     */
+    void close() {
+        if (headerBuffer != null) {
+            BufferPool.SHARED.release(headerBuffer);
+            headerBuffer = null;
+        }
+    }
+
+    /**
+     * Builds the metrics page in the Prometheus text format
+     * @param keepAlive - true if the connection stays open afterwards
+     * @return the response
+     */
+    private HTTPResponse metricsResponse(boolean keepAlive) {
+        byte[] page = Metrics.SHARED.export().getBytes(StandardCharsets.UTF_8);
+
+        HTTPResponseConstructor rc = new HTTPResponseConstructor(ServerConfig.METRICS_PATH);
+        rc.forceStatusCode("200 OK");
+        rc.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        rc.setContentLength(page.length);
+        rc.setKeepAlive(keepAlive);
+        writeHeader(rc);
+
+        return new HTTPResponse(headerBuffer, ByteBuffer.wrap(page), keepAlive);
+    }
+
+    /**
+     * Sends a status page when a request could not be read at all
+     * @param status - status code and reason, e.g. "413 Payload Too Large"
+     * @return the response
+     */
+    HTTPResponse processError(String status) throws IOException {
+        long start = System.nanoTime();
+        parsed = false;
+
+        HTTPResponse response = errorResponse(status);
+        log(response, start);
+        return response;
+    }
+
+    /**
+     * Hands the request and its response to the access log
+     * @param response - the response that is about to be sent
+     * @param start - System.nanoTime() when handling started
+     */
+    private void log(HTTPResponse response, long start) {
+        if (!AccessLog.SHARED.isEnabled())
+            return;
+
+        if (parsed)
+            AccessLog.SHARED.log(client, parser.getMethod(), parser.getTarget(), parser.getVersion(),
+                    response.getStatus(), response.getBodyLength(), start,
+                    parser.getHeader("Referer"), parser.getHeader("User-Agent"));
+        else
+            AccessLog.SHARED.log(client, null, null, null, response.getStatus(), response.getBodyLength(), start, null, null);
+    }
+
+    /**
+     * Builds the status page response for an error
+     * @param status - status code and reason
+     * @return the response, the connection is closed after it
+     */
+    private HTTPResponse errorResponse(String status) throws IOException {
+        String statusName = status.split(" ")[0];
+        HTTPResponseConstructor rc = new HTTPResponseConstructor("StatusPages/" + statusName + ".html");
+        rc.setPath();
+        rc.setExtension();
+        rc.forceStatusCode(status);
+
+        // A 503 means the server is short of memory or connections for now, the client may come back
+        if (statusName.equals("503"))
+            rc.setRetryAfter(ServerConfig.RETRY_AFTER);
+
+        // The rest of the stream can not be trusted, so the connection is always closed
+        return buildResponse(rc, setResponse(rc.getStatusCode(), rc.getPath()), false);
+    }
+
+    /**
+     * Puts together the header and the body source. Small files are sent from the file cache,
+     * hot large files from a memory mapping and everything else is streamed from disk.
+     * @param rc - response constructor with path and status code set
+     * @param file - file entry the body comes from
+     * @param keepAlive - true if the connection stays open afterwards
+     * @return the response
+     */
+    private HTTPResponse buildResponse(HTTPResponseConstructor rc, FileCache.Entry file, boolean keepAlive) throws IOException {
+        rc.setFile(file);
+        rc.setKeepAlive(keepAlive);
+
+        if (file.data != null) {
+            rc.setContentLength(file.length);
+
+            // The header buffer is reused for every response of this handler
+            writeHeader(rc);
+            return new HTTPResponse(headerBuffer, ByteBuffer.wrap(file.data), keepAlive);
+        }
+
+        ByteBuffer mapped = MappedFileCache.SHARED.get(file.path, file.lastModified);
+
+        if (mapped != null) {
+            rc.setContentLength(mapped.remaining());
+            writeHeader(rc);
+            return new HTTPResponse(headerBuffer, mapped, keepAlive);
+        }
+
+        // The length is that of the file as it is opened, not as it was when the entry was cached
+        FileChannel channel = HTTPResponse.open(file.path);
+        long length = channel.size();
+        rc.setContentLength(length);
+        writeHeader(rc);
+        return new HTTPResponse(headerBuffer, channel, 0, length, keepAlive);
+    }
+
+    /**
+     * Puts together the response for the gzip variant of a file, sent from memory
+     * or streamed from a precompressed sibling
+     * @param rc - response constructor with path and status code set
+     * @param file - the requested file
+     * @param variant - its gzip variant
+     * @param keepAlive - true if the connection stays open afterwards
+     * @return the response
+     */
+    private HTTPResponse buildVariantResponse(HTTPResponseConstructor rc, FileCache.Entry file, CompressedCache.Variant variant, boolean keepAlive) throws IOException {
+        rc.setFile(file);
+        rc.setVariant(variant);
+        rc.setKeepAlive(keepAlive);
+
+        if (variant.data != null) {
+            rc.setContentLength(variant.length);
+            writeHeader(rc);
+            return new HTTPResponse(headerBuffer, ByteBuffer.wrap(variant.data), keepAlive);
+        }
+
+        FileChannel channel = HTTPResponse.open(variant.path);
+        long length = channel.size();
+        rc.setContentLength(length);
+        writeHeader(rc);
+        return new HTTPResponse(headerBuffer, channel, 0, length, keepAlive);
+    }
+
+    /**
+     * Puts together a response to a Range request. A single range is sent as it is,
+     * several ranges as a multipart/byteranges body and none as 416 Range Not Satisfiable.
+     * @param rc - response constructor with path and status code set
+     * @param file - the requested file
+     * @param rangeHeader - value of the Range header
+     * @param keepAlive - true if the connection stays open afterwards
+     * @return the response, null if the Range header is invalid and should be ignored
+     */
+    private HTTPResponse buildRangeResponse(HTTPResponseConstructor rc, FileCache.Entry file, String rangeHeader, boolean keepAlive) throws IOException {
+        ByteBuffer mapped = file.data == null ? MappedFileCache.SHARED.get(file.path, file.lastModified) : null;
+        FileChannel channel = file.data == null && mapped == null ? HTTPResponse.open(file.path) : null;
+
+        // Ranges are resolved against the bytes that will actually be sent
+        long size = channel != null ? channel.size() : mapped != null ? mapped.remaining() : file.length;
+        List<ByteRange> ranges = ByteRange.parse(rangeHeader, size);
+
+        if (ranges == null || ranges.isEmpty()) {
+            if (channel != null)
+                channel.close();
+
+            if (ranges == null)
+                return null;
+
+            rc.forceStatusCode(HTTPResponseConstructor.RANGE_NOT_SATISFIABLE);
+            rc.setContentRange("bytes */" + size);
+            return buildResponse(rc, setResponse(rc.getStatusCode(), rc.getPath()), keepAlive);
+        }
+
+        rc.forceStatusCode(HTTPResponseConstructor.PARTIAL_CONTENT);
+        rc.setFile(file);
+        rc.setKeepAlive(keepAlive);
+
+        if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            rc.setContentLength(range.length());
+            rc.setContentRange(range.contentRange(size));
+            writeHeader(rc);
+
+            HTTPResponse response = new HTTPResponse(headerBuffer, keepAlive);
+            addSlice(response, file, mapped, channel, range);
+            return response;
+        }
+
+        // Every range gets its own part header, the total length has to be known up front
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        byte[][] partHeaders = new byte[ranges.size()][];
+        long length = 0;
+
+        for (int i = 0; i < partHeaders.length; i++) {
+            ByteRange range = ranges.get(i);
+            partHeaders[i] = ("\r\n--" + boundary + "\r\n" +
+                    "Content-Type: " + rc.getContentType() + "\r\n" +
+                    "Content-Range: " + range.contentRange(size) + "\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1);
+            length += partHeaders[i].length + range.length();
+        }
+
+        byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        length += closing.length;
+
+        rc.setContentType("multipart/byteranges; boundary=" + boundary);
+        rc.setContentLength(length);
+        writeHeader(rc);
+
+        HTTPResponse response = new HTTPResponse(headerBuffer, keepAlive);
+
+        for (int i = 0; i < partHeaders.length; i++) {
+            response.addBuffer(ByteBuffer.wrap(partHeaders[i]));
+            addSlice(response, file, mapped, channel, ranges.get(i));
+        }
+
+        response.addBuffer(ByteBuffer.wrap(closing));
+        return response;
+    }
+
+    /**
+     * Adds one range of a file to a response, from wherever the file's bytes are held
+     * @param response - the response
+     * @param file - the file entry
+     * @param mapped - memory mapping of the file, null if it is not mapped
+     * @param channel - the opened file, if it is neither cached nor mapped
+     * @param range - the range to send
+     */
+    private static void addSlice(HTTPResponse response, FileCache.Entry file, ByteBuffer mapped, FileChannel channel, ByteRange range) {
+        if (file.data != null)
+            response.addBuffer(ByteBuffer.wrap(file.data, (int) range.start, (int) range.length()));
+
+        else if (mapped != null) {
+            ByteBuffer slice = mapped.duplicate();
+            slice.position((int) range.start).limit((int) (range.end + 1));
+            response.addBuffer(slice);
+        }
+
+        else
+            response.addFileRegion(channel, range.start, range.length());
+    }
+
+    /**
+     *Form a response of the specific HTML-file depending on its existence and accessibility
+     * @param status - status code of the HTTP message
+     * @param destinationFilePath - path to the required file
+     * @return cached file entry containing raw bytes of the file, null if it could not be read
+     */
+    private FileCache.Entry setResponse(String status, String destinationFilePath){
+        FileCache.Entry file;
+
+        if (status.equals("200 OK"))
+            file = loadFile(destinationFilePath);
+
+        else {
+            String statusName = status.split(" ")[0];
+            file = loadFile("http/resources/StatusPages/" + statusName +".html");
+        }
+
+        return file;
+    }
+
+    /**
+     * Loads file from a String path name, served from the shared file cache when possible
+     * @param pathName - path to the required file
+     * @return cache entry holding the contents of the file, null if it could not be read
+     */
+    private FileCache.Entry loadFile(String pathName)
+    {
+        long start = System.nanoTime();
+        FileCache.Entry file = FileCache.SHARED.get(pathName);
+        Metrics.SHARED.fileLoad.recordSince(start);
+        return file;
+    }
+
+    /**
+     *  Moves an uploaded image (png) from its staging file into place
+     * @param upload upload whose file part has been streamed to disk
+     * @param path path (directory path) where file should be stored
+     * @return true if successfull, false otherwise
+     */
+    private boolean uploadImage(MultipartUpload upload, String path) {
+        long start = System.nanoTime();
+        boolean stored = storeImage(upload, path);
+
+        Metrics.SHARED.upload.recordSince(start);
+        Metrics.SHARED.uploadDone(stored);
+        return stored;
+    }
+
+    /**
+     * Checks the png signature of a staged upload and moves it to its destination
+     * @param upload upload whose file part has been streamed to disk
+     * @param path path (directory path) where file should be stored
+     * @return true if successfull, false otherwise
+     */
+    private boolean storeImage(MultipartUpload upload, String path) {
+
+        // -119 since it will be interpreted as a signed int.
+        byte[] pngSignature = {-119, 80, 78, 71, 13, 10, 26, 10};
+
+        if (upload.getStagedFile() == null || !upload.startsWith(pngSignature))
+        {
+            return false;
+        }
+
+        try {
+            // PUT paths are relative to the served directory and must stay inside it
+            Path target = UploadStore.SHARED.resolve(path == null ? "uploads/" : path, upload.getFilename());
+
+            if (target == null)
+                return false;
+
+            UploadStore.SHARED.commit(upload.getStagedFile(), target);
+        }
+        catch (Exception e)
+        {
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Decides, once the headers have arrived, whether the body is streamed to disk.
+     * multipart/form-data uploads (POST and PUT) are, everything else is kept in memory.
+     * @param head - buffer holding the request line and headers
+     * @param off - first byte of the request line
+     * @param len - length of the request line and headers
+     * @return a sink for the body, or null to keep it in memory
+     */
+    HTTPRequestReader.BodySink openBody(byte[] head, int off, int len) {
+        if (!parser.parse(head, off, len))
+            return null;
+
+        String method = parser.getMethod();
+
+        if (method != HTTPRequestParser.POST && method != HTTPRequestParser.PUT)
+            return null;
+
+        String boundary = MultipartParser.boundaryOf(parser.getHeader("Content-Type"));
+        return boundary == null ? null : new MultipartUpload(boundary);
+    }
+}
@@ -0,0 +1,323 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * In-memory index of everything under the resource root, mapping each normalized path to
+ * how a GET for it is answered: the file that is served (the index page for a directory),
+ * its media type, its size and the status code the access rules give it. The index is
+ * built at startup and kept current by a WatchService thread, so resolving a request is
+ * one hash lookup instead of several file system calls.
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+class ResourceIndex
+{
+    private static final String OK = "200 OK",
+            FORBIDDEN = "403 Forbidden",
+            NOT_FOUND = "404 Not Found",
+            UNSUPPORTED = "415 Unsupported Media Type",
+            LEGAL_REASON = "451 Unavailable For Legal Reasons";
+
+    // Files that may not be served for legal reasons
+    private static final Path ILLEGAL = Paths.get("http/resources/dir2/TheAnswer.txt");
+
+    private static final String[] INDEX_FILES = {"index.html", "index.htm"};
+
+    // Declared after the constants above, the constructor needs them
+    static final ResourceIndex SHARED = new ResourceIndex("http/resources");
+
+    private final Path root;
+    private final ConcurrentHashMap<String, Resource> resources = new ConcurrentHashMap<>();
+    private WatchService watcher;
+
+    /**
+     * How a path is answered
+     */
+    static final class Resource
+    {
+        // File that is served, for a directory its index file
+        final String path;
+        // Status code and reason the request is answered with
+        final String status;
+        // Media type of the served file, null if the type is not supported
+        final String contentType;
+        final long length;
+
+        private Resource(String path, String status, String contentType, long length)
+        {
+            this.path = path;
+            this.status = status;
+            this.contentType = contentType;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Indexes a directory tree and starts watching it
+     * @param rootDir - path to the resource root
+     */
+    ResourceIndex(String rootDir)
+    {
+        root = Paths.get(rootDir).normalize();
+
+        try
+        {
+            watcher = root.getFileSystem().newWatchService();
+        }
+        catch (IOException e)
+        {
+            // Still usable, just not updated when files change
+            e.printStackTrace();
+        }
+
+        scan(root);
+
+        if (watcher != null)
+        {
+            Thread thread = new Thread(this::watch, "resource-index");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Looks up how a path is answered
+     * @param pathName - normalized path, as built by HTTPResponseConstructor.setPath
+     * @return the resource, or null if nothing exists at the path
+     */
+    Resource get(String pathName)
+    {
+        return resources.get(pathName);
+    }
+
+    /**
+     * Gets the number of indexed paths
+     * @return number of files and directories
+     */
+    int size()
+    {
+        return resources.size();
+    }
+
+    /**
+     * Updates the index for a path right away, used after the server itself changed a file
+     * so the change is seen before the watcher gets to it
+     * @param pathName - path to the changed file
+     */
+    void refresh(String pathName)
+    {
+        Path path = Paths.get(pathName).normalize();
+
+        if (path.startsWith(root))
+        {
+            update(path);
+        }
+    }
+
+    /**
+     * Adds a directory and everything below it, and registers the directories with the watcher
+     */
+    private void scan(Path dir)
+    {
+        List<Path> dirs = new ArrayList<>();
+
+        try (Stream<Path> paths = Files.walk(dir))
+        {
+            paths.forEach(path ->
+            {
+                if (Files.isDirectory(path))
+                {
+                    register(path);
+                    dirs.add(path);
+                }
+                else
+                {
+                    updateFile(path);
+                }
+            });
+        }
+        catch (IOException | UncheckedIOException e)
+        {
+            e.printStackTrace();
+        }
+
+        // Directories last, so their index files are known
+        dirs.forEach(this::updateDirectory);
+    }
+
+    private void register(Path dir)
+    {
+        if (watcher == null)
+        {
+            return;
+        }
+
+        try
+        {
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Re-resolves a changed path and its directory, whose index file might be the one that changed
+     */
+    private void update(Path path)
+    {
+        if (Files.isDirectory(path))
+        {
+            scan(path);
+        }
+        else if (Files.exists(path))
+        {
+            updateFile(path);
+        }
+        else
+        {
+            // Gone, together with everything below it if it was a directory
+            String key = path.toString();
+            String prefix = key + path.getFileSystem().getSeparator();
+            resources.keySet().removeIf(k -> k.equals(key) || k.startsWith(prefix));
+        }
+
+        Path parent = path.getParent();
+
+        if (parent != null && parent.startsWith(root))
+        {
+            updateDirectory(parent);
+        }
+    }
+
+    private void updateFile(Path file)
+    {
+        String contentType = HTTPResponseConstructor.contentTypeOf(file.getFileName().toString());
+        String status;
+
+        if (isHidden(file))
+            status = FORBIDDEN;
+        else if (contentType == null)
+            status = UNSUPPORTED;
+        else if (file.equals(ILLEGAL))
+            status = LEGAL_REASON;
+        else
+            status = OK;
+
+        long length;
+
+        try
+        {
+            length = Files.size(file);
+        }
+        catch (IOException e)
+        {
+            // Removed while being indexed, the delete event follows
+            return;
+        }
+
+        resources.put(file.toString(), new Resource(file.toString(), status, contentType, length));
+    }
+
+    /**
+     * A directory is answered with its index file, or 404 Not Found if it has none
+     */
+    private void updateDirectory(Path dir)
+    {
+        String key = dir.toString();
+
+        if (!Files.isDirectory(dir))
+        {
+            return;
+        }
+
+        if (isHidden(dir))
+        {
+            resources.put(key, new Resource(key, FORBIDDEN, null, 0));
+            return;
+        }
+
+        for (String name : INDEX_FILES)
+        {
+            Resource index = resources.get(dir.resolve(name).toString());
+
+            if (index != null)
+            {
+                resources.put(key, index);
+                return;
+            }
+        }
+
+        resources.put(key, new Resource(key, NOT_FOUND, null, 0));
+    }
+
+    /**
+     * Checks if a path is inside the "secret" directory
+     */
+    private boolean isHidden(Path path)
+    {
+        for (Path part : root.relativize(path))
+        {
+            if (part.toString().contains("secretDir"))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Applies file system events to the index until the server stops
+     */
+    private void watch()
+    {
+        while (true)
+        {
+            WatchKey key;
+
+            try
+            {
+                key = watcher.take();
+            }
+            catch (InterruptedException | ClosedWatchServiceException e)
+            {
+                return;
+            }
+
+            Path dir = (Path) key.watchable();
+
+            for (WatchEvent<?> event : key.pollEvents())
+            {
+                // Events were lost, index everything again and drop what is gone
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                {
+                    scan(root);
+                    resources.keySet().removeIf(k -> !Files.exists(Paths.get(k)));
+                    continue;
+                }
+
+                update(dir.resolve((Path) event.context()));
+            }
+
+            // The directory itself is gone
+            if (!key.reset())
+            {
+                update(dir);
+            }
+        }
+    }
+}
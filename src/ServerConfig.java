@@ -0,0 +1,229 @@
+/**
+ * Runtime settings for the HTTP-Server. Every value can be overridden at startup
+ * with a system property, e.g. java -Dhttp.executor=virtual HTTPServer
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+final class ServerConfig
+{
+    // Port the server listens on
+    static final int PORT = intProperty("http.port", 8888);
+
+    // Local address the server listens on, empty for all addresses
+    static final String BIND_ADDRESS = stringProperty("http.bindAddress", "");
+
+    // Connections the kernel queues until they are accepted, raise it for connection storms
+    static final int BACKLOG = intProperty("http.backlog", 1024);
+
+    // Threads (blocking engine) or event loops (nio engine) accepting connections
+    static final int ACCEPTORS = intProperty("http.acceptors", 1);
+
+    // Gives every acceptor its own listening socket with SO_REUSEPORT where the JDK supports it
+    static final boolean REUSE_PORT = Boolean.parseBoolean(stringProperty("http.reusePort", "true"));
+
+    // Disables Nagle's algorithm on accepted connections
+    static final boolean TCP_NODELAY = Boolean.parseBoolean(stringProperty("http.tcpNoDelay", "true"));
+
+    // SO_SNDBUF and SO_RCVBUF of connections in bytes, 0 leaves the operating system default
+    static final int SEND_BUFFER = intProperty("http.sendBuffer", 0);
+    static final int RECEIVE_BUFFER = intProperty("http.receiveBuffer", 0);
+
+    // Size of the buffer a connection is read into
+    static final int BUFFER_SIZE = intProperty("http.bufSize", 1024);
+
+    // Server engine: "blocking" (one handler per connection) or "nio" (selector event loops)
+    static final String ENGINE = stringProperty("http.engine", "blocking");
+
+    // Number of event-loop threads used by the nio engine
+    static final int EVENT_LOOPS = intProperty("http.eventLoops", Runtime.getRuntime().availableProcessors());
+
+    // How connections are executed: "pool" (bounded worker pool) or "virtual" (one virtual thread per connection)
+    static final String EXECUTOR = stringProperty("http.executor", "pool");
+
+    // Number of worker threads in the pool, with the nio engine the threads that handle requests
+    static final int WORKERS = intProperty("http.workers", Runtime.getRuntime().availableProcessors() * 8);
+
+    // Number of accepted connections that may wait for a free worker
+    static final int QUEUE_SIZE = intProperty("http.queue", 1024);
+
+    // What to do when the queue is full: "queue" (wait for room), "reject" (answer 503) or "shed" (reset connection)
+    static final String OVERLOAD_POLICY = stringProperty("http.overload", "queue");
+
+    // Seconds between printed server statistics, 0 turns it off
+    static final int STATS_INTERVAL = intProperty("http.statsInterval", 0);
+
+    // Milliseconds a connection may stay silent while a request is being read
+    static final int READ_TIMEOUT = intProperty("http.readTimeout", 10000);
+
+    // Largest accepted request line plus headers in bytes, larger requests get 431
+    static final int MAX_HEADER_BYTES = intProperty("http.maxHeaderBytes", 8192);
+
+    // Largest accepted request body in bytes, larger requests get 413
+    static final int MAX_BODY_BYTES = intProperty("http.maxBodyBytes", 10 * 1024 * 1024);
+
+    // Largest accepted upload in bytes, uploads are streamed to disk so this does not bound memory
+    static final int MAX_UPLOAD_BYTES = intProperty("http.maxUploadBytes", 100 * 1024 * 1024);
+
+    // Milliseconds an idle keep-alive connection is kept open while waiting for the next request
+    static final int KEEP_ALIVE_TIMEOUT = intProperty("http.keepAliveTimeout", 5000);
+
+    // Number of requests served on one connection before it is closed, 1 turns keep-alive off
+    static final int KEEP_ALIVE_MAX = intProperty("http.keepAliveMax", 100);
+
+    // Upper bound in bytes for all files held in the static file cache
+    static final int CACHE_BYTES = intProperty("http.cacheBytes", 64 * 1024 * 1024);
+
+    // Files larger than this many bytes are never put in the cache
+    static final int CACHE_MAX_FILE = intProperty("http.cacheMaxFile", 1024 * 1024);
+
+    // Milliseconds between checks whether a cached file has been modified on disk
+    static final int CACHE_STAT_INTERVAL = intProperty("http.cacheStatInterval", 1000);
+
+    // Upper bound in bytes for memory-mapped large files, 0 streams every large file from disk
+    static final int MAPPED_CACHE_BYTES = intProperty("http.mappedCacheBytes", 256 * 1024 * 1024);
+
+    // Number of requests after which a large file gets memory-mapped
+    static final int MAPPED_HOT_HITS = intProperty("http.mappedHotHits", 3);
+
+    // Whether ETags of cached files include a hash of the content, not just size and modification time
+    static final boolean ETAG_CONTENT_HASH = Boolean.parseBoolean(stringProperty("http.etagHash", "false"));
+
+    // Upper bound in bytes for gzip-compressed file variants kept in memory, 0 turns on-the-fly compression off
+    static final int GZIP_CACHE_BYTES = intProperty("http.gzipCacheBytes", 16 * 1024 * 1024);
+
+    // Deflate level used for on-the-fly compression, 1 (fastest) to 9 (smallest)
+    static final int GZIP_LEVEL = intProperty("http.gzipLevel", 6);
+
+    // File mapping extensions to media types, in the format of /etc/mime.types
+    static final String MIME_TYPES = stringProperty("http.mimeTypes", "http/mime.types");
+
+    // New connections per second a single client may open, 0 turns rate limiting off
+    static final int RATE_LIMIT = intProperty("http.rateLimit", 1000);
+
+    // Connections a client may open in a burst above the rate limit
+    static final int RATE_BURST = intProperty("http.rateBurst", 2000);
+
+    // Open connections allowed per client address, 0 for no limit. Also caps a load test from one host.
+    static final int MAX_CONNECTIONS_PER_CLIENT = intProperty("http.maxConnectionsPerClient", 256);
+
+    // Open connections allowed in total, 0 for no limit. Idle keep-alive connections count too,
+    // so the nio engine, which is meant to hold tens of thousands of them, gets a higher default.
+    // Either way the process also needs as many file descriptors (ulimit -n).
+    static final int MAX_CONNECTIONS = intProperty("http.maxConnections",
+            ENGINE.equalsIgnoreCase("nio") ? 100000 : 10000);
+
+    // What a refused connection gets: "respond" (429 or 503 page) or "reset"
+    static final String LIMIT_ACTION = stringProperty("http.limitAction", "respond");
+
+    // Milliseconds after which the state of an idle client is forgotten
+    static final int CLIENT_EXPIRY = intProperty("http.clientExpiry", 60000);
+
+    // Access log file, empty to turn access logging off
+    static final String ACCESS_LOG = stringProperty("http.accessLog", "logs/access.log");
+
+    // Access log record format: "combined" (Apache Combined Log Format) or "json"
+    static final String ACCESS_LOG_FORMAT = stringProperty("http.accessLogFormat", "combined");
+
+    // Number of records the access log buffers for its writer, rounded up to a power of two
+    static final int ACCESS_LOG_BUFFER = intProperty("http.accessLogBuffer", 8192);
+
+    // What happens when the access log buffer is full: "drop" the record or "block" the request
+    static final String ACCESS_LOG_OVERFLOW = stringProperty("http.accessLogOverflow", "drop");
+
+    // Size in bytes at which the access log is rotated
+    static final int ACCESS_LOG_MAX_BYTES = intProperty("http.accessLogMaxBytes", 64 * 1024 * 1024);
+
+    // Number of rotated access log files kept
+    static final int ACCESS_LOG_FILES = intProperty("http.accessLogFiles", 5);
+
+    // Prints every request and connection to stdout, for debugging only
+    static final boolean DEBUG = Boolean.parseBoolean(stringProperty("http.debug", "false"));
+
+    // Path the Prometheus metrics are served on, empty to turn the endpoint off
+    static final String METRICS_PATH = stringProperty("http.metricsPath", "/metrics");
+
+    // Lets clients switch to HTTP/2 over cleartext (h2c), by prior knowledge or with an Upgrade request
+    static final boolean HTTP2 = Boolean.parseBoolean(stringProperty("http.h2c", "true"));
+
+    // Streams a client may have open at once on one HTTP/2 connection
+    static final int H2_MAX_STREAMS = intProperty("http.h2MaxStreams", 100);
+
+    // Threads handling HTTP/2 streams, shared by all HTTP/2 connections
+    static final int H2_WORKERS = intProperty("http.h2Workers", 32);
+
+    // Flow-control window in bytes announced to HTTP/2 clients, per stream and for the connection
+    static final int H2_WINDOW = intProperty("http.h2Window", 1024 * 1024);
+
+    // Milliseconds an HTTP/2 connection without open streams is kept, and a stream waits for window
+    static final int H2_IDLE_TIMEOUT = intProperty("http.h2IdleTimeout", 30000);
+
+    // HTTP/2 connections the nio engine serves at once. Each has a blocking socket with a reading
+    // and a writing thread of its own, further upgrades are answered over HTTP/1.1.
+    static final int H2_MAX_CONNECTIONS = intProperty("http.h2MaxConnections", 64);
+
+    // Bytes of free I/O buffers kept for reuse, over all size classes
+    static final int BUFFER_POOL_BYTES = intProperty("http.bufferPoolBytes", 32 * 1024 * 1024);
+
+    // Gives every thread a small cache of free buffers in front of the shared pool
+    static final boolean BUFFER_POOL_THREAD_CACHE = Boolean.parseBoolean(stringProperty("http.bufferPoolThreadCache", "true"));
+
+    // Forces uploaded files and their directory to disk before the upload is answered
+    static final boolean UPLOAD_FSYNC = Boolean.parseBoolean(stringProperty("http.uploadFsync", "false"));
+
+    // Number of locks uploads to the same path are serialized by, rounded up to a power of two
+    static final int UPLOAD_LOCK_STRIPES = intProperty("http.uploadLockStripes", 64);
+
+    // Bytes of request bodies all connections together may hold in memory
+    static final int BODY_BUDGET_BYTES = intProperty("http.bodyBudgetBytes", 64 * 1024 * 1024);
+
+    // Milliseconds a request waits for body memory before it is answered 503
+    static final int BODY_BUDGET_WAIT = intProperty("http.bodyBudgetWait", 5000);
+
+    // Seconds a client is asked to wait in the Retry-After header of a 503 response
+    static final int RETRY_AFTER = intProperty("http.retryAfter", 2);
+
+    // Widths in pixels of the scaled image variants served for ?w=, comma separated, empty to turn variants off
+    static final String IMAGE_WIDTHS = stringProperty("http.imageWidths", "200,400,800");
+
+    // Threads generating image variants in the background
+    static final int IMAGE_WORKERS = intProperty("http.imageWorkers", 2);
+
+    // Image variants waiting to be generated, further ones are skipped until there is room
+    static final int IMAGE_QUEUE = intProperty("http.imageQueue", 64);
+
+    // Directory the generated image variants are stored in, outside the served files
+    static final String IMAGE_VARIANT_DIR = stringProperty("http.imageVariantDir", "http/variants");
+
+    private ServerConfig()
+    {
+    }
+
+    /**
+     * Reads a string system property
+     * @param name - name of the property
+     * @param def - value used if the property is not set
+     * @return the property value
+     */
+    static String stringProperty(String name, String def)
+    {
+        return System.getProperty(name, def).trim();
+    }
+
+    /**
+     * Reads an integer system property
+     * @param name - name of the property
+     * @param def - value used if the property is not set or is not a number
+     * @return the property value
+     */
+    static int intProperty(String name, int def)
+    {
+        try
+        {
+            return Integer.parseInt(System.getProperty(name, String.valueOf(def)).trim());
+        }
+        catch (NumberFormatException e)
+        {
+            System.err.printf("Invalid value for %s, using %d\n", name, def);
+            return def;
+        }
+    }
+}
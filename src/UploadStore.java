@@ -0,0 +1,165 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Moves finished uploads into place. An upload is always complete in a temporary file before
+ * it is committed, and the commit replaces the target with a single atomic rename, so readers
+ * see either the old file or the new one and never a partial write. Commits to the same path
+ * are serialized by a striped lock, commits to different paths only contend if their stripes
+ * collide. Once a file is in place its cached and indexed entries are dropped, and variants
+ * of an uploaded image are queued for generation. Files are only ever stored below the
+ * served directory.
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+final class UploadStore
+{
+    static final UploadStore SHARED = new UploadStore(Paths.get("http/resources"),
+            ServerConfig.UPLOAD_LOCK_STRIPES, ServerConfig.UPLOAD_FSYNC);
+
+    private final Path root;
+    private final ReentrantLock[] stripes;
+    private final boolean fsync;
+
+    /**
+     * @param root - directory uploads are stored in, also the base of the cache keys
+     * @param stripeCount - number of locks, rounded up to a power of two
+     * @param fsync - true to force files and directories to disk before a commit returns
+     */
+    UploadStore(Path root, int stripeCount, boolean fsync)
+    {
+        int count = Integer.highestOneBit(Math.max(1, stripeCount - 1) << 1);
+
+        this.root = root.normalize();
+        this.stripes = new ReentrantLock[count];
+        this.fsync = fsync;
+
+        for (int i = 0; i < count; i++)
+        {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Resolves the path a client asked to store a file at against the served directory
+     * @param directory - directory relative to the served directory, e.g. "uploads/"
+     * @param filename - name of the file
+     * @return the target, or null if it would lie outside the served directory
+     */
+    Path resolve(String directory, String filename)
+    {
+        Path target = root.resolve(directory).resolve(filename).normalize();
+        return target.startsWith(root) && !target.equals(root) ? target : null;
+    }
+
+    /**
+     * Replaces the target with a staged file. The staged file is gone afterwards, also when the commit fails.
+     * @param staged - complete temporary file holding the new contents
+     * @param target - path the file is stored at, from resolve()
+     * @throws IOException if the file can not be moved into place or the target is outside the served directory
+     */
+    void commit(Path staged, Path target) throws IOException
+    {
+        target = target.normalize();
+        Path directory = target.toAbsolutePath().getParent();
+
+        try
+        {
+            if (!target.startsWith(root) || target.equals(root))
+            {
+                throw new IOException("Upload target outside " + root + ": " + target);
+            }
+
+            // Done before taking the lock, the staged file is private to this upload
+            if (fsync)
+            {
+                force(staged, StandardOpenOption.WRITE);
+            }
+
+            ReentrantLock lock = lockFor(target.toAbsolutePath());
+            lock.lock();
+
+            try
+            {
+                moveIntoPlace(staged, target, directory);
+
+                if (fsync && directory != null)
+                {
+                    // Makes the rename itself durable
+                    force(directory, StandardOpenOption.READ);
+                }
+
+                // Make sure the next GET sees the new file instead of a cached old version,
+                // the key is the root-relative path the request handler looks files up by
+                String key = target.toString();
+                FileCache.SHARED.invalidate(key);
+                MappedFileCache.SHARED.invalidate(key);
+                CompressedCache.SHARED.invalidate(key);
+                ResourceIndex.SHARED.refresh(key);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            // Scaled versions of an uploaded image are made ahead of the first request for them
+            ImageVariants.SHARED.prepare(target.toString());
+        }
+        finally
+        {
+            Files.deleteIfExists(staged);
+        }
+    }
+
+    /**
+     * Renames the staged file to the target. If the two are on different file systems the
+     * file is copied next to the target first, so the final step is still a rename.
+     */
+    private void moveIntoPlace(Path staged, Path target, Path directory) throws IOException
+    {
+        try
+        {
+            Files.move(staged, target, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e)
+        {
+            Path local = Files.createTempFile(directory, ".upload-", ".tmp");
+
+            try
+            {
+                Files.copy(staged, local, StandardCopyOption.REPLACE_EXISTING);
+
+                if (fsync)
+                {
+                    force(local, StandardOpenOption.WRITE);
+                }
+
+                Files.move(local, target, StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally
+            {
+                Files.deleteIfExists(local);
+            }
+        }
+    }
+
+    private ReentrantLock lockFor(Path target)
+    {
+        int h = target.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+    }
+
+    private static void force(Path path, StandardOpenOption mode) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(path, mode))
+        {
+            channel.force(true);
+        }
+    }
+}
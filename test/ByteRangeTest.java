@@ -0,0 +1,123 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Range header parsing for a 1000 byte file
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+class ByteRangeTest
+{
+    private static final long LENGTH = 1000;
+
+    @Test
+    void parsesASingleRange()
+    {
+        List<ByteRange> ranges = ByteRange.parse("bytes=0-499", LENGTH);
+
+        assertEquals(1, ranges.size());
+        assertEquals(500, ranges.get(0).length());
+        assertEquals("bytes 0-499/1000", ranges.get(0).contentRange(LENGTH));
+    }
+
+    @Test
+    void parsesOpenEndedAndSuffixRanges()
+    {
+        assertEquals("bytes 900-999/1000", ByteRange.parse("bytes=900-", LENGTH).get(0).contentRange(LENGTH));
+        assertEquals("bytes 800-999/1000", ByteRange.parse("bytes=-200", LENGTH).get(0).contentRange(LENGTH));
+
+        // A suffix longer than the file is the whole file
+        assertEquals("bytes 0-999/1000", ByteRange.parse("bytes=-5000", LENGTH).get(0).contentRange(LENGTH));
+    }
+
+    @Test
+    void parsesMultipleRanges()
+    {
+        List<ByteRange> ranges = ByteRange.parse("Bytes=0-0, 10-19 ,-1", LENGTH);
+
+        assertEquals(3, ranges.size());
+        assertEquals("bytes 0-0/1000", ranges.get(0).contentRange(LENGTH));
+        assertEquals(10, ranges.get(1).length());
+        assertEquals("bytes 999-999/1000", ranges.get(2).contentRange(LENGTH));
+    }
+
+    @Test
+    void mergesOverlappingRanges()
+    {
+        StringBuilder header = new StringBuilder("bytes=0-");
+
+        for (int i = 1; i < 16; i++)
+        {
+            header.append(",0-");
+        }
+
+        // The same whole file asked for 16 times is sent once
+        List<ByteRange> ranges = ByteRange.parse(header.toString(), LENGTH);
+
+        assertEquals(1, ranges.size());
+        assertEquals(LENGTH, ranges.get(0).length());
+
+        // Touching ranges are joined too, ranges apart stay as they are
+        ranges = ByteRange.parse("bytes=500-599, 0-99, 100-199, 150-249", LENGTH);
+
+        assertEquals(2, ranges.size());
+        assertEquals("bytes 0-249/1000", ranges.get(0).contentRange(LENGTH));
+        assertEquals("bytes 500-599/1000", ranges.get(1).contentRange(LENGTH));
+    }
+
+    @Test
+    void keepsTheOrderOfRangesApart()
+    {
+        List<ByteRange> ranges = ByteRange.parse("bytes=500-599, 0-99", LENGTH);
+
+        assertEquals(500, ranges.get(0).start);
+        assertEquals(0, ranges.get(1).start);
+    }
+
+    @Test
+    void cutsRangesAtTheEndOfTheFile()
+    {
+        ByteRange range = ByteRange.parse("bytes=500-5000", LENGTH).get(0);
+
+        assertEquals(500, range.start);
+        assertEquals(999, range.end);
+    }
+
+    @Test
+    void findsNothingSatisfiablePastTheEnd()
+    {
+        assertTrue(ByteRange.parse("bytes=1000-1999", LENGTH).isEmpty());
+        assertTrue(ByteRange.parse("bytes=-0", LENGTH).isEmpty());
+        assertTrue(ByteRange.parse("bytes=0-", 0).isEmpty());
+
+        // Only the satisfiable ones are kept
+        assertEquals(1, ByteRange.parse("bytes=2000-, 0-9", LENGTH).size());
+    }
+
+    @Test
+    void ignoresInvalidHeaders()
+    {
+        assertNull(ByteRange.parse("items=0-9", LENGTH));
+        assertNull(ByteRange.parse("bytes=9-0", LENGTH));
+        assertNull(ByteRange.parse("bytes=10", LENGTH));
+        assertNull(ByteRange.parse("bytes=a-b", LENGTH));
+        assertNull(ByteRange.parse("bytes=,0-9", LENGTH));
+    }
+
+    @Test
+    void ignoresTooManyRanges()
+    {
+        StringBuilder header = new StringBuilder("bytes=0-0");
+
+        for (int i = 1; i <= 16; i++)
+        {
+            header.append(',').append(2 * i).append('-').append(2 * i);
+        }
+
+        assertNull(ByteRange.parse(header.toString(), LENGTH));
+        assertEquals(16, ByteRange.parse(header.substring(0, header.lastIndexOf(",")), LENGTH).size());
+    }
+}
@@ -0,0 +1,120 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The connection rate (GCRA) and connection count limits per client
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+class ClientLimiterTest
+{
+    private static final long EXPIRY = 60_000;
+
+    @Test
+    void allowsABurstThenLimitsTheRate() throws UnknownHostException
+    {
+        ClientLimiter limiter = new ClientLimiter(1, 2, 0, 0, false, EXPIRY);
+        InetAddress client = address(1);
+
+        assertEquals(ClientLimiter.Verdict.ACCEPT, limiter.acquire(client));
+        assertEquals(ClientLimiter.Verdict.ACCEPT, limiter.acquire(client));
+        assertEquals(ClientLimiter.Verdict.RATE_LIMITED, limiter.acquire(client));
+
+        // Every client has a bucket of its own
+        assertEquals(ClientLimiter.Verdict.ACCEPT, limiter.acquire(address(2)));
+    }
+
+    @Test
+    void acceptsAgainOnceTheIntervalHasPassed() throws UnknownHostException, InterruptedException
+    {
+        // One connection every 50 ms
+        ClientLimiter limiter = new ClientLimiter(20, 1, 0, 0, false, EXPIRY);
+        InetAddress client = address(3);
+
+        assertEquals(ClientLimiter.Verdict.ACCEPT, limiter.acquire(client));
+        assertEquals(ClientLimiter.Verdict.RATE_LIMITED, limiter.acquire(client));
+
+        Thread.sleep(60);
+
+        assertEquals(ClientLimiter.Verdict.ACCEPT, limiter.acquire(client));
+    }
+
+    @Test
+    void limitsOpenConnectionsPerClient() throws UnknownHostException
+    {
+        ClientLimiter limiter = new ClientLimiter(0, 0, 2, 0, false, EXPIRY);
+        InetAddress client = address(4);
+
+        assertEquals(ClientLimiter.Verdict.ACCEPT, limiter.acquire(client));
+        assertEquals(ClientLimiter.Verdict.ACCEPT, limiter.acquire(client));
+        assertEquals(ClientLimiter.Verdict.TOO_MANY_CONNECTIONS, limiter.acquire(client));
+
+        limiter.release(client);
+
+        assertEquals(ClientLimiter.Verdict.ACCEPT, limiter.acquire(client));
+    }
+
+    @Test
+    void limitsOpenConnectionsInTotal() throws UnknownHostException
+    {
+        ClientLimiter limiter = new ClientLimiter(0, 0, 0, 2, false, EXPIRY);
+
+        assertEquals(ClientLimiter.Verdict.ACCEPT, limiter.acquire(address(5)));
+        assertEquals(ClientLimiter.Verdict.ACCEPT, limiter.acquire(address(6)));
+        assertEquals(ClientLimiter.Verdict.OVERLOADED, limiter.acquire(address(7)));
+
+        limiter.release(address(5));
+
+        assertEquals(ClientLimiter.Verdict.ACCEPT, limiter.acquire(address(7)));
+    }
+
+    @Test
+    void acceptsExactlyTheBurstFromConcurrentConnections() throws Exception
+    {
+        ClientLimiter limiter = new ClientLimiter(1, 5, 0, 0, false, EXPIRY);
+        InetAddress client = address(8);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger accepted = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < 16; i++)
+        {
+            Thread thread = new Thread(() -> {
+                try
+                {
+                    start.await();
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+                if (limiter.acquire(client) == ClientLimiter.Verdict.ACCEPT)
+                {
+                    accepted.incrementAndGet();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        assertEquals(5, accepted.get());
+    }
+
+    private static InetAddress address(int host) throws UnknownHostException
+    {
+        return InetAddress.getByName("10.0.0." + host);
+    }
+}
@@ -0,0 +1,132 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * HPACK decoding against the examples of RFC 7541 Appendix C, and encoding round trips
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+class HPACKTest
+{
+    private static final List<String> FIRST = Arrays.asList(":method", "GET", ":scheme", "http",
+            ":path", "/", ":authority", "www.example.com");
+    private static final List<String> SECOND = Arrays.asList(":method", "GET", ":scheme", "http",
+            ":path", "/", ":authority", "www.example.com", "cache-control", "no-cache");
+    private static final List<String> THIRD = Arrays.asList(":method", "GET", ":scheme", "https",
+            ":path", "/index.html", ":authority", "www.example.com", "custom-key", "custom-value");
+
+    @Test
+    void decodesRequestsWithoutHuffmanCoding() throws HPACK.CompressionException
+    {
+        HPACK.Decoder decoder = new HPACK.Decoder(4096);
+
+        // C.3.1 to C.3.3, later requests refer to entries the earlier ones added
+        assertEquals(FIRST, decode(decoder, "828684410f7777772e6578616d706c652e636f6d"));
+        assertEquals(SECOND, decode(decoder, "828684be58086e6f2d6361636865"));
+        assertEquals(THIRD, decode(decoder, "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565"));
+    }
+
+    @Test
+    void decodesRequestsWithHuffmanCoding() throws HPACK.CompressionException
+    {
+        HPACK.Decoder decoder = new HPACK.Decoder(4096);
+
+        // C.4.1 to C.4.3
+        assertEquals(FIRST, decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff"));
+        assertEquals(SECOND, decode(decoder, "828684be5886a8eb10649cbf"));
+        assertEquals(THIRD, decode(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"));
+    }
+
+    @Test
+    void evictsOldestEntriesWhenTheTableIsFull() throws HPACK.CompressionException
+    {
+        // Room for one entry: "custom-key: custom-value" takes 10 + 12 + 32 = 54 bytes
+        HPACK.Decoder decoder = new HPACK.Decoder(60);
+
+        decode(decoder, "400a637573746f6d2d6b65790c637573746f6d2d76616c7565");
+        assertEquals(Arrays.asList("custom-key", "custom-value"), decode(decoder, "be"));
+
+        // A second entry pushes the first one out, index 62 is now the new one
+        decode(decoder, "40036162630378797a");
+        assertEquals(Arrays.asList("abc", "xyz"), decode(decoder, "be"));
+        assertThrows(HPACK.CompressionException.class, () -> decode(decoder, "bf"));
+    }
+
+    @Test
+    void roundTripsEncodedResponseHeaders() throws HPACK.CompressionException
+    {
+        List<String> fields = Arrays.asList(":status", "200", "content-type", "text/html",
+                "content-length", "134", "x-custom", "value", ":status", "404");
+
+        byte[] block = HPACK.encode(fields);
+
+        assertEquals(fields, new HPACK.Decoder(4096).decode(block, block.length, 16384));
+    }
+
+    @Test
+    void encodesStaticTableFieldsAsOneByte()
+    {
+        // :status 200 is entry 8 of the static table
+        assertEquals("88", hex(HPACK.encode(Arrays.asList(":status", "200"))));
+    }
+
+    @Test
+    void refusesHeaderListsOverTheLimit() throws HPACK.CompressionException
+    {
+        HPACK.Decoder decoder = new HPACK.Decoder(4096);
+
+        // :authority www.example.com counts 10 + 15 + 32 = 57 bytes, the static entries 32 and more
+        assertNull(decode(decoder, "828684410f7777772e6578616d706c652e636f6d", 100));
+
+        // The dynamic table is kept in sync anyway
+        assertEquals(Arrays.asList(":authority", "www.example.com"), decode(decoder, "be"));
+    }
+
+    @Test
+    void rejectsMalformedBlocks()
+    {
+        HPACK.Decoder decoder = new HPACK.Decoder(4096);
+
+        // Index 0, an index past both tables, a string longer than the block,
+        // a table size update after a field, and Huffman padding that is not all ones
+        assertThrows(HPACK.CompressionException.class, () -> decode(decoder, "80"));
+        assertThrows(HPACK.CompressionException.class, () -> decode(decoder, "ff10"));
+        assertThrows(HPACK.CompressionException.class, () -> decode(decoder, "400a6375"));
+        assertThrows(HPACK.CompressionException.class, () -> decode(decoder, "8220"));
+        assertThrows(HPACK.CompressionException.class, () -> decode(decoder, "4081000161"));
+    }
+
+    private static List<String> decode(HPACK.Decoder decoder, String hex) throws HPACK.CompressionException
+    {
+        return decode(decoder, hex, 16384);
+    }
+
+    private static List<String> decode(HPACK.Decoder decoder, String hex, int maxListSize)
+            throws HPACK.CompressionException
+    {
+        byte[] block = new byte[hex.length() / 2];
+
+        for (int i = 0; i < block.length; i++)
+        {
+            block[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+
+        return decoder.decode(block, block.length, maxListSize);
+    }
+
+    private static String hex(byte[] data)
+    {
+        StringBuilder out = new StringBuilder();
+
+        for (byte b : data)
+        {
+            out.append(String.format("%02x", b));
+        }
+
+        return out.toString();
+    }
+}
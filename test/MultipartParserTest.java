@@ -0,0 +1,197 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Multipart parsing with the body fed whole, byte by byte and in random pieces
+ * @author Peter Danielsson, pd222dj@student.lnu.se
+ */
+class MultipartParserTest
+{
+    private static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+    /**
+     * Collects the parts the parser reports
+     */
+    private static final class Parts implements MultipartParser.Listener
+    {
+        final List<Map<String, String>> headers = new ArrayList<>();
+        final List<byte[]> contents = new ArrayList<>();
+        private ByteArrayOutputStream current;
+
+        @Override
+        public void partStart(Map<String, String> partHeaders)
+        {
+            headers.add(partHeaders);
+            current = new ByteArrayOutputStream();
+        }
+
+        @Override
+        public void partData(byte[] data, int off, int len)
+        {
+            current.write(data, off, len);
+        }
+
+        @Override
+        public void partEnd()
+        {
+            contents.add(current.toByteArray());
+            current = null;
+        }
+    }
+
+    @Test
+    void findsTheBoundaryInTheContentType()
+    {
+        assertEquals("abc", MultipartParser.boundaryOf("multipart/form-data; boundary=abc"));
+        assertEquals("a b", MultipartParser.boundaryOf("Multipart/Form-Data; charset=utf-8; boundary=\"a b\""));
+        assertNull(MultipartParser.boundaryOf("application/x-www-form-urlencoded"));
+        assertNull(MultipartParser.boundaryOf("multipart/form-data"));
+        assertNull(MultipartParser.boundaryOf("multipart/form-data; boundary="));
+        assertNull(MultipartParser.boundaryOf("multipart/form-data; boundary=" + "x".repeat(71)));
+        assertNull(MultipartParser.boundaryOf(null));
+    }
+
+    @Test
+    void parsesPartsFedAtOnce() throws IOException
+    {
+        byte[] file = binary(10_000);
+        Parts parts = parse(body(file), Integer.MAX_VALUE);
+
+        assertEquals(2, parts.contents.size());
+        assertEquals("form-data; name=\"title\"", parts.headers.get(0).get("content-disposition"));
+        assertEquals("kappa", new String(parts.contents.get(0), StandardCharsets.ISO_8859_1));
+        assertEquals("image/png", parts.headers.get(1).get("content-type"));
+        assertArrayEquals(file, parts.contents.get(1));
+    }
+
+    @Test
+    void parsesPartsFedByteByByte() throws IOException
+    {
+        byte[] file = binary(3_000);
+        Parts parts = parse(body(file), 1);
+
+        assertEquals(2, parts.contents.size());
+        assertArrayEquals(file, parts.contents.get(1));
+    }
+
+    @Test
+    void parsesPartsFedInRandomPieces() throws IOException
+    {
+        Random random = new Random(7);
+
+        for (int round = 0; round < 50; round++)
+        {
+            byte[] file = binary(random.nextInt(20_000));
+            byte[] body = body(file);
+            Parts parts = new Parts();
+            MultipartParser parser = new MultipartParser(BOUNDARY, parts);
+
+            for (int off = 0; off < body.length; )
+            {
+                int len = Math.min(body.length - off, 1 + random.nextInt(700));
+                parser.feed(body, off, len);
+                off += len;
+            }
+            parser.finish();
+
+            assertArrayEquals(file, parts.contents.get(1));
+        }
+    }
+
+    @Test
+    void keepsDataThatOnlyLooksLikeABoundary() throws IOException
+    {
+        // Starts of the delimiter that break off, also across piece borders
+        String tricky = "a\r\n--" + BOUNDARY.substring(0, 10) + "b\r\n-\r\n--"
+                + BOUNDARY.substring(0, BOUNDARY.length() - 1) + "x";
+        String body = "--" + BOUNDARY + "\r\n\r\n" + tricky + "\r\n--" + BOUNDARY + "--\r\n";
+        Parts parts = parse(body.getBytes(StandardCharsets.ISO_8859_1), 3);
+
+        assertEquals(tricky, new String(parts.contents.get(0), StandardCharsets.ISO_8859_1));
+        assertEquals(0, parts.headers.get(0).size());
+    }
+
+    @Test
+    void ignoresPreambleAndEpilogue() throws IOException
+    {
+        String body = "preamble\r\n--" + BOUNDARY + "\r\nName: x\r\n\r\ndata\r\n--" + BOUNDARY + "--\r\nepilogue";
+        Parts parts = parse(body.getBytes(StandardCharsets.ISO_8859_1), Integer.MAX_VALUE);
+
+        assertEquals(1, parts.contents.size());
+        assertEquals("x", parts.headers.get(0).get("name"));
+        assertEquals("data", new String(parts.contents.get(0), StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    void rejectsABodyWithoutClosingBoundary() throws IOException
+    {
+        String body = "--" + BOUNDARY + "\r\n\r\ndata\r\n--" + BOUNDARY.substring(0, 5);
+        MultipartParser parser = new MultipartParser(BOUNDARY, new Parts());
+        byte[] bytes = body.getBytes(StandardCharsets.ISO_8859_1);
+
+        parser.feed(bytes, 0, bytes.length);
+
+        assertThrows(HTTPRequestException.class, parser::finish);
+    }
+
+    @Test
+    void rejectsGarbageAfterABoundary()
+    {
+        byte[] body = ("--" + BOUNDARY + "xx\r\n\r\ndata").getBytes(StandardCharsets.ISO_8859_1);
+        MultipartParser parser = new MultipartParser(BOUNDARY, new Parts());
+
+        HTTPRequestException e = assertThrows(HTTPRequestException.class, () -> parser.feed(body, 0, body.length));
+        assertEquals("400 Bad Request", e.getStatus());
+    }
+
+    private static Parts parse(byte[] body, int pieceSize) throws IOException
+    {
+        Parts parts = new Parts();
+        MultipartParser parser = new MultipartParser(BOUNDARY, parts);
+
+        for (int off = 0; off < body.length; off += pieceSize)
+        {
+            parser.feed(body, off, Math.min(pieceSize, body.length - off));
+        }
+        parser.finish();
+
+        return parts;
+    }
+
+    /**
+     * A form with a text field and a file, as a browser sends it
+     */
+    private static byte[] body(byte[] file) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        out.write(("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"title\"\r\n\r\n"
+                + "kappa\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"kappa.png\"\r\n"
+                + "Content-Type: image/png\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        out.write(file);
+        out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+
+        return out.toByteArray();
+    }
+
+    private static byte[] binary(int length)
+    {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+}